@@ -0,0 +1,298 @@
+import java.util.Calendar;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.callfire.api.data.Action;
+import com.callfire.api.data.Call;
+import com.callfire.api.data.Text;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.xsd.ActionQuery;
+
+/**
+ * Incrementally tracks the texts or calls of a single broadcast, optionally
+ * restricted to a single contact batch.
+ *
+ * Rather than re-querying the whole broadcast on every poll, each call to
+ * {@link #poll(Listener)} only asks for actions modified since the previous
+ * poll (the watermark) and pages through them with FirstResult/MaxResults.
+ * The cost of a poll is therefore proportional to the number of actions
+ * that changed, not to the size of the broadcast.
+ *
+ * Actions may be delivered to the listener more than once (the watermark
+ * overlaps slightly to tolerate clock skew and rows that change while
+ * paging), so listeners must be idempotent. Trackers created over an
+ * {@link ActionStreamPort} deliver one reused action, so listeners must
+ * also copy whatever they keep.
+ */
+public abstract class ActionStatusTracker<T extends Action> {
+
+	/**
+	 * Receives every action that changed since the previous poll.
+	 */
+	public interface Listener<T extends Action> {
+		void onAction(T action);
+	}
+
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	public static final long DEFAULT_OVERLAP_MS = 5000;
+
+	private final long broadcastId;
+	private final Long batchId;
+	private final int pageSize;
+	private final long overlapMs;
+
+	private Calendar watermark;
+	private long totalFetched;
+
+	protected ActionStatusTracker(long broadcastId, Long batchId, int pageSize, long overlapMs) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+		this.broadcastId = broadcastId;
+		this.batchId = batchId;
+		this.pageSize = pageSize;
+		this.overlapMs = overlapMs;
+	}
+
+	/**
+	 * @param textService
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @return a tracker over the texts of the given broadcast/batch
+	 */
+	public static ActionStatusTracker<Text> forTexts(TextServicePortType textService,
+			long broadcastId, Long batchId) {
+		return forTexts(textService, broadcastId, batchId, DEFAULT_PAGE_SIZE, DEFAULT_OVERLAP_MS);
+	}
+
+	/**
+	 * @param textService
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @param pageSize the MaxResults of each page query
+	 * @param overlapMs how far before the watermark each poll starts
+	 * @return a tracker over the texts of the given broadcast/batch
+	 */
+	public static ActionStatusTracker<Text> forTexts(final TextServicePortType textService,
+			long broadcastId, Long batchId, int pageSize, long overlapMs) {
+		return new ActionStatusTracker<Text>(broadcastId, batchId, pageSize, overlapMs) {
+			@Override
+			protected int query(ActionQuery query, Listener<? super Text> listener) throws ServiceFault {
+				return deliver(textService.queryTexts(query).getText(), listener);
+			}
+		};
+	}
+
+	/**
+	 * @param stream
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @return a tracker over the texts of the given broadcast/batch, decoding
+	 * {@link ActionStreamPort#POLL_FIELDS}
+	 */
+	public static ActionStatusTracker<Text> forTexts(ActionStreamPort stream, long broadcastId, Long batchId) {
+		return forTexts(stream, ActionStreamPort.POLL_FIELDS, broadcastId, batchId, DEFAULT_PAGE_SIZE,
+				DEFAULT_OVERLAP_MS);
+	}
+
+	/**
+	 * @param stream
+	 * @param fields the fields the listener reads, Modified is always decoded
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @param pageSize the MaxResults of each page query
+	 * @param overlapMs how far before the watermark each poll starts
+	 * @return a tracker over the texts of the given broadcast/batch
+	 */
+	public static ActionStatusTracker<Text> forTexts(final ActionStreamPort stream, Set<ActionStreamPort.Field> fields,
+			long broadcastId, Long batchId, int pageSize, long overlapMs) {
+		final Set<ActionStreamPort.Field> decoded = withModified(fields);
+		return new ActionStatusTracker<Text>(broadcastId, batchId, pageSize, overlapMs) {
+			@Override
+			protected int query(ActionQuery query, Listener<? super Text> listener) throws ServiceFault {
+				return stream.queryTexts(query, decoded, listener);
+			}
+		};
+	}
+
+	/**
+	 * @param callService
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @return a tracker over the calls of the given broadcast/batch
+	 */
+	public static ActionStatusTracker<Call> forCalls(CallServicePortType callService,
+			long broadcastId, Long batchId) {
+		return forCalls(callService, broadcastId, batchId, DEFAULT_PAGE_SIZE, DEFAULT_OVERLAP_MS);
+	}
+
+	/**
+	 * @param callService
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @param pageSize the MaxResults of each page query
+	 * @param overlapMs how far before the watermark each poll starts
+	 * @return a tracker over the calls of the given broadcast/batch
+	 */
+	public static ActionStatusTracker<Call> forCalls(final CallServicePortType callService,
+			long broadcastId, Long batchId, int pageSize, long overlapMs) {
+		return new ActionStatusTracker<Call>(broadcastId, batchId, pageSize, overlapMs) {
+			@Override
+			protected int query(ActionQuery query, Listener<? super Call> listener) throws ServiceFault {
+				return deliver(callService.queryCalls(query).getCall(), listener);
+			}
+		};
+	}
+
+	/**
+	 * @param stream
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @return a tracker over the calls of the given broadcast/batch, decoding
+	 * {@link ActionStreamPort#POLL_FIELDS}
+	 */
+	public static ActionStatusTracker<Call> forCalls(ActionStreamPort stream, long broadcastId, Long batchId) {
+		return forCalls(stream, ActionStreamPort.POLL_FIELDS, broadcastId, batchId, DEFAULT_PAGE_SIZE,
+				DEFAULT_OVERLAP_MS);
+	}
+
+	/**
+	 * @param stream
+	 * @param fields the fields the listener reads, Modified is always decoded
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @param pageSize the MaxResults of each page query
+	 * @param overlapMs how far before the watermark each poll starts
+	 * @return a tracker over the calls of the given broadcast/batch
+	 */
+	public static ActionStatusTracker<Call> forCalls(final ActionStreamPort stream, Set<ActionStreamPort.Field> fields,
+			long broadcastId, Long batchId, int pageSize, long overlapMs) {
+		final Set<ActionStreamPort.Field> decoded = withModified(fields);
+		return new ActionStatusTracker<Call>(broadcastId, batchId, pageSize, overlapMs) {
+			@Override
+			protected int query(ActionQuery query, Listener<? super Call> listener) throws ServiceFault {
+				return stream.queryCalls(query, decoded, listener);
+			}
+		};
+	}
+
+	private static Set<ActionStreamPort.Field> withModified(Set<ActionStreamPort.Field> fields) {
+		// the watermark is read from every action
+		Set<ActionStreamPort.Field> decoded = EnumSet.of(ActionStreamPort.Field.MODIFIED);
+		decoded.addAll(fields);
+		return decoded;
+	}
+
+	private static <T extends Action> int deliver(List<T> page, Listener<? super T> listener) {
+		for (T action : page) {
+			listener.onAction(action);
+		}
+		return page.size();
+	}
+
+	/**
+	 * Executes a single page query against the underlying service,
+	 * handing each action on the page to listener.
+	 * @return the number of actions on the page
+	 */
+	protected abstract int query(ActionQuery query, Listener<? super T> listener) throws ServiceFault;
+
+	/**
+	 * Fetches every action modified since the last poll and hands it to the listener.
+	 * @param listener
+	 * @return the number of actions delivered
+	 * @throws ServiceFault
+	 */
+	public synchronized int poll(Listener<? super T> listener) throws ServiceFault {
+		ActionQuery query = new ActionQuery();
+		query.setBroadcastId(broadcastId);
+		query.setBatchId(batchId);
+		query.setMaxResults(pageSize);
+		if (watermark != null) {
+			Calendar since = (Calendar)watermark.clone();
+			since.setTimeInMillis(watermark.getTimeInMillis() - overlapMs);
+			query.setModifiedSince(since);
+		}
+
+		Delivery<T> delivery = new Delivery<T>(listener, watermark);
+		int delivered = 0;
+		int firstResult = 0;
+		while (true) {
+			query.setFirstResult(firstResult);
+			int page = query(query, delivery);
+			delivered += page;
+			if (page < pageSize) {
+				break;
+			}
+			firstResult += page;
+		}
+
+		// only advance once the full delta has been read so that a
+		// fault part way through paging is retried from the old watermark.
+		watermark = delivery.getWatermark();
+		totalFetched += delivered;
+		return delivered;
+	}
+
+	/**
+	 * Hands each action on to the listener, keeping the latest modification
+	 * time seen. Actions may be reused, so their times are copied, not kept.
+	 */
+	private static class Delivery<T extends Action> implements Listener<T> {
+		private final Listener<? super T> listener;
+		private Calendar watermark;
+		private long watermarkMillis;
+
+		Delivery(Listener<? super T> listener, Calendar watermark) {
+			this.listener = listener;
+			this.watermark = watermark;
+			this.watermarkMillis = watermark == null ? Long.MIN_VALUE : watermark.getTimeInMillis();
+		}
+
+		@Override
+		public void onAction(T action) {
+			Calendar modified = action.getModified();
+			if (modified != null && modified.getTimeInMillis() > watermarkMillis) {
+				watermarkMillis = modified.getTimeInMillis();
+				if (watermark == null) {
+					watermark = (Calendar)modified.clone();
+				}
+			}
+			listener.onAction(action);
+		}
+
+		Calendar getWatermark() {
+			if (watermark == null || watermark.getTimeInMillis() == watermarkMillis) {
+				return watermark;
+			}
+			Calendar newWatermark = (Calendar)watermark.clone();
+			newWatermark.setTimeInMillis(watermarkMillis);
+			return newWatermark;
+		}
+	}
+
+	public long getBroadcastId() {
+		return broadcastId;
+	}
+
+	public Long getBatchId() {
+		return batchId;
+	}
+
+	/**
+	 * @return the latest modification time seen so far, or null before the first poll
+	 */
+	public synchronized Calendar getWatermark() {
+		return watermark == null ? null : (Calendar)watermark.clone();
+	}
+
+	/**
+	 * @return the total number of rows fetched across all polls
+	 */
+	public synchronized long getTotalFetched() {
+		return totalFetched;
+	}
+}
@@ -0,0 +1,59 @@
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.callfire.api.data.Call;
+import com.callfire.api.data.Text;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.xsd.ActionQuery;
+
+/**
+ * Queries texts and calls like TextServicePortType.queryTexts and
+ * CallServicePortType.queryCalls, but hands each one to a listener as it
+ * is read from the response instead of returning the whole page.
+ *
+ * Only the requested fields are decoded, into a single Text or Call that is
+ * reused for every action of the page, so the listener must copy whatever
+ * it keeps before it returns. Fields that weren't requested are left null,
+ * or zero, and action records are never decoded.
+ *
+ * Being an ordinary port interface, it can be wrapped by any
+ * {@link PortWrapper}; {@link CallFireClientPool#getActionStream()} returns
+ * one wrapped like the other shared ports.
+ */
+public interface ActionStreamPort {
+
+	/**
+	 * The fields of an Action that can be decoded.
+	 */
+	enum Field {
+		ID, FROM_NUMBER, TO_NUMBER, STATE, BATCH_ID, BROADCAST_ID, CONTACT_ID, INBOUND, CREATED, MODIFIED,
+		FINAL_RESULT
+	}
+
+	/**
+	 * The fields the samples read while polling for results.
+	 */
+	Set<Field> POLL_FIELDS = Collections.unmodifiableSet(EnumSet.of(Field.ID, Field.TO_NUMBER, Field.STATE,
+			Field.BATCH_ID, Field.MODIFIED, Field.FINAL_RESULT));
+
+	/**
+	 * @param query
+	 * @param fields the fields to decode
+	 * @param listener gets the same Text for every text of the page, refilled each time
+	 * @return the number of texts on the page
+	 * @throws ServiceFault
+	 */
+	int queryTexts(ActionQuery query, Set<Field> fields, ActionStatusTracker.Listener<? super Text> listener)
+			throws ServiceFault;
+
+	/**
+	 * @param query
+	 * @param fields the fields to decode
+	 * @param listener gets the same Call for every call of the page, refilled each time
+	 * @return the number of calls on the page
+	 * @throws ServiceFault
+	 */
+	int queryCalls(ActionQuery query, Set<Field> fields, ActionStatusTracker.Listener<? super Call> listener)
+			throws ServiceFault;
+}
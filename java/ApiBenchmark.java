@@ -0,0 +1,482 @@
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import com.callfire.api.data.Broadcast;
+import com.callfire.api.data.Result;
+import com.callfire.api.data.Text;
+import com.callfire.api.data.TextBroadcastConfig;
+import com.callfire.api.data.ToNumber;
+import com.callfire.api.service.xsd.ActionQuery;
+import com.callfire.api.service.xsd.BroadcastCommand;
+import com.callfire.api.service.xsd.BroadcastRequest;
+import com.callfire.api.service.xsd.ControlBroadcast;
+import com.callfire.api.service.xsd.CreateContactBatch;
+import com.callfire.api.service.xsd.SendText;
+import com.callfire.api.service.xsd.TextQueryResult;
+
+/**
+ * Micro-benchmarks for the hot paths of the samples, run against
+ * {@link FakeCallFireService} so no network is involved.
+ *
+ * Each benchmark is warmed up and then timed for a number of iterations
+ * at every recipient count; the report shows the mean time per operation,
+ * recipients processed per second and bytes allocated per operation.
+ *
+ * Usage: ./run.sh ApiBenchmark [recipientCount ...]
+ */
+public class ApiBenchmark {
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURED_ITERATIONS = 10;
+	private static final String SERVICE_NS = "http://api.callfire.com/service/xsd";
+	// one pool for the whole run, so every iteration shares the same attribute set
+	private static final ContactAttributes.Pool ATTRIBUTES = new ContactAttributes.Pool();
+
+	/**
+	 * Keeps results reachable so the JIT can't eliminate the measured work.
+	 */
+	private static volatile long sink;
+
+	/**
+	 * A single measured operation over a given number of recipients.
+	 */
+	private abstract static class Benchmark {
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Builds any state the operation needs, outside of the measurement.
+		 */
+		void setUp(int recipients) throws Exception {
+		}
+
+		abstract long run(int recipients) throws Exception;
+	}
+
+	private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	public ApiBenchmark() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		threadBean = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)bean : null;
+
+		benchmarks.add(new Benchmark("toNumber allocation") {
+			@Override
+			long run(int recipients) {
+				long hash = 0;
+				Iterator<ToNumber> toNumbers = ContactBatchUploader.toNumbers(numbers(recipients), attributes());
+				while (toNumbers.hasNext()) {
+					hash += toNumbers.next().getOtherAttributes().size();
+				}
+				return hash;
+			}
+		});
+
+		benchmarks.add(new Benchmark("sendText construction") {
+			@Override
+			long run(int recipients) {
+				SendText sendText = new SendText();
+				for (Object toNumber : numbers(recipients)) {
+					ToNumber toNumberElem = new ToNumber();
+					toNumberElem.setValue((String)toNumber);
+					sendText.getToNumber().add(toNumberElem);
+				}
+				TextBroadcastConfig config = new TextBroadcastConfig();
+				config.setMessage("this is just a test...");
+				sendText.setTextBroadcastConfig(config);
+				return sendText.getToNumber().size();
+			}
+		});
+
+		benchmarks.add(new Benchmark("createBatch construction") {
+			@Override
+			long run(int recipients) {
+				CreateContactBatch createBatch = new CreateContactBatch();
+				createBatch.setName("benchmark");
+				createBatch.setBroadcastId(1L);
+				Iterator<ToNumber> toNumbers = ContactBatchUploader.toNumbers(numbers(recipients), attributes());
+				while (toNumbers.hasNext()) {
+					createBatch.getToNumber().add(toNumbers.next());
+				}
+				createBatch.setScrubBroadcastDuplicates(false);
+				return createBatch.getToNumber().size();
+			}
+		});
+
+		final JAXBContext jaxbContext = JAXBContext.newInstance(CreateContactBatch.class);
+		benchmarks.add(new Benchmark("createBatch marshalling") {
+			private JAXBElement<CreateContactBatch> element;
+
+			@Override
+			void setUp(int recipients) {
+				CreateContactBatch createBatch = new CreateContactBatch();
+				createBatch.setName("benchmark");
+				createBatch.setBroadcastId(1L);
+				Iterator<ToNumber> toNumbers = ContactBatchUploader.toNumbers(numbers(recipients), attributes());
+				while (toNumbers.hasNext()) {
+					createBatch.getToNumber().add(toNumbers.next());
+				}
+				element = new JAXBElement<CreateContactBatch>(new QName(SERVICE_NS, "CreateContactBatch"),
+						CreateContactBatch.class, createBatch);
+			}
+
+			@Override
+			long run(int recipients) throws Exception {
+				CountingOutputStream out = new CountingOutputStream();
+				Marshaller marshaller = jaxbContext.createMarshaller();
+				marshaller.marshal(element, out);
+				return out.count;
+			}
+		});
+
+		final JAXBContext sendContext = JAXBContext.newInstance(SendText.class);
+		benchmarks.add(new Benchmark("sendText marshalled for SOAP") {
+			private JAXBElement<SendText> element;
+
+			@Override
+			void setUp(int recipients) {
+				element = new JAXBElement<SendText>(new QName(SERVICE_NS, "SendText"), SendText.class,
+						plainSendText(recipients));
+			}
+
+			@Override
+			long run(int recipients) throws Exception {
+				CountingOutputStream out = new CountingOutputStream();
+				Marshaller marshaller = sendContext.createMarshaller();
+				marshaller.marshal(element, out);
+				return out.count;
+			}
+		});
+
+		benchmarks.add(new Benchmark("sendText encoded for REST") {
+			private SendText sendText;
+
+			@Override
+			void setUp(int recipients) {
+				sendText = plainSendText(recipients);
+			}
+
+			@Override
+			long run(int recipients) throws Exception {
+				return RestTransport.form(RestTransport.params(sendText)).length;
+			}
+		});
+
+		benchmarks.add(new Benchmark("result scan with List.remove") {
+			private List<Text> texts;
+
+			@Override
+			void setUp(int recipients) {
+				texts = sentTexts(recipients);
+			}
+
+			@Override
+			long run(int recipients) {
+				// the original pollForResponse completion tracking
+				List<Object> toNumbers = new ArrayList<Object>(numbers(recipients));
+				for (Text text : texts) {
+					if (Result.SENT.equals(text.getFinalResult())) {
+						toNumbers.remove(text.getToNumber().getValue());
+					}
+				}
+				return toNumbers.size();
+			}
+		});
+
+		benchmarks.add(new Benchmark("result scan with OutstandingNumbers") {
+			private List<Text> texts;
+
+			@Override
+			void setUp(int recipients) {
+				texts = sentTexts(recipients);
+			}
+
+			@Override
+			long run(int recipients) {
+				OutstandingNumbers outstanding = OutstandingNumbers.of(numbers(recipients));
+				for (Text text : texts) {
+					if (Result.SENT.equals(text.getFinalResult())) {
+						outstanding.complete(text.getToNumber().getValue());
+					}
+				}
+				return outstanding.remaining();
+			}
+		});
+
+		benchmarks.add(new Benchmark("poll full broadcast rescan") {
+			private FakeCallFireService fake;
+			private long broadcastId;
+
+			@Override
+			void setUp(int recipients) throws Exception {
+				fake = new FakeCallFireService();
+				broadcastId = finishedBroadcast(fake, recipients);
+			}
+
+			@Override
+			long run(int recipients) throws Exception {
+				// page through every text of the broadcast, as each poll used to
+				long rows = 0;
+				ActionQuery query = new ActionQuery();
+				query.setBroadcastId(broadcastId);
+				query.setMaxResults(ActionStatusTracker.DEFAULT_PAGE_SIZE);
+				for (int first = 0; ; first += ActionStatusTracker.DEFAULT_PAGE_SIZE) {
+					query.setFirstResult(first);
+					int page = fake.queryTexts(query).getText().size();
+					rows += page;
+					if (page < ActionStatusTracker.DEFAULT_PAGE_SIZE) {
+						break;
+					}
+				}
+				return rows;
+			}
+		});
+
+		benchmarks.add(new Benchmark("poll incremental tracker") {
+			private ActionStatusTracker<Text> tracker;
+
+			@Override
+			void setUp(int recipients) throws Exception {
+				FakeCallFireService fake = new FakeCallFireService();
+				long broadcastId = finishedBroadcast(fake, recipients);
+				// no overlap, every text finished within the default overlap window
+				tracker = ActionStatusTracker.forTexts(fake, broadcastId, null, ActionStatusTracker.DEFAULT_PAGE_SIZE, 0);
+				// the first poll downloads everything, later polls only deltas
+				tracker.poll(new ActionStatusTracker.Listener<Text>() {
+					@Override
+					public void onAction(Text action) {
+					}
+				});
+			}
+
+			@Override
+			long run(int recipients) throws Exception {
+				final long[] rows = new long[1];
+				tracker.poll(new ActionStatusTracker.Listener<Text>() {
+					@Override
+					public void onAction(Text action) {
+						rows[0]++;
+					}
+				});
+				return rows[0];
+			}
+		});
+
+		final JAXBContext resultContext = JAXBContext.newInstance(TextQueryResult.class);
+		final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+		benchmarks.add(new Benchmark("result pages unmarshalled by JAXB") {
+			private List<byte[]> pages;
+
+			@Override
+			void setUp(int recipients) throws Exception {
+				pages = resultPages(recipients);
+			}
+
+			@Override
+			long run(int recipients) throws Exception {
+				// what the JAX-WS port does with each response body
+				long sent = 0;
+				Unmarshaller unmarshaller = resultContext.createUnmarshaller();
+				for (byte[] page : pages) {
+					XMLStreamReader reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(page));
+					while (reader.next() != XMLStreamConstants.START_ELEMENT
+							|| !reader.getLocalName().equals("TextQueryResult")) {
+					}
+					for (Text text : unmarshaller.unmarshal(reader, TextQueryResult.class).getValue().getText()) {
+						if (Result.SENT.equals(text.getFinalResult())) {
+							sent += text.getToNumber().getValue().length();
+						}
+					}
+					reader.close();
+				}
+				return sent;
+			}
+		});
+
+		benchmarks.add(new Benchmark("result pages streamed with StAX") {
+			private List<byte[]> pages;
+
+			@Override
+			void setUp(int recipients) throws Exception {
+				pages = resultPages(recipients);
+			}
+
+			@Override
+			long run(int recipients) throws Exception {
+				final long[] sent = new long[1];
+				ActionStatusTracker.Listener<Text> listener = new ActionStatusTracker.Listener<Text>() {
+					@Override
+					public void onAction(Text text) {
+						if (Result.SENT.equals(text.getFinalResult())) {
+							sent[0] += text.getToNumber().getValue().length();
+						}
+					}
+				};
+				for (byte[] page : pages) {
+					SoapActionStream.decode(new ByteArrayInputStream(page), Text.class, ActionStreamPort.POLL_FIELDS,
+							listener);
+				}
+				return sent[0];
+			}
+		});
+	}
+
+	/**
+	 * Runs every benchmark at every recipient count and prints the results.
+	 */
+	public void run(int[] recipientCounts) throws Exception {
+		System.out.println(String.format("%-36s %10s %14s %16s %14s",
+				"benchmark", "recipients", "ms/op", "recipients/s", "bytes/op"));
+		for (Benchmark benchmark : benchmarks) {
+			for (int recipients : recipientCounts) {
+				benchmark.setUp(recipients);
+				for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+					sink += benchmark.run(recipients);
+				}
+
+				long allocatedBefore = allocatedBytes();
+				long start = System.nanoTime();
+				for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+					sink += benchmark.run(recipients);
+				}
+				long elapsed = System.nanoTime() - start;
+				long allocated = allocatedBytes() - allocatedBefore;
+
+				double nanosPerOp = (double)elapsed / MEASURED_ITERATIONS;
+				System.out.println(String.format("%-36s %10d %14.3f %16.0f %14s",
+						benchmark.name, recipients, nanosPerOp / 1e6, recipients / (nanosPerOp / 1e9),
+						allocated < 0 ? "n/a" : String.valueOf(allocated / MEASURED_ITERATIONS)));
+			}
+		}
+	}
+
+	private long allocatedBytes() {
+		if (threadBean == null || !threadBean.isThreadAllocatedMemorySupported()) {
+			return -1;
+		}
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static List<Object> numbers(int recipients) {
+		List<Object> numbers = new ArrayList<Object>(recipients);
+		for (int i = 0; i < recipients; i++) {
+			numbers.add(String.valueOf(12130000000L + i));
+		}
+		return numbers;
+	}
+
+	private static ContactAttributes attributes() {
+		return ATTRIBUTES.none().with("regTimeWindow", "9/9/2012 at 12:30-1:30pm")
+				.with("regLocation", "school gym");
+	}
+
+	private static SendText plainSendText(int recipients) {
+		SendText sendText = new SendText();
+		Iterator<ToNumber> toNumbers = ContactBatchUploader.toNumbers(numbers(recipients), null);
+		while (toNumbers.hasNext()) {
+			sendText.getToNumber().add(toNumbers.next());
+		}
+		TextBroadcastConfig config = new TextBroadcastConfig();
+		config.setMessage("this is just a test...");
+		sendText.setTextBroadcastConfig(config);
+		return sendText;
+	}
+
+	private static List<Text> sentTexts(int recipients) {
+		List<Text> texts = new ArrayList<Text>(recipients);
+		for (Object number : numbers(recipients)) {
+			Text text = new Text();
+			ToNumber toNumber = new ToNumber();
+			toNumber.setValue((String)number);
+			text.setToNumber(toNumber);
+			text.setFinalResult(Result.SENT);
+			texts.add(text);
+		}
+		return texts;
+	}
+
+	/**
+	 * Creates a text broadcast on the fake and waits until every text has finished.
+	 */
+	private static long finishedBroadcast(FakeCallFireService fake, int recipients) throws Exception {
+		fake.setDelivery(Double.MAX_VALUE, 0);
+		Broadcast broadcast = new Broadcast();
+		TextBroadcastConfig config = new TextBroadcastConfig();
+		config.setMessage("this is just a test...");
+		broadcast.setTextBroadcastConfig(config);
+		BroadcastRequest request = new BroadcastRequest();
+		request.setBroadcast(broadcast);
+		long broadcastId = fake.createBroadcast(request);
+
+		new ContactBatchUploader(fake, ContactBatchUploader.DEFAULT_CHUNK_SIZE, 1)
+				.upload("benchmark", broadcastId, ContactBatchUploader.toNumbers(numbers(recipients), null));
+		ControlBroadcast control = new ControlBroadcast();
+		control.setId(broadcastId);
+		control.setCommand(BroadcastCommand.START);
+		fake.controlBroadcast(control);
+		Thread.sleep(10);
+		return broadcastId;
+	}
+
+	/**
+	 * @return the SOAP responses to querying every text of a finished broadcast, a page each
+	 */
+	private static List<byte[]> resultPages(int recipients) throws Exception {
+		FakeCallFireService fake = new FakeCallFireService();
+		long broadcastId = finishedBroadcast(fake, recipients);
+		List<byte[]> pages = new ArrayList<byte[]>();
+		ActionQuery query = new ActionQuery();
+		query.setBroadcastId(broadcastId);
+		query.setMaxResults(ActionStatusTracker.DEFAULT_PAGE_SIZE);
+		for (int first = 0; first < recipients; first += ActionStatusTracker.DEFAULT_PAGE_SIZE) {
+			query.setFirstResult(first);
+			pages.add(SoapActionStream.envelope(fake.queryTexts(query)));
+		}
+		return pages;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	public static void main(String[] args) {
+		int[] recipientCounts = { 1000, 10000 };
+		if (args.length > 0) {
+			recipientCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				recipientCounts[i] = Integer.parseInt(args[i]);
+			}
+		}
+		try {
+			new ApiBenchmark().run(recipientCounts);
+		}
+		catch (Exception e) {
+			throw new RuntimeException("exception running " + ApiBenchmark.class.getName(), e);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.activation.DataHandler;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.callfire.api.data.AutoReply;
+import com.callfire.api.data.Broadcast;
+import com.callfire.api.data.BroadcastSchedule;
+import com.callfire.api.data.BroadcastStats;
+import com.callfire.api.data.Call;
+import com.callfire.api.data.ContactBatch;
+import com.callfire.api.data.SoundMeta;
+import com.callfire.api.data.Text;
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.xsd.ActionQuery;
+import com.callfire.api.service.xsd.AutoReplyQueryResult;
+import com.callfire.api.service.xsd.BroadcastQueryResult;
+import com.callfire.api.service.xsd.BroadcastRequest;
+import com.callfire.api.service.xsd.BroadcastScheduleQueryResult;
+import com.callfire.api.service.xsd.CallQueryResult;
+import com.callfire.api.service.xsd.ContactBatchQueryResult;
+import com.callfire.api.service.xsd.ControlBroadcast;
+import com.callfire.api.service.xsd.ControlContactBatch;
+import com.callfire.api.service.xsd.CreateAutoReply;
+import com.callfire.api.service.xsd.CreateBroadcastSchedule;
+import com.callfire.api.service.xsd.CreateContactBatch;
+import com.callfire.api.service.xsd.CreateSound;
+import com.callfire.api.service.xsd.GetBroadcastStats;
+import com.callfire.api.service.xsd.GetRecordingData;
+import com.callfire.api.service.xsd.GetSoundData;
+import com.callfire.api.service.xsd.IdRequest;
+import com.callfire.api.service.xsd.Query;
+import com.callfire.api.service.xsd.QueryBroadcastSchedules;
+import com.callfire.api.service.xsd.QueryBroadcasts;
+import com.callfire.api.service.xsd.QueryContactBatches;
+import com.callfire.api.service.xsd.SendCall;
+import com.callfire.api.service.xsd.SendText;
+import com.callfire.api.service.xsd.SoundMetaQueryResult;
+import com.callfire.api.service.xsd.TextQueryResult;
+
+/**
+ * Calls the broadcast, text and call services without blocking the caller.
+ *
+ * Every operation of the async interfaces below takes the same request as
+ * the port operation of the same name and returns at once with a
+ * {@link Pending} result, so independent steps of a workflow, like
+ * uploading two sounds or creating a schedule while a batch uploads,
+ * overlap instead of running one round trip after another. The calls are
+ * made through ordinary thread-safe ports, e.g. from a
+ * {@link CallFireClientPool} with its retries, limits and metrics.
+ *
+ * The ports block while a call is in flight, so each call runs on a thread
+ * of its own: a virtual thread when the JVM has them, so thousands of
+ * calls can be in flight at once for little more than their requests and
+ * responses, and otherwise one of at most maxThreads platform threads,
+ * with further calls queued until one is free.
+ */
+public class AsyncPorts implements Closeable {
+	public static final int DEFAULT_MAX_THREADS = 64;
+
+	/**
+	 * The operations of BroadcastServicePortType.
+	 */
+	public interface BroadcastService {
+		Pending<Long> createBroadcast(BroadcastRequest request);
+
+		Pending<Void> updateBroadcast(BroadcastRequest request);
+
+		Pending<Broadcast> getBroadcast(IdRequest request);
+
+		Pending<BroadcastQueryResult> queryBroadcasts(QueryBroadcasts request);
+
+		Pending<BroadcastStats> getBroadcastStats(GetBroadcastStats request);
+
+		Pending<Void> controlBroadcast(ControlBroadcast request);
+
+		Pending<Long> createContactBatch(CreateContactBatch request);
+
+		Pending<ContactBatch> getContactBatch(IdRequest request);
+
+		Pending<ContactBatchQueryResult> queryContactBatches(QueryContactBatches request);
+
+		Pending<Void> controlContactBatch(ControlContactBatch request);
+
+		Pending<Long> createBroadcastSchedule(CreateBroadcastSchedule request);
+
+		Pending<BroadcastSchedule> getBroadcastSchedule(IdRequest request);
+
+		Pending<BroadcastScheduleQueryResult> queryBroadcastSchedule(QueryBroadcastSchedules request);
+
+		Pending<Void> deleteBroadcastSchedule(IdRequest request);
+	}
+
+	/**
+	 * The operations of TextServicePortType.
+	 */
+	public interface TextService {
+		Pending<Long> sendText(SendText request);
+
+		Pending<Text> getText(IdRequest request);
+
+		Pending<TextQueryResult> queryTexts(ActionQuery request);
+
+		Pending<Long> createAutoReply(CreateAutoReply request);
+
+		Pending<AutoReply> getAutoReply(IdRequest request);
+
+		Pending<AutoReplyQueryResult> queryAutoReplies(Query request);
+
+		Pending<Void> deleteAutoReply(IdRequest request);
+	}
+
+	/**
+	 * The operations of CallServicePortType.
+	 */
+	public interface CallService {
+		Pending<Long> sendCall(SendCall request);
+
+		Pending<Call> getCall(IdRequest request);
+
+		Pending<CallQueryResult> queryCalls(ActionQuery request);
+
+		Pending<Long> createSound(CreateSound request);
+
+		Pending<SoundMeta> getSoundMeta(IdRequest request);
+
+		Pending<SoundMetaQueryResult> querySoundMeta(Query request);
+
+		Pending<DataHandler> getSoundData(GetSoundData request);
+
+		Pending<DataHandler> getRecordingData(GetRecordingData request);
+	}
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final BroadcastService broadcastService;
+	private final TextService textService;
+	private final CallService callService;
+
+	/**
+	 * @param broadcastService a thread-safe port
+	 * @param textService a thread-safe port
+	 * @param callService a thread-safe port
+	 * @param maxThreads the most calls in flight at once when there are no virtual threads
+	 */
+	public AsyncPorts(BroadcastServicePortType broadcastService, TextServicePortType textService,
+			CallServicePortType callService, int maxThreads) {
+		if (maxThreads <= 0) {
+			throw new IllegalArgumentException("maxThreads must be positive: " + maxThreads);
+		}
+		ExecutorService virtual = CampaignOrchestrator.newVirtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		if (virtual != null) {
+			this.executor = virtual;
+		}
+		else {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "async-call-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			// idle threads go away between bursts of calls
+			pool.allowCoreThreadTimeOut(true);
+			this.executor = pool;
+		}
+		this.broadcastService = async(BroadcastService.class, BroadcastServicePortType.class, broadcastService);
+		this.textService = async(TextService.class, TextServicePortType.class, textService);
+		this.callService = async(CallService.class, CallServicePortType.class, callService);
+	}
+
+	/**
+	 * Creates async ports over the shared ports of clientPool, with the
+	 * sample.properties setting async_max_threads.
+	 * @param config
+	 * @param clientPool
+	 * @return new async ports
+	 */
+	public static AsyncPorts fromConfiguration(Configuration config, CallFireClientPool clientPool) {
+		return new AsyncPorts(clientPool.getBroadcastService(), clientPool.getTextService(),
+				clientPool.getCallService(), config.getInt("async_max_threads", DEFAULT_MAX_THREADS));
+	}
+
+	public BroadcastService getBroadcastService() {
+		return broadcastService;
+	}
+
+	public TextService getTextService() {
+		return textService;
+	}
+
+	public CallService getCallService() {
+		return callService;
+	}
+
+	/**
+	 * @return true if every call runs on a virtual thread of its own
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Runs any blocking step, e.g. one that makes several calls, in the background.
+	 * @param call
+	 * @return its result
+	 */
+	public <V> Pending<V> submit(final Callable<V> call) {
+		final Pending<V> pending = new Pending<V>();
+		pending.setTask(executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.isDone()) {
+					// cancelled before it started
+					return;
+				}
+				try {
+					pending.complete(call.call());
+				}
+				catch (Throwable t) {
+					pending.fail(t);
+				}
+			}
+		}));
+		return pending;
+	}
+
+	/**
+	 * Creates an async interface over any port, e.g. ContactServicePortType.
+	 * Each operation of asyncType must return a {@link Pending} and take the
+	 * parameters of the port operation of the same name.
+	 * @param asyncType
+	 * @param portType
+	 * @param port a thread-safe port
+	 * @return calls port in the background
+	 */
+	public <A, P> A async(Class<A> asyncType, Class<P> portType, final P port) {
+		final Map<Method, Method> operations = new HashMap<Method, Method>();
+		for (Method method : asyncType.getMethods()) {
+			if (method.getReturnType() != Pending.class) {
+				throw new IllegalArgumentException(asyncType.getName() + "." + method.getName()
+						+ " doesn't return a Pending");
+			}
+			try {
+				operations.put(method, portType.getMethod(method.getName(), method.getParameterTypes()));
+			}
+			catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException(portType.getName() + " has no operation " + method.getName(), e);
+			}
+		}
+		return asyncType.cast(Proxy.newProxyInstance(asyncType.getClassLoader(), new Class<?>[] { asyncType },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, final Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(this, args);
+						}
+						final Method operation = operations.get(method);
+						return submit(new Callable<Object>() {
+							@Override
+							public Object call() throws Exception {
+								try {
+									return operation.invoke(port, args);
+								}
+								catch (InvocationTargetException e) {
+									Throwable cause = e.getCause();
+									if (cause instanceof Error) {
+										throw (Error)cause;
+									}
+									throw (Exception)cause;
+								}
+							}
+						});
+					}
+				}));
+	}
+
+	/**
+	 * Stops taking calls, letting the ones already made finish.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,362 @@
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.callfire.api.data.ActionState;
+import com.callfire.api.data.BroadcastStats;
+import com.callfire.api.data.Result;
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.xsd.ActionQuery;
+import com.callfire.api.service.xsd.GetBroadcastStats;
+
+/**
+ * Follows the progress of a broadcast through its aggregate counters.
+ *
+ * Each {@link #refresh()} costs one GetBroadcastStats call, plus one for
+ * every time bucket that closed since the previous refresh, however many
+ * recipients the broadcast has. The per-bucket calls use IntervalBegin and
+ * IntervalEnd to build a throughput series. Individual texts or calls only
+ * need to be listed when the counters show something worth looking at,
+ * see {@link #newFailureQuery(Snapshot)}.
+ */
+public class BroadcastStatsMonitor {
+	public static final long DEFAULT_BUCKET_MS = 60000;
+	public static final int DEFAULT_MAX_BUCKETS = 1440;
+
+	/**
+	 * Results that mean the recipient was reached, everything else is a failure.
+	 */
+	private static final Set<Result> SUCCESSES = Collections.unmodifiableSet(EnumSet.of(
+			Result.SENT, Result.RECEIVED, Result.LA, Result.AM, Result.XFER, Result.XFER_LEG));
+
+	/**
+	 * Results of actions that haven't finished, which are neither a success nor a failure.
+	 * Scrubbed actions, in state DUP or INVALID, are finished but also end UNDIALED.
+	 */
+	private static final Set<Result> PENDING = Collections.unmodifiableSet(EnumSet.of(Result.UNDIALED));
+
+	/**
+	 * Counts the texts or calls that match a query, without listing them.
+	 */
+	public interface ActionCounter {
+		int count(ActionQuery query) throws ServiceFault;
+	}
+
+	private final BroadcastServicePortType broadcastService;
+	private final ActionCounter scrubbedCounter;
+	private final long broadcastId;
+	private final long bucketMs;
+	private final int maxBuckets;
+	private final List<Bucket> series = new ArrayList<Bucket>();
+	private long nextBucketBegin;
+	private Snapshot latest;
+
+	public BroadcastStatsMonitor(BroadcastServicePortType broadcastService, long broadcastId) {
+		this(broadcastService, null, broadcastId, DEFAULT_BUCKET_MS, DEFAULT_MAX_BUCKETS);
+	}
+
+	/**
+	 * @param broadcastService
+	 * @param scrubbedCounter counts the broadcast's scrubbed actions, see {@link #textCounter(TextServicePortType)}
+	 * @param broadcastId
+	 */
+	public BroadcastStatsMonitor(BroadcastServicePortType broadcastService, ActionCounter scrubbedCounter,
+			long broadcastId) {
+		this(broadcastService, scrubbedCounter, broadcastId, DEFAULT_BUCKET_MS, DEFAULT_MAX_BUCKETS);
+	}
+
+	/**
+	 * @param broadcastService
+	 * @param scrubbedCounter counts the broadcast's scrubbed actions, or null to count every UNDIALED
+	 *        action as unfinished
+	 * @param broadcastId
+	 * @param bucketMs the width of each bucket of the throughput series
+	 * @param maxBuckets the number of most recent buckets kept
+	 */
+	public BroadcastStatsMonitor(BroadcastServicePortType broadcastService, ActionCounter scrubbedCounter,
+			long broadcastId, long bucketMs, int maxBuckets) {
+		if (bucketMs <= 0 || maxBuckets <= 0) {
+			throw new IllegalArgumentException("bucketMs and maxBuckets must be positive");
+		}
+		this.broadcastService = broadcastService;
+		this.scrubbedCounter = scrubbedCounter;
+		this.broadcastId = broadcastId;
+		this.bucketMs = bucketMs;
+		this.maxBuckets = maxBuckets;
+		this.nextBucketBegin = System.currentTimeMillis() / bucketMs * bucketMs;
+	}
+
+	/**
+	 * @param textService
+	 * @return a counter of texts that uses queryTexts with MaxResults 1
+	 */
+	public static ActionCounter textCounter(final TextServicePortType textService) {
+		return new ActionCounter() {
+			@Override
+			public int count(ActionQuery query) throws ServiceFault {
+				query.setMaxResults(1);
+				return textService.queryTexts(query).getTotalResults();
+			}
+		};
+	}
+
+	/**
+	 * @param callService
+	 * @return a counter of calls that uses queryCalls with MaxResults 1
+	 */
+	public static ActionCounter callCounter(final CallServicePortType callService) {
+		return new ActionCounter() {
+			@Override
+			public int count(ActionQuery query) throws ServiceFault {
+				query.setMaxResults(1);
+				return callService.queryCalls(query).getTotalResults();
+			}
+		};
+	}
+
+	/**
+	 * @param result
+	 * @return true if the result is final, i.e. the action won't be attempted again;
+	 * UNDIALED isn't, though a scrubbed action also ends with it
+	 */
+	public static boolean isFinished(Result result) {
+		return result != null && !PENDING.contains(result);
+	}
+
+	/**
+	 * @param result
+	 * @return true if the result means the recipient wasn't reached
+	 */
+	public static boolean isFailure(Result result) {
+		return isFinished(result) && !SUCCESSES.contains(result);
+	}
+
+	/**
+	 * Fetches the broadcast's current totals and any buckets that closed since the last refresh.
+	 * @return the current totals
+	 * @throws ServiceFault
+	 */
+	public synchronized Snapshot refresh() throws ServiceFault {
+		long now = System.currentTimeMillis();
+		// skip buckets that would fall out of the series anyway
+		long oldest = (now / bucketMs - maxBuckets) * bucketMs;
+		if (nextBucketBegin < oldest) {
+			nextBucketBegin = oldest;
+		}
+		while (nextBucketBegin + bucketMs <= now) {
+			long end = nextBucketBegin + bucketMs;
+			series.add(new Bucket(nextBucketBegin, end, fetch(calendar(nextBucketBegin), calendar(end))));
+			nextBucketBegin = end;
+		}
+		if (series.size() > maxBuckets) {
+			series.subList(0, series.size() - maxBuckets).clear();
+		}
+		BroadcastStats stats = fetch(null, null);
+		latest = new Snapshot(stats, countScrubbed(stats));
+		return latest;
+	}
+
+	/**
+	 * @return the totals from the last refresh, or null before the first one
+	 */
+	public synchronized Snapshot getLatest() {
+		return latest;
+	}
+
+	/**
+	 * @return the closed buckets, oldest first
+	 */
+	public synchronized List<Bucket> getSeries() {
+		return new ArrayList<Bucket>(series);
+	}
+
+	/**
+	 * Builds the query for the actions that failed, so that texts or calls
+	 * are only listed when the counters show there is something to find.
+	 * @param snapshot
+	 * @return a query for the failed actions, or null if there are none
+	 */
+	public ActionQuery newFailureQuery(Snapshot snapshot) {
+		if (snapshot.getFailed() == 0) {
+			return null;
+		}
+		ActionQuery query = new ActionQuery();
+		query.setBroadcastId(broadcastId);
+		query.getResult().addAll(snapshot.getFailedResults());
+		return query;
+	}
+
+	public long getBroadcastId() {
+		return broadcastId;
+	}
+
+	private BroadcastStats fetch(Calendar begin, Calendar end) throws ServiceFault {
+		GetBroadcastStats request = new GetBroadcastStats();
+		request.setId(broadcastId);
+		request.setIntervalBegin(begin);
+		request.setIntervalEnd(end);
+		return broadcastService.getBroadcastStats(request);
+	}
+
+	/**
+	 * @return the actions that ended UNDIALED because they were scrubbed as
+	 * duplicate or invalid, only queried if there are UNDIALED actions
+	 */
+	private int countScrubbed(BroadcastStats stats) throws ServiceFault {
+		if (scrubbedCounter == null) {
+			return 0;
+		}
+		boolean undialed = false;
+		for (BroadcastStats.ResultStat resultStat : stats.getResultStat()) {
+			undialed |= resultStat.getResult() == Result.UNDIALED && resultStat.getActions() > 0;
+		}
+		if (!undialed) {
+			return 0;
+		}
+		ActionQuery query = new ActionQuery();
+		query.setBroadcastId(broadcastId);
+		query.getState().add(ActionState.DUP);
+		query.getState().add(ActionState.INVALID);
+		query.getResult().add(Result.UNDIALED);
+		return scrubbedCounter.count(query);
+	}
+
+	private static Calendar calendar(long millis) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		return calendar;
+	}
+
+	/**
+	 * Counters of a broadcast, or of one interval of it.
+	 */
+	public static class Snapshot {
+		private final int actions;
+		private final int attempts;
+		private final float billedAmount;
+		private final Map<Result, Integer> results = new EnumMap<Result, Integer>(Result.class);
+		private int finished;
+		private int failed;
+
+		/**
+		 * @param stats
+		 * @param scrubbed the UNDIALED actions that are finished, being duplicate or invalid
+		 */
+		Snapshot(BroadcastStats stats, int scrubbed) {
+			BroadcastStats.UsageStats usage = stats.getUsageStats();
+			actions = usage == null ? 0 : usage.getActions();
+			attempts = usage == null ? 0 : usage.getAttempts();
+			billedAmount = usage == null ? 0 : usage.getBilledAmount();
+			for (BroadcastStats.ResultStat resultStat : stats.getResultStat()) {
+				if (resultStat.getResult() == null) {
+					continue;
+				}
+				results.put(resultStat.getResult(), resultStat.getActions());
+				if (resultStat.getResult() == Result.UNDIALED) {
+					// scrubbed actions are finished, neither reached nor failed
+					finished += Math.min(scrubbed, resultStat.getActions());
+				}
+				if (!isFinished(resultStat.getResult())) {
+					continue;
+				}
+				finished += resultStat.getActions();
+				if (isFailure(resultStat.getResult())) {
+					failed += resultStat.getActions();
+				}
+			}
+		}
+
+		public int getActions() {
+			return actions;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public float getBilledAmount() {
+			return billedAmount;
+		}
+
+		/**
+		 * @return the number of actions with a final result
+		 */
+		public int getFinished() {
+			return finished;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return the number of actions still waiting for a final result; without
+		 * a scrubbed counter this includes actions scrubbed as duplicate or invalid
+		 */
+		public int getRemaining() {
+			return Math.max(0, actions - finished);
+		}
+
+		/**
+		 * @param result
+		 * @return the number of actions with result
+		 */
+		public int getCount(Result result) {
+			Integer count = results.get(result);
+			return count == null ? 0 : count;
+		}
+
+		public Set<Result> getFailedResults() {
+			Set<Result> failedResults = EnumSet.noneOf(Result.class);
+			for (Map.Entry<Result, Integer> entry : results.entrySet()) {
+				if (isFailure(entry.getKey()) && entry.getValue() > 0) {
+					failedResults.add(entry.getKey());
+				}
+			}
+			return failedResults;
+		}
+
+		@Override
+		public String toString() {
+			return finished + " of " + actions + " finished, " + failed + " failed " + results;
+		}
+	}
+
+	/**
+	 * The counters of one closed time interval.
+	 */
+	public static class Bucket extends Snapshot {
+		private final long begin;
+		private final long end;
+
+		Bucket(long begin, long end, BroadcastStats stats) {
+			// scrubbed actions are never counted per interval
+			super(stats, 0);
+			this.begin = begin;
+			this.end = end;
+		}
+
+		public long getBegin() {
+			return begin;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		/**
+		 * @return final results per second over the interval
+		 */
+		public double getThroughput() {
+			return getFinished() * 1000.0 / (end - begin);
+		}
+	}
+}
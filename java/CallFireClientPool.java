@@ -0,0 +1,357 @@
+import java.util.Map;
+
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.soap.MTOMFeature;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ContactServicePortType;
+import com.callfire.api.service.wsdl.SubscriptionServicePortType;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.wsdl.http.soap12.CallFireApi;
+import com.callfire.api.service.wsdl.http.soap12.CallFireApi.ServiceState;
+import com.callfire.api.service.xsd.FaultCode;
+
+/**
+ * Creates and pools the CallFire service ports for one set of credentials.
+ *
+ * The WSDL is parsed once, when the underlying {@link CallFireApi} is
+ * created, and every service type gets its own {@link PortPool}. The
+ * get*Service methods return thread-safe ports that can be shared by any
+ * number of sender threads. The pooled ports reuse their connections across
+ * calls through the keep-alive of the HttpURLConnections that JAX-WS posts
+ * with, not through the session they maintain.
+ *
+ * When created with {@link PortWrapper}s, such as {@link ThrottledPorts}
+ * and {@link ResilientPorts}, the get*Service ports go through each of
+ * them in turn, the last one first. They work outside the pool, so a
+ * port is only held during an attempt and never while waiting to retry
+ * or for a call to be allowed.
+ */
+public class CallFireClientPool {
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	/**
+	 * Creates the ports that are pooled, one call per pooled port.
+	 */
+	public interface PortFactory {
+		BroadcastServicePortType createBroadcastService();
+
+		TextServicePortType createTextService();
+
+		CallServicePortType createCallService();
+
+		ContactServicePortType createContactService();
+
+		SubscriptionServicePortType createSubscriptionService();
+
+		/**
+		 * Creates the one thread-safe port that streams query results, it isn't pooled.
+		 */
+		ActionStreamPort createActionStream();
+
+		/**
+		 * Creates the one thread-safe transport to the REST API, it isn't pooled.
+		 */
+		RestTransport createRestTransport();
+	}
+
+	private final PortPool<BroadcastServicePortType> broadcastPorts;
+	private final PortPool<TextServicePortType> textPorts;
+	private final PortPool<CallServicePortType> callPorts;
+	private final PortPool<ContactServicePortType> contactPorts;
+	private final PortPool<SubscriptionServicePortType> subscriptionPorts;
+	private final BroadcastServicePortType broadcastService;
+	private final TextServicePortType textService;
+	private final CallServicePortType callService;
+	private final ContactServicePortType contactService;
+	private final SubscriptionServicePortType subscriptionService;
+	private final PortFactory factory;
+	private final PortWrapper[] wrappers;
+	// created on first use, since it creates ports of its own to find its endpoints
+	private volatile ActionStreamPort actionStream;
+	private final InstrumentedPorts instrumentation;
+
+	public CallFireClientPool(String user, String password, ServiceState serviceState, int poolSize) {
+		this(user, password, serviceState, poolSize, new PortWrapper[0]);
+	}
+
+	/**
+	 * @param user
+	 * @param password
+	 * @param serviceState
+	 * @param poolSize
+	 * @param wrappers wrap the shared ports, the first one outermost
+	 */
+	public CallFireClientPool(String user, String password, ServiceState serviceState, int poolSize,
+			PortWrapper... wrappers) {
+		this(new SoapPortFactory(user, password, serviceState, poolSize), poolSize, wrappers);
+	}
+
+	/**
+	 * @param factory
+	 * @param poolSize
+	 * @param wrappers wrap the shared ports, the first one outermost
+	 */
+	public CallFireClientPool(final PortFactory factory, int poolSize, PortWrapper... wrappers) {
+		broadcastPorts = new PortPool<BroadcastServicePortType>(BroadcastServicePortType.class,
+				new PortPool.Factory<BroadcastServicePortType>() {
+					@Override
+					public BroadcastServicePortType create() {
+						return factory.createBroadcastService();
+					}
+				}, poolSize);
+		textPorts = new PortPool<TextServicePortType>(TextServicePortType.class,
+				new PortPool.Factory<TextServicePortType>() {
+					@Override
+					public TextServicePortType create() {
+						return factory.createTextService();
+					}
+				}, poolSize);
+		callPorts = new PortPool<CallServicePortType>(CallServicePortType.class,
+				new PortPool.Factory<CallServicePortType>() {
+					@Override
+					public CallServicePortType create() {
+						return factory.createCallService();
+					}
+				}, poolSize);
+		contactPorts = new PortPool<ContactServicePortType>(ContactServicePortType.class,
+				new PortPool.Factory<ContactServicePortType>() {
+					@Override
+					public ContactServicePortType create() {
+						return factory.createContactService();
+					}
+				}, poolSize);
+		subscriptionPorts = new PortPool<SubscriptionServicePortType>(SubscriptionServicePortType.class,
+				new PortPool.Factory<SubscriptionServicePortType>() {
+					@Override
+					public SubscriptionServicePortType create() {
+						return factory.createSubscriptionService();
+					}
+				}, poolSize);
+		broadcastService = shared(broadcastPorts, wrappers);
+		textService = shared(textPorts, wrappers);
+		callService = shared(callPorts, wrappers);
+		contactService = shared(contactPorts, wrappers);
+		subscriptionService = shared(subscriptionPorts, wrappers);
+		this.factory = factory;
+		this.wrappers = wrappers.clone();
+		InstrumentedPorts instrumented = null;
+		for (PortWrapper wrapper : wrappers) {
+			if (wrapper instanceof InstrumentedPorts) {
+				instrumented = (InstrumentedPorts)wrapper;
+			}
+		}
+		instrumentation = instrumented;
+	}
+
+	private static <T> T shared(PortPool<T> ports, PortWrapper[] wrappers) {
+		return wrap(ports.getPortType(), ports.shared(), wrappers);
+	}
+
+	private static <T> T wrap(Class<T> portType, T port, PortWrapper[] wrappers) {
+		for (int i = wrappers.length - 1; i >= 0; i--) {
+			port = wrappers[i].wrap(portType, port);
+		}
+		return port;
+	}
+
+	/**
+	 * Creates a pool from the sample.properties settings user, password and
+	 * port_pool_size, with retries configured as in
+	 * {@link ResilientPorts#fromConfiguration(Configuration)} around limits
+	 * configured as in {@link ThrottledPorts#fromConfiguration(Configuration)},
+	 * so every attempt is limited, and recorded by instrumentation configured
+	 * as in {@link InstrumentedPorts#fromConfiguration(Configuration)}. The
+	 * operations listed in rest_operations go over REST, as in
+	 * {@link RestPorts#fromConfiguration(Configuration, PortFactory)}. When offline is
+	 * true the ports are backed by an in-process {@link FakeCallFireService}
+	 * instead of the CallFire API, failing offline_fault_rate of the calls.
+	 * @param config
+	 * @param serviceState
+	 * @return a new pool
+	 */
+	public static CallFireClientPool fromConfiguration(Configuration config, ServiceState serviceState) {
+		int poolSize = config.getInt("port_pool_size", DEFAULT_POOL_SIZE);
+		ResilientPorts resilience = ResilientPorts.fromConfiguration(config);
+		ThrottledPorts throttle = ThrottledPorts.fromConfiguration(config);
+		InstrumentedPorts instrumentation = InstrumentedPorts.fromConfiguration(config);
+		PortFactory factory;
+		if (config.getBoolean("offline", false)) {
+			FakeCallFireService fake = new FakeCallFireService();
+			fake.setLatency(config.getLong("offline_latency_ms", 50), config.getLong("offline_latency_jitter_ms", 50));
+			fake.setFaultRate(config.getDouble("offline_fault_rate", 0), FaultCode.UNAVAILABLE);
+			factory = fake;
+		}
+		else {
+			factory = new SoapPortFactory(config.getString("user"), config.getString("password"), serviceState,
+					poolSize);
+		}
+		// innermost, so calls over REST are retried, limited and recorded too
+		RestPorts rest = RestPorts.fromConfiguration(config, factory);
+		if (rest == null) {
+			return new CallFireClientPool(factory, poolSize, resilience, throttle, instrumentation);
+		}
+		return new CallFireClientPool(factory, poolSize, resilience, throttle, instrumentation, rest);
+	}
+
+	public BroadcastServicePortType getBroadcastService() {
+		return broadcastService;
+	}
+
+	public TextServicePortType getTextService() {
+		return textService;
+	}
+
+	public CallServicePortType getCallService() {
+		return callService;
+	}
+
+	public ContactServicePortType getContactService() {
+		return contactService;
+	}
+
+	public SubscriptionServicePortType getSubscriptionService() {
+		return subscriptionService;
+	}
+
+	/**
+	 * @return a port that decodes only the fields asked for of each text or call
+	 * of a query, wrapped like the other shared ports
+	 */
+	public ActionStreamPort getActionStream() {
+		ActionStreamPort stream = actionStream;
+		if (stream == null) {
+			synchronized (this) {
+				stream = actionStream;
+				if (stream == null) {
+					stream = wrap(ActionStreamPort.class, factory.createActionStream(), wrappers);
+					actionStream = stream;
+				}
+			}
+		}
+		return stream;
+	}
+
+	/**
+	 * @return the instrumentation the shared ports were created with, or null
+	 */
+	public InstrumentedPorts getInstrumentation() {
+		return instrumentation;
+	}
+
+	public PortPool<BroadcastServicePortType> getBroadcastPorts() {
+		return broadcastPorts;
+	}
+
+	public PortPool<TextServicePortType> getTextPorts() {
+		return textPorts;
+	}
+
+	public PortPool<CallServicePortType> getCallPorts() {
+		return callPorts;
+	}
+
+	public PortPool<ContactServicePortType> getContactPorts() {
+		return contactPorts;
+	}
+
+	public PortPool<SubscriptionServicePortType> getSubscriptionPorts() {
+		return subscriptionPorts;
+	}
+
+	/**
+	 * Creates SOAP 1.2 ports for the CallFire API.
+	 *
+	 * Call service ports send and receive sound data as MTOM attachments and
+	 * stream request bodies in HTTP chunks, so large audio is neither base64
+	 * encoded nor buffered whole before it is sent.
+	 */
+	private static class SoapPortFactory implements PortFactory {
+		// the chunk size property of the JDK's bundled JAX-WS and of the standalone RI
+		private static final String[] CHUNK_SIZE_PROPERTIES = {
+			"com.sun.xml.internal.ws.transport.http.client.streaming.chunk.size",
+			"com.sun.xml.ws.transport.http.client.streaming.chunk.size"
+		};
+		private static final int CHUNK_SIZE = 64 * 1024;
+
+		private final CallFireApi callFireApi;
+		private final String user;
+		private final String password;
+
+		SoapPortFactory(String user, String password, ServiceState serviceState, int poolSize) {
+			this.user = user;
+			this.password = password;
+			// the JDK only keeps this many idle connections per host alive,
+			// allow one for each pooled port unless it was configured explicitly
+			if (System.getProperty("http.maxConnections") == null) {
+				System.setProperty("http.maxConnections", String.valueOf(Math.max(5, poolSize)));
+			}
+			callFireApi = new CallFireApi(user, password, serviceState);
+		}
+
+		@Override
+		public BroadcastServicePortType createBroadcastService() {
+			return configure(callFireApi.getBroadcastServicePort());
+		}
+
+		@Override
+		public TextServicePortType createTextService() {
+			return configure(callFireApi.getTextServicePort());
+		}
+
+		@Override
+		public CallServicePortType createCallService() {
+			CallServicePortType port = configure(callFireApi.getCallServicePort(new MTOMFeature()));
+			Map<String, Object> context = ((BindingProvider)port).getRequestContext();
+			for (String property : CHUNK_SIZE_PROPERTIES) {
+				context.put(property, CHUNK_SIZE);
+			}
+			return port;
+		}
+
+		@Override
+		public ContactServicePortType createContactService() {
+			return configure(callFireApi.getContactServicePort());
+		}
+
+		@Override
+		public SubscriptionServicePortType createSubscriptionService() {
+			return configure(callFireApi.getSubscriptionServicePort());
+		}
+
+		@Override
+		public ActionStreamPort createActionStream() {
+			// posted to the same addresses as the ports, which depend on the service state
+			return SoapActionStream.overHttp(endpoint(callFireApi.getTextServicePort()),
+					endpoint(callFireApi.getCallServicePort()), user, password);
+		}
+
+		@Override
+		public RestTransport createRestTransport() {
+			// the REST API sits beside the SOAP one, e.g. .../api/1.0/rest next to .../api/1.0/soap12/text
+			String endpoint = endpoint(callFireApi.getTextServicePort());
+			int soap = endpoint.lastIndexOf("/soap12/");
+			if (soap < 0) {
+				throw new IllegalStateException("can't find the REST API next to " + endpoint);
+			}
+			return RestTransport.overHttp(endpoint.substring(0, soap) + "/rest", user, password);
+		}
+
+		private static String endpoint(Object port) {
+			return (String)((BindingProvider)port).getRequestContext().get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+		}
+
+		private <T> T configure(T port) {
+			synchronized (callFireApi) {
+				Map<String, Object> context = ((BindingProvider)port).getRequestContext();
+				// only keeps the session cookie between calls, connections are
+				// reused by HttpURLConnection's keep-alive either way
+				context.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, Boolean.TRUE);
+			}
+			return port;
+		}
+	}
+}
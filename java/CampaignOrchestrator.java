@@ -0,0 +1,296 @@
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs many broadcast campaigns at once, each on its own thread.
+ *
+ * A campaign is any create, upload, start, track and clean up workflow
+ * written as plain blocking code. On a JVM with virtual threads every
+ * campaign gets a virtual thread, so hundreds of them can block on uploads
+ * and polls at the same time; on older JVMs a cached pool of platform
+ * threads is used instead. Calls to the API are bounded separately for
+ * each service by wrapping its port with {@link #limit(Class, Object)}.
+ *
+ * {@link #runAll(Map)} starts every campaign, waits for all of them and
+ * returns a {@link Report}, so the total time is that of the slowest
+ * campaign rather than the sum of them all.
+ */
+public class CampaignOrchestrator implements Closeable {
+	private static final Logger LOG = Logger.getLogger(CampaignOrchestrator.class.getName());
+
+	public static final int DEFAULT_MAX_CALLS_PER_ENDPOINT = 8;
+
+	private final int maxCallsPerEndpoint;
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final ConcurrentMap<Class<?>, Semaphore> endpointLimits = new ConcurrentHashMap<Class<?>, Semaphore>();
+
+	public CampaignOrchestrator() {
+		this(DEFAULT_MAX_CALLS_PER_ENDPOINT);
+	}
+
+	/**
+	 * @param maxCallsPerEndpoint the number of calls to one service that may
+	 * be in flight at once across every campaign
+	 */
+	public CampaignOrchestrator(int maxCallsPerEndpoint) {
+		if (maxCallsPerEndpoint <= 0) {
+			throw new IllegalArgumentException("maxCallsPerEndpoint must be positive: " + maxCallsPerEndpoint);
+		}
+		this.maxCallsPerEndpoint = maxCallsPerEndpoint;
+		ExecutorService virtual = newVirtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "campaign-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return Executors.newVirtualThreadPerTaskExecutor() when the JVM has it, otherwise null
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+		catch (Exception e) {
+			// e.g. virtual threads are a disabled preview feature
+			LOG.fine("virtual threads unavailable: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Bounds the calls made through a port. Every port of the same type
+	 * wrapped by this orchestrator shares one fair semaphore, so waiting
+	 * campaigns are served in order.
+	 * @param portType
+	 * @param port a thread-safe port, e.g. from CallFireClientPool
+	 * @return a port that waits for a permit around every call
+	 */
+	public <T> T limit(Class<T> portType, final T port) {
+		endpointLimits.putIfAbsent(portType, new Semaphore(maxCallsPerEndpoint, true));
+		final Semaphore permits = endpointLimits.get(portType);
+		return portType.cast(Proxy.newProxyInstance(portType.getClassLoader(), new Class<?>[] { portType },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(this, args);
+						}
+						permits.acquire();
+						try {
+							return method.invoke(port, args);
+						}
+						catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						finally {
+							permits.release();
+						}
+					}
+				}));
+	}
+
+	/**
+	 * Starts a single campaign.
+	 * @param name
+	 * @param campaign
+	 * @return the campaign's outcome once it has finished, never failed
+	 */
+	public <R> Future<Outcome<R>> submit(final String name, final Callable<R> campaign) {
+		return executor.submit(new Callable<Outcome<R>>() {
+			@Override
+			public Outcome<R> call() {
+				long start = System.currentTimeMillis();
+				try {
+					R result = campaign.call();
+					return new Outcome<R>(name, result, null, System.currentTimeMillis() - start);
+				}
+				catch (Exception e) {
+					return new Outcome<R>(name, null, e, System.currentTimeMillis() - start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs every campaign concurrently and waits for all of them.
+	 * @param campaigns by name, outcomes are reported in the same order
+	 * @return the outcome of every campaign
+	 * @throws InterruptedException
+	 */
+	public <R> Report<R> runAll(Map<String, ? extends Callable<R>> campaigns) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		Map<String, Future<Outcome<R>>> futures = new LinkedHashMap<String, Future<Outcome<R>>>();
+		for (Map.Entry<String, ? extends Callable<R>> campaign : campaigns.entrySet()) {
+			futures.put(campaign.getKey(), submit(campaign.getKey(), campaign.getValue()));
+		}
+
+		List<Outcome<R>> outcomes = new ArrayList<Outcome<R>>(futures.size());
+		try {
+			for (Future<Outcome<R>> future : futures.values()) {
+				outcomes.add(future.get());
+			}
+		}
+		catch (ExecutionException e) {
+			// submit catches every Exception, so this is an Error
+			throw new RuntimeException("campaign failed", e.getCause());
+		}
+		catch (InterruptedException e) {
+			for (Future<Outcome<R>> future : futures.values()) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+		return new Report<R>(outcomes, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return true if campaigns run on virtual threads
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public int getMaxCallsPerEndpoint() {
+		return maxCallsPerEndpoint;
+	}
+
+	/**
+	 * Interrupts any running campaigns.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * The result, or failure, of one campaign.
+	 */
+	public static class Outcome<R> {
+		private final String name;
+		private final R result;
+		private final Exception failure;
+		private final long elapsedMs;
+
+		Outcome(String name, R result, Exception failure, long elapsedMs) {
+			this.name = name;
+			this.result = result;
+			this.failure = failure;
+			this.elapsedMs = elapsedMs;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public R getResult() {
+			return result;
+		}
+
+		/**
+		 * @return the exception the campaign threw, or null if it succeeded
+		 */
+		public Exception getFailure() {
+			return failure;
+		}
+
+		public boolean isSuccess() {
+			return failure == null;
+		}
+
+		public long getElapsedMs() {
+			return elapsedMs;
+		}
+
+		@Override
+		public String toString() {
+			return name + (failure == null ? " succeeded" : " failed (" + failure + ")") + " in " + elapsedMs + "ms";
+		}
+	}
+
+	/**
+	 * The outcomes of a set of campaigns run together.
+	 */
+	public static class Report<R> {
+		private final List<Outcome<R>> outcomes;
+		private final long elapsedMs;
+
+		Report(List<Outcome<R>> outcomes, long elapsedMs) {
+			this.outcomes = Collections.unmodifiableList(outcomes);
+			this.elapsedMs = elapsedMs;
+		}
+
+		public List<Outcome<R>> getOutcomes() {
+			return outcomes;
+		}
+
+		/**
+		 * @return the wall-clock time from the first start to the last finish
+		 */
+		public long getElapsedMs() {
+			return elapsedMs;
+		}
+
+		public int getSucceeded() {
+			int succeeded = 0;
+			for (Outcome<R> outcome : outcomes) {
+				if (outcome.isSuccess()) {
+					succeeded++;
+				}
+			}
+			return succeeded;
+		}
+
+		public int getFailed() {
+			return outcomes.size() - getSucceeded();
+		}
+
+		/**
+		 * @return the sum of every campaign's time, i.e. how long they would take one after another
+		 */
+		public long getSequentialMs() {
+			long sum = 0;
+			for (Outcome<R> outcome : outcomes) {
+				sum += outcome.getElapsedMs();
+			}
+			return sum;
+		}
+
+		@Override
+		public String toString() {
+			return outcomes.size() + " campaigns, " + getSucceeded() + " succeeded, " + getFailed() + " failed in "
+					+ elapsedMs + "ms (" + getSequentialMs() + "ms sequentially)";
+		}
+	}
+}
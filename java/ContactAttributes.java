@@ -0,0 +1,242 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+import com.callfire.api.data.ToNumber;
+
+/**
+ * An immutable set of merge attributes, shared by every recipient that
+ * has the same attributes.
+ *
+ * Attribute names are interned, so each name is a single QName however
+ * many recipients use it, and every set is canonical within its
+ * {@link Pool}: building the same attributes twice returns the same
+ * instance, and their values are interned along with them. A batch where
+ * every recipient has the same attributes therefore holds one set, and one
+ * where a few attributes differ per recipient holds one set per distinct
+ * combination, derived from a shared set with {@link #with(QName, String)}.
+ * Memory grows with the distinct names, values and combinations rather
+ * than with the number of recipients.
+ *
+ * The values and sets are held by the pool, which the caller keeps for one
+ * upload or broadcast, so they go away with it rather than accumulating
+ * for the life of the process. Only the names, which are the few merge
+ * fields of the templates, are interned for good.
+ *
+ * A ToNumber still needs a map of its own, which {@link #applyTo(ToNumber)}
+ * fills as each ToNumber is created during upload.
+ */
+public final class ContactAttributes {
+	private static final ConcurrentMap<String, QName> NAMES = new ConcurrentHashMap<String, QName>();
+
+	/**
+	 * The attribute values and sets of one upload or broadcast.
+	 */
+	public static final class Pool {
+		private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+		private final ConcurrentMap<ContactAttributes, ContactAttributes> sets =
+				new ConcurrentHashMap<ContactAttributes, ContactAttributes>();
+		private final ContactAttributes none = canonical(new ContactAttributes(this, new QName[0], new String[0]));
+
+		/**
+		 * @return the empty set
+		 */
+		public ContactAttributes none() {
+			return none;
+		}
+
+		/**
+		 * @param attributes
+		 * @return the shared set of the same attributes
+		 */
+		public ContactAttributes of(Map<QName, String> attributes) {
+			ContactAttributes set = none;
+			for (Map.Entry<QName, String> attribute : attributes.entrySet()) {
+				set = set.with(attribute.getKey(), attribute.getValue());
+			}
+			return set;
+		}
+
+		/**
+		 * @return the number of distinct attribute sets built so far
+		 */
+		public int getSharedSets() {
+			return sets.size();
+		}
+
+		private String intern(String value) {
+			String interned = values.putIfAbsent(value, value);
+			return interned == null ? value : interned;
+		}
+
+		private ContactAttributes canonical(ContactAttributes set) {
+			ContactAttributes shared = sets.putIfAbsent(set, set);
+			return shared == null ? set : shared;
+		}
+	}
+
+	private final Pool pool;
+	// sorted by local part, then namespace
+	private final QName[] names;
+	private final String[] values;
+	private final int hash;
+
+	private ContactAttributes(Pool pool, QName[] names, String[] values) {
+		this.pool = pool;
+		this.names = names;
+		this.values = values;
+		this.hash = 31 * Arrays.hashCode(names) + Arrays.hashCode(values);
+	}
+
+	/**
+	 * @param localPart e.g. regTimeWindow
+	 * @return the one QName for localPart
+	 */
+	public static QName name(String localPart) {
+		QName name = NAMES.get(localPart);
+		if (name == null) {
+			NAMES.putIfAbsent(localPart, new QName(localPart));
+			name = NAMES.get(localPart);
+		}
+		return name;
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @return the shared set of these attributes with name set to value
+	 */
+	public ContactAttributes with(String name, String value) {
+		return with(name(name), value);
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @return the shared set of these attributes with name set to value
+	 */
+	public ContactAttributes with(QName name, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("no value for " + name);
+		}
+		int index = indexOf(name);
+		if (index >= 0 && values[index].equals(value)) {
+			return this;
+		}
+		QName[] newNames;
+		String[] newValues;
+		if (index >= 0) {
+			newNames = names;
+			newValues = values.clone();
+		}
+		else {
+			index = -index - 1;
+			newNames = new QName[names.length + 1];
+			newValues = new String[values.length + 1];
+			System.arraycopy(names, 0, newNames, 0, index);
+			System.arraycopy(values, 0, newValues, 0, index);
+			System.arraycopy(names, index, newNames, index + 1, names.length - index);
+			System.arraycopy(values, index, newValues, index + 1, values.length - index);
+			newNames[index] = intern(name);
+		}
+		newValues[index] = pool.intern(value);
+		return pool.canonical(new ContactAttributes(pool, newNames, newValues));
+	}
+
+	/**
+	 * @param name
+	 * @return the value of name, or null if it isn't set
+	 */
+	public String get(QName name) {
+		int index = indexOf(name);
+		return index < 0 ? null : values[index];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Adds these attributes to toNumber's merge attributes.
+	 * @param toNumber
+	 */
+	public void applyTo(ToNumber toNumber) {
+		if (names.length == 0) {
+			return;
+		}
+		Map<QName, String> attributes = toNumber.getOtherAttributes();
+		for (int i = 0; i < names.length; i++) {
+			attributes.put(names[i], values[i]);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ContactAttributes)) {
+			return false;
+		}
+		ContactAttributes other = (ContactAttributes)obj;
+		return hash == other.hash && Arrays.equals(names, other.names) && Arrays.equals(values, other.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder string = new StringBuilder("{");
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				string.append(", ");
+			}
+			string.append(names[i]).append('=').append(values[i]);
+		}
+		return string.append('}').toString();
+	}
+
+	/**
+	 * @return the index of name, or -(insertion point) - 1 if it isn't set
+	 */
+	private int indexOf(QName name) {
+		int low = 0;
+		int high = names.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int compared = compare(names[middle], name);
+			if (compared < 0) {
+				low = middle + 1;
+			}
+			else if (compared > 0) {
+				high = middle - 1;
+			}
+			else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static int compare(QName a, QName b) {
+		if (a == b) {
+			return 0;
+		}
+		int compared = a.getLocalPart().compareTo(b.getLocalPart());
+		return compared != 0 ? compared : a.getNamespaceURI().compareTo(b.getNamespaceURI());
+	}
+
+	private static QName intern(QName name) {
+		// only names without a namespace are interned, they are all the merge fields use
+		if (name.getNamespaceURI().length() == 0 && name.getPrefix().length() == 0) {
+			return name(name.getLocalPart());
+		}
+		return name;
+	}
+}
@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import com.callfire.api.data.ToNumber;
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.xsd.CreateContactBatch;
+
+/**
+ * Uploads an arbitrarily large stream of recipients to a broadcast as a
+ * series of size-bounded contact batches.
+ *
+ * Recipients are pulled lazily from an iterator and cut into chunks of at
+ * most chunkSize numbers. Up to maxInFlight createContactBatch calls run
+ * concurrently; once that many chunks are outstanding, reading from the
+ * source blocks until one completes. At most maxInFlight + 1 chunks are
+ * ever held in memory, so peak heap does not grow with the list size.
+ *
+ * Every chunk is sent with a RequestId, so a retried chunk isn't added
+ * twice. With a {@link SendJournal} the chunks are also recorded, and
+ * uploading the same recipients to the same broadcast under the same name
+ * again only sends the chunks that didn't complete before; the rest are
+ * read past and their recorded batch ids returned, until the broadcast's
+ * uploads are marked {@link #complete(long) complete}. A chunk is keyed by
+ * a hash of its numbers and attributes, so one whose recipients changed,
+ * e.g. because the source was edited or reordered, is sent again.
+ *
+ * The supplied port must be safe to call from several threads at once
+ * when maxInFlight is greater than one.
+ */
+public class ContactBatchUploader {
+	private static final Logger LOG = Logger.getLogger(ContactBatchUploader.class.getName());
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_CHUNK_SIZE = 5000;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	private final BroadcastServicePortType broadcastService;
+	private final int chunkSize;
+	private final int maxInFlight;
+	private final SendJournal journal;
+
+	public ContactBatchUploader(BroadcastServicePortType broadcastService) {
+		this(broadcastService, null);
+	}
+
+	/**
+	 * @param broadcastService
+	 * @param journal records the chunks sent so an upload can be resumed, or null
+	 */
+	public ContactBatchUploader(BroadcastServicePortType broadcastService, SendJournal journal) {
+		this(broadcastService, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IN_FLIGHT, journal);
+	}
+
+	public ContactBatchUploader(BroadcastServicePortType broadcastService, int chunkSize, int maxInFlight) {
+		this(broadcastService, chunkSize, maxInFlight, null);
+	}
+
+	/**
+	 * @param broadcastService
+	 * @param chunkSize
+	 * @param maxInFlight
+	 * @param journal records the chunks sent so an upload can be resumed, or null
+	 */
+	public ContactBatchUploader(BroadcastServicePortType broadcastService, int chunkSize, int maxInFlight,
+			SendJournal journal) {
+		if (chunkSize <= 0 || maxInFlight <= 0) {
+			throw new IllegalArgumentException("chunkSize and maxInFlight must be positive");
+		}
+		this.broadcastService = broadcastService;
+		this.chunkSize = chunkSize;
+		this.maxInFlight = maxInFlight;
+		this.journal = journal;
+	}
+
+	/**
+	 * Streams the recipients into one or more contact batches on the given broadcast.
+	 * @param name the batch name, chunks after the first are suffixed with their number
+	 * @param broadcastId
+	 * @param toNumbers
+	 * @return the batch id of every chunk, in upload order
+	 * @throws ServiceFault the first fault returned by any chunk; no further chunks are sent
+	 */
+	public List<Long> upload(String name, long broadcastId, Iterator<ToNumber> toNumbers) throws ServiceFault {
+		ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final AtomicBoolean failed = new AtomicBoolean();
+		List<Future<Long>> chunks = new ArrayList<Future<Long>>();
+		try {
+			while (toNumbers.hasNext()) {
+				// back-pressure: don't read more recipients until a slot frees up
+				inFlight.acquireUninterruptibly();
+				if (failed.get()) {
+					inFlight.release();
+					break;
+				}
+
+				final CreateContactBatch chunk = new CreateContactBatch();
+				int chunkNumber = chunks.size() + 1;
+				chunk.setName(chunkNumber == 1 ? name : name + " (" + chunkNumber + ")");
+				chunk.setBroadcastId(broadcastId);
+				// callers drop duplicates before they are uploaded, see RecipientDeduplicator
+				chunk.setScrubBroadcastDuplicates(false);
+				List<ToNumber> chunkNumbers = chunk.getToNumber();
+				while (chunkNumbers.size() < chunkSize && toNumbers.hasNext()) {
+					chunkNumbers.add(toNumbers.next());
+				}
+
+				// the chunk is identified by its content, not just its position
+				final String key = "createContactBatch/" + broadcastId + "/" + chunk.getName() + "/"
+						+ hash(chunkNumbers);
+				chunks.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws ServiceFault, IOException {
+						try {
+							if (journal == null) {
+								return send(chunk, SendJournal.newRequestId());
+							}
+							return journal.send(key, new SendJournal.Send() {
+								@Override
+								public long send(String requestId) throws ServiceFault {
+									return ContactBatchUploader.this.send(chunk, requestId);
+								}
+							});
+						}
+						catch (ServiceFault e) {
+							failed.set(true);
+							throw e;
+						}
+						catch (IOException e) {
+							failed.set(true);
+							throw e;
+						}
+						catch (RuntimeException e) {
+							failed.set(true);
+							throw e;
+						}
+						finally {
+							inFlight.release();
+						}
+					}
+				}));
+			}
+
+			List<Long> batchIds = new ArrayList<Long>(chunks.size());
+			for (Future<Long> chunk : chunks) {
+				batchIds.add(getBatchId(chunk));
+			}
+			return batchIds;
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Creates a contact batch of every contact in a contact list, e.g. one
+	 * kept up to date by {@link ContactListManager}, without uploading them.
+	 * @param name
+	 * @param broadcastId
+	 * @param contactListId
+	 * @return the batch id
+	 * @throws ServiceFault
+	 */
+	public long upload(String name, long broadcastId, final long contactListId) throws ServiceFault {
+		final CreateContactBatch batch = new CreateContactBatch();
+		batch.setName(name);
+		batch.setBroadcastId(broadcastId);
+		batch.setContactListId(contactListId);
+		batch.setScrubBroadcastDuplicates(false);
+		if (journal == null) {
+			return send(batch, SendJournal.newRequestId());
+		}
+		try {
+			String key = "createContactBatch/" + broadcastId + "/list/" + contactListId + "/" + name;
+			return journal.send(key, new SendJournal.Send() {
+				@Override
+				public long send(String requestId) throws ServiceFault {
+					return ContactBatchUploader.this.send(batch, requestId);
+				}
+			});
+		}
+		catch (IOException e) {
+			throw new RuntimeException("exception journaling contact batch", e);
+		}
+	}
+
+	/**
+	 * Marks the journaled chunks of every upload to broadcastId complete, so
+	 * that uploading them again sends them afresh. Called once the broadcast
+	 * is done with, e.g. polled to the end.
+	 * @param broadcastId
+	 * @throws IOException if the journal can't be written
+	 */
+	public void complete(long broadcastId) throws IOException {
+		if (journal != null) {
+			journal.complete("createContactBatch/" + broadcastId + "/");
+		}
+	}
+
+	/**
+	 * @param toNumbers
+	 * @return the SHA-256 of the numbers and their attributes, in hex
+	 */
+	private static String hash(List<ToNumber> toNumbers) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		StringBuilder content = new StringBuilder();
+		for (ToNumber toNumber : toNumbers) {
+			content.setLength(0);
+			content.append(toNumber.getValue());
+			// attributes in a fixed order, whatever the order of the map
+			Map<String, String> attributes = new TreeMap<String, String>();
+			for (Map.Entry<QName, String> attribute : toNumber.getOtherAttributes().entrySet()) {
+				attributes.put(attribute.getKey().toString(), attribute.getValue());
+			}
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				content.append('\u0000').append(attribute.getKey()).append('=').append(attribute.getValue());
+			}
+			content.append('\n');
+			digest.update(content.toString().getBytes(UTF_8));
+		}
+
+		StringBuilder hex = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private long send(CreateContactBatch chunk, String requestId) throws ServiceFault {
+		chunk.setRequestId(requestId);
+		long batchId = broadcastService.createContactBatch(chunk);
+		if (chunk.getContactListId() != null) {
+			LOG.info("created batch: " + batchId + " from contact list " + chunk.getContactListId());
+		}
+		else {
+			LOG.info("created batch: " + batchId + " with " + chunk.getToNumber().size() + " contacts");
+		}
+		return batchId;
+	}
+
+	/**
+	 * @param toNumbers raw numbers, e.g. as returned from PropertiesConfiguration.getList
+	 * @param attributes merge attributes shared by every recipient, may be null
+	 * @return an iterator that creates each ToNumber only when it is requested
+	 */
+	public static Iterator<ToNumber> toNumbers(final Iterable<?> toNumbers, final ContactAttributes attributes) {
+		final Iterator<?> numbers = toNumbers.iterator();
+		return new Iterator<ToNumber>() {
+			@Override
+			public boolean hasNext() {
+				return numbers.hasNext();
+			}
+
+			@Override
+			public ToNumber next() {
+				ToNumber toNumberElem = new ToNumber();
+				toNumberElem.setValue(String.valueOf(numbers.next()));
+				if (attributes != null) {
+					attributes.applyTo(toNumberElem);
+				}
+				return toNumberElem;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @param toNumbers raw numbers mapped to their merge attributes, which
+	 * recipients with the same attributes share
+	 * @return an iterator that creates each ToNumber only when it is requested
+	 */
+	public static Iterator<ToNumber> toNumbers(final Map<String, ContactAttributes> toNumbers) {
+		final Iterator<Map.Entry<String, ContactAttributes>> entries = toNumbers.entrySet().iterator();
+		return new Iterator<ToNumber>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public ToNumber next() {
+				Map.Entry<String, ContactAttributes> entry = entries.next();
+				ToNumber toNumberElem = new ToNumber();
+				toNumberElem.setValue(entry.getKey());
+				entry.getValue().applyTo(toNumberElem);
+				return toNumberElem;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static long getBatchId(Future<Long> chunk) throws ServiceFault {
+		try {
+			return chunk.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted uploading contact batch", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ServiceFault) {
+				throw (ServiceFault)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new RuntimeException("exception uploading contact batch", cause);
+		}
+	}
+}
@@ -0,0 +1,413 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.callfire.api.data.Contact;
+import com.callfire.api.data.ToNumber;
+import com.callfire.api.service.wsdl.ContactServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.xsd.ContactListRequest;
+import com.callfire.api.service.xsd.ContactSource;
+import com.callfire.api.service.xsd.CreateContactList;
+import com.callfire.api.service.xsd.FaultCode;
+import com.callfire.api.service.xsd.IdRequest;
+import com.callfire.api.service.xsd.QueryContacts;
+
+/**
+ * Keeps CallFire contact lists in step with local sources of recipients,
+ * so recurring campaigns start their batches from a list instead of
+ * uploading every recipient again.
+ *
+ * The first time a list is synced every recipient is uploaded into a new
+ * contact list. A snapshot of what was uploaded is kept locally: each
+ * normalized number with a 64 bit fingerprint of its merge attributes,
+ * 16 bytes a recipient, in a file per list. The next sync reads the source
+ * once and compares it with the snapshot, adding the recipients that are
+ * new, replacing the ones whose attributes changed, and removing the ones
+ * that are gone; a source that hasn't changed sends nothing but one query.
+ * That query checks the list still holds as many contacts as the snapshot,
+ * and a list that was deleted, changed elsewhere or left half synced by a
+ * failed sync is uploaded afresh.
+ *
+ * Recipients are expected to be normalized and free of duplicates, see
+ * {@link RecipientDeduplicator}. Instances are not thread-safe.
+ */
+public class ContactListManager {
+	private static final Logger LOG = Logger.getLogger(ContactListManager.class.getName());
+	private static final int SNAPSHOT_VERSION = 1;
+	// the contact field recipients are stored in, and removed by
+	private static final String PHONE_FIELD = "mobilePhone";
+
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	private final ContactServicePortType contactService;
+	private final File directory;
+	private final int chunkSize;
+
+	/**
+	 * @param contactService
+	 * @param directory where list snapshots are kept, created if missing
+	 */
+	public ContactListManager(ContactServicePortType contactService, File directory) {
+		this(contactService, directory, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param contactService
+	 * @param directory where list snapshots are kept, created if missing
+	 * @param chunkSize the most contacts added or removed in one request
+	 */
+	public ContactListManager(ContactServicePortType contactService, File directory, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		this.contactService = contactService;
+		this.directory = directory;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Creates a manager from the sample.properties setting contact_list_dir.
+	 * @param config
+	 * @param contactService
+	 * @return the manager, or null if contact_list_dir isn't set
+	 */
+	public static ContactListManager fromConfiguration(Configuration config, ContactServicePortType contactService) {
+		String directory = config.getString("contact_list_dir");
+		if (directory == null || directory.trim().length() == 0) {
+			return null;
+		}
+		return new ContactListManager(contactService, new File(directory.trim()));
+	}
+
+	/**
+	 * Brings the named contact list up to date with the recipients.
+	 * @param name the list's name, which also identifies its snapshot
+	 * @param toNumbers normalized recipients without duplicates
+	 * @return the id of the contact list
+	 * @throws ServiceFault
+	 * @throws IOException if the snapshot can't be read or written
+	 */
+	public long sync(String name, Iterator<ToNumber> toNumbers) throws ServiceFault, IOException {
+		File file = snapshotFile(name);
+		Snapshot previous = file.exists() ? Snapshot.read(file) : null;
+		if (previous != null && !matches(previous)) {
+			LOG.info("contact list " + previous.listId + " for " + name + " no longer matches its snapshot");
+			delete(previous.listId);
+			previous = null;
+		}
+
+		Sync sync = previous == null ? new Sync(name, file) : new Sync(previous);
+		while (toNumbers.hasNext()) {
+			sync.offer(toNumbers.next());
+		}
+		Snapshot current = sync.finish();
+		current.write(file);
+		LOG.info("contact list " + current.listId + " for " + name + ": " + sync);
+		return current.listId;
+	}
+
+	/**
+	 * @param name
+	 * @return the id of the named list as last synced, or null if it never was
+	 * @throws IOException
+	 */
+	public Long getListId(String name) throws IOException {
+		File file = snapshotFile(name);
+		return file.exists() ? Snapshot.read(file).listId : null;
+	}
+
+	/**
+	 * @return true if the list still exists with as many contacts as the snapshot
+	 */
+	private boolean matches(Snapshot snapshot) throws ServiceFault {
+		QueryContacts query = new QueryContacts();
+		query.setContactListId(snapshot.listId);
+		query.setMaxResults(1);
+		try {
+			return contactService.queryContacts(query).getTotalResults() == snapshot.size;
+		}
+		catch (ServiceFault e) {
+			if (e.getFaultInfo() != null && e.getFaultInfo().getFaultCode() == FaultCode.NOT_FOUND) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private void delete(long listId) throws ServiceFault {
+		IdRequest request = new IdRequest();
+		request.setId(listId);
+		try {
+			contactService.deleteContactList(request);
+		}
+		catch (ServiceFault e) {
+			if (e.getFaultInfo() == null || e.getFaultInfo().getFaultCode() != FaultCode.NOT_FOUND) {
+				throw e;
+			}
+		}
+	}
+
+	private File snapshotFile(String name) {
+		// names may contain anything, so the file is named after a hash of the name
+		return new File(directory, "contact-list-" + SendJournal.key("list", name).substring("list/".length())
+				+ ".snapshot");
+	}
+
+	/**
+	 * @param attributes
+	 * @return a hash of the attributes that doesn't depend on their order
+	 */
+	static long fingerprint(Map<QName, String> attributes) {
+		long fingerprint = 0;
+		for (Map.Entry<QName, String> attribute : attributes.entrySet()) {
+			long hash = hash(hash(1125899906842597L, attribute.getKey().toString()), attribute.getValue());
+			// mixed before summing, so that swapped values don't cancel out
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			fingerprint += hash;
+		}
+		return fingerprint;
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash = 31 * hash + value.charAt(i);
+		}
+		return 31 * hash;
+	}
+
+	/**
+	 * One pass over a source, sending changes to the list in chunks.
+	 */
+	private class Sync {
+		private final String name;
+		private final File file;
+		private final Snapshot previous;
+		// which numbers of previous are still in the source
+		private final BitSet kept;
+		private long listId;
+		private long[] numbers = new long[1024];
+		private long[] fingerprints = new long[1024];
+		private int size;
+		private final List<Contact> adds = new ArrayList<Contact>();
+		private final List<String> removes = new ArrayList<String>();
+		private long added;
+		private long removed;
+		private long changed;
+		private long invalid;
+
+		Sync(String name, File file) {
+			this.name = name;
+			this.file = file;
+			this.previous = null;
+			this.kept = new BitSet();
+			this.listId = -1;
+		}
+
+		Sync(Snapshot previous) {
+			this.name = null;
+			this.file = null;
+			this.previous = previous;
+			this.kept = new BitSet(previous.size);
+			this.listId = previous.listId;
+		}
+
+		void offer(ToNumber toNumber) throws ServiceFault, IOException {
+			long number = PhoneNumbers.normalize(toNumber.getValue());
+			if (number == PhoneNumbers.INVALID) {
+				invalid++;
+				return;
+			}
+			long fingerprint = fingerprint(toNumber.getOtherAttributes());
+			append(number, fingerprint);
+
+			int index = previous == null ? -1 : Arrays.binarySearch(previous.numbers, number);
+			if (index >= 0) {
+				kept.set(index);
+				if (previous.fingerprints[index] == fingerprint) {
+					return;
+				}
+				// the old contact is removed before its replacement is added
+				removes.add(PhoneNumbers.toDigits(number));
+				changed++;
+			}
+			else {
+				added++;
+			}
+			Contact contact = new Contact();
+			contact.setMobilePhone(PhoneNumbers.toDigits(number));
+			contact.getOtherAttributes().putAll(toNumber.getOtherAttributes());
+			adds.add(contact);
+			if (adds.size() >= chunkSize || removes.size() >= chunkSize) {
+				flush();
+			}
+		}
+
+		Snapshot finish() throws ServiceFault, IOException {
+			if (previous != null) {
+				for (int i = kept.nextClearBit(0); i < previous.size; i = kept.nextClearBit(i + 1)) {
+					removes.add(PhoneNumbers.toDigits(previous.numbers[i]));
+					removed++;
+					if (removes.size() >= chunkSize) {
+						flush();
+					}
+				}
+			}
+			flush();
+			return Snapshot.sorted(listId, numbers, fingerprints, size);
+		}
+
+		private void flush() throws ServiceFault, IOException {
+			if (listId < 0) {
+				// a new list is created with its first chunk
+				CreateContactList create = new CreateContactList();
+				create.setRequestId(SendJournal.newRequestId());
+				create.setName(name);
+				create.setContactSource(contacts(adds));
+				listId = contactService.createContactList(create);
+				adds.clear();
+				// an empty snapshot records the new list at once, so if this
+				// sync fails the next one finds the list doesn't match it and
+				// deletes it, rather than leaving it orphaned
+				new Snapshot(listId, new long[0], new long[0], 0).write(file);
+				return;
+			}
+			if (!removes.isEmpty()) {
+				ContactListRequest request = new ContactListRequest();
+				request.setContactListId(listId);
+				ContactSource source = new ContactSource();
+				ContactSource.Numbers numbers = new ContactSource.Numbers();
+				numbers.setFieldName(PHONE_FIELD);
+				numbers.getValue().addAll(removes);
+				source.setNumbers(numbers);
+				request.setContactSource(source);
+				contactService.removeContactsFromList(request);
+				removes.clear();
+			}
+			if (!adds.isEmpty()) {
+				ContactListRequest request = new ContactListRequest();
+				request.setContactListId(listId);
+				request.setContactSource(contacts(adds));
+				contactService.addContactsToList(request);
+				adds.clear();
+			}
+		}
+
+		private ContactSource contacts(List<Contact> contacts) {
+			ContactSource source = new ContactSource();
+			source.getContact().addAll(contacts);
+			return source;
+		}
+
+		private void append(long number, long fingerprint) {
+			if (size == numbers.length) {
+				numbers = Arrays.copyOf(numbers, size * 2);
+				fingerprints = Arrays.copyOf(fingerprints, size * 2);
+			}
+			numbers[size] = number;
+			fingerprints[size] = fingerprint;
+			size++;
+		}
+
+		@Override
+		public String toString() {
+			return size + " contacts, " + added + " added, " + changed + " changed, " + removed + " removed, "
+					+ invalid + " invalid skipped";
+		}
+	}
+
+	/**
+	 * The numbers of a list, sorted, with the fingerprint of each one's attributes.
+	 */
+	private static class Snapshot {
+		final long listId;
+		final long[] numbers;
+		final long[] fingerprints;
+		final int size;
+
+		Snapshot(long listId, long[] numbers, long[] fingerprints, int size) {
+			this.listId = listId;
+			this.numbers = numbers;
+			this.fingerprints = fingerprints;
+			this.size = size;
+		}
+
+		static Snapshot sorted(long listId, long[] numbers, long[] fingerprints, int size) {
+			// sort the pairs by number, through an index sorted on the numbers
+			long[] sortedNumbers = Arrays.copyOf(numbers, size);
+			Arrays.sort(sortedNumbers);
+			long[] sortedFingerprints = new long[size];
+			for (int i = 0; i < size; i++) {
+				sortedFingerprints[Arrays.binarySearch(sortedNumbers, numbers[i])] = fingerprints[i];
+			}
+			return new Snapshot(listId, sortedNumbers, sortedFingerprints, size);
+		}
+
+		static Snapshot read(File file) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				int version = in.readInt();
+				if (version != SNAPSHOT_VERSION) {
+					throw new IOException("unknown contact list snapshot version " + version + " in " + file);
+				}
+				long listId = in.readLong();
+				int size = in.readInt();
+				long[] numbers = new long[size];
+				long[] fingerprints = new long[size];
+				for (int i = 0; i < size; i++) {
+					numbers[i] = in.readLong();
+					fingerprints[i] = in.readLong();
+				}
+				return new Snapshot(listId, numbers, fingerprints, size);
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Replaces the file with this snapshot, by writing a new file and renaming it.
+		 */
+		void write(File file) throws IOException {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("can't create " + parent);
+			}
+			File temp = new File(parent, file.getName() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeLong(listId);
+				out.writeInt(size);
+				for (int i = 0; i < size; i++) {
+					out.writeLong(numbers[i]);
+					out.writeLong(fingerprints[i]);
+				}
+			}
+			finally {
+				out.close();
+			}
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+				throw new IOException("can't replace " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+import java.io.Closeable;
+import java.util.Iterator;
+
+import com.callfire.api.data.ToNumber;
+
+/**
+ * A lazily read stream of contacts, each carrying its merge attributes
+ * in {@link ToNumber#getOtherAttributes()}.
+ *
+ * Sources are read once, front to back, and can be handed straight to
+ * {@link ContactBatchUploader#upload(String, long, Iterator)} without the
+ * full list ever being materialized. I/O errors are rethrown as
+ * RuntimeExceptions from {@link #hasNext()} and {@link #next()}.
+ */
+public interface ContactSource extends Iterator<ToNumber>, Closeable {
+}
@@ -0,0 +1,1421 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+
+import com.callfire.api.data.Action;
+import com.callfire.api.data.ActionRecord;
+import com.callfire.api.data.ActionState;
+import com.callfire.api.data.BatchStatus;
+import com.callfire.api.data.Broadcast;
+import com.callfire.api.data.BroadcastSchedule;
+import com.callfire.api.data.BroadcastStats;
+import com.callfire.api.data.BroadcastStatus;
+import com.callfire.api.data.BroadcastType;
+import com.callfire.api.data.Call;
+import com.callfire.api.data.CallRecord;
+import com.callfire.api.data.Contact;
+import com.callfire.api.data.ContactBatch;
+import com.callfire.api.data.ContactHistory;
+import com.callfire.api.data.ContactList;
+import com.callfire.api.data.NotificationFormat;
+import com.callfire.api.data.Result;
+import com.callfire.api.data.SoundMeta;
+import com.callfire.api.data.SoundStatus;
+import com.callfire.api.data.Subscription;
+import com.callfire.api.data.Subscription.SubscriptionFilter;
+import com.callfire.api.data.Text;
+import com.callfire.api.data.TextRecord;
+import com.callfire.api.data.ToNumber;
+import com.callfire.api.notification.wsdl.CallNotificationPortType;
+import com.callfire.api.notification.wsdl.TextNotificationPortType;
+import com.callfire.api.notification.wsdl.http.soap12.NotificationApi;
+import com.callfire.api.notification.xsd.CallFinished;
+import com.callfire.api.notification.xsd.TextNotification;
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ContactServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.wsdl.SubscriptionServicePortType;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.xsd.ActionQuery;
+import com.callfire.api.service.xsd.AutoReplyQueryResult;
+import com.callfire.api.service.xsd.BroadcastCommand;
+import com.callfire.api.service.xsd.BroadcastQueryResult;
+import com.callfire.api.service.xsd.BroadcastRequest;
+import com.callfire.api.service.xsd.BroadcastScheduleQueryResult;
+import com.callfire.api.service.xsd.CallQueryResult;
+import com.callfire.api.service.xsd.ContactBatchQueryResult;
+import com.callfire.api.service.xsd.ContactListQueryResult;
+import com.callfire.api.service.xsd.ContactListRequest;
+import com.callfire.api.service.xsd.ContactQueryResult;
+import com.callfire.api.service.xsd.ContactSource;
+import com.callfire.api.service.xsd.ControlBroadcast;
+import com.callfire.api.service.xsd.ControlContactBatch;
+import com.callfire.api.service.xsd.CreateAutoReply;
+import com.callfire.api.service.xsd.CreateBroadcastSchedule;
+import com.callfire.api.service.xsd.CreateContactBatch;
+import com.callfire.api.service.xsd.CreateContactList;
+import com.callfire.api.service.xsd.CreateSound;
+import com.callfire.api.service.xsd.FaultCode;
+import com.callfire.api.service.xsd.GetBroadcastStats;
+import com.callfire.api.service.xsd.GetRecordingData;
+import com.callfire.api.service.xsd.GetSoundData;
+import com.callfire.api.service.xsd.IdRequest;
+import com.callfire.api.service.xsd.Query;
+import com.callfire.api.service.xsd.QueryBroadcastSchedules;
+import com.callfire.api.service.xsd.QueryBroadcasts;
+import com.callfire.api.service.xsd.QueryContactBatches;
+import com.callfire.api.service.xsd.QueryContacts;
+import com.callfire.api.service.xsd.RemoveContacts;
+import com.callfire.api.service.xsd.SendCall;
+import com.callfire.api.service.xsd.SendRequest;
+import com.callfire.api.service.xsd.SendText;
+import com.callfire.api.service.xsd.ServiceFaultInfo;
+import com.callfire.api.service.xsd.SoundMetaQueryResult;
+import com.callfire.api.service.xsd.SubscriptionQueryResult;
+import com.callfire.api.service.xsd.SubscriptionRequest;
+import com.callfire.api.service.xsd.TextQueryResult;
+import com.callfire.api.service.xsd.UpdateContacts;
+
+/**
+ * An in-process stand-in for the CallFire broadcast, text, call, contact and subscription services.
+ *
+ * Everything is kept in memory and no network is used, so the samples and
+ * the throughput helpers can be exercised and benchmarked offline. Each
+ * call waits for a configurable latency and can fail with a ServiceFault
+ * at a configurable rate. Started broadcasts dispatch their actions at
+ * dispatchRate per second; each action moves from READY to SELECTED when
+ * dispatched and to FINISHED, with a final Result, deliveryDelayMs later.
+ * Progress is computed lazily from the clock whenever the service is queried.
+ *
+ * Once a subscription exists a background thread also advances the
+ * broadcasts every NOTIFY_INTERVAL_MS and posts a SOAP TextSent or
+ * CallFinished notification for each finished action to the endpoint of
+ * every matching, enabled SOAP subscription.
+ *
+ * Requests that carry a RequestId are carried out once; repeating one
+ * returns the id created the first time.
+ *
+ * Returned objects are the service's own instances and must be treated as
+ * read-only.
+ */
+public class FakeCallFireService implements BroadcastServicePortType, TextServicePortType, CallServicePortType,
+		ContactServicePortType, SubscriptionServicePortType, CallFireClientPool.PortFactory {
+	private static final Logger LOG = Logger.getLogger(FakeCallFireService.class.getName());
+	private static final int DEFAULT_MAX_RESULTS = 1000;
+	private static final long NOTIFY_INTERVAL_MS = 50;
+	private static final Result[] CALL_RESULTS = { Result.LA, Result.LA, Result.LA, Result.AM };
+
+	private final AtomicLong ids = new AtomicLong(1000);
+	private final Map<Long, FakeBroadcast> broadcasts = new ConcurrentHashMap<Long, FakeBroadcast>();
+	private final Map<Long, ContactBatch> batches = new ConcurrentHashMap<Long, ContactBatch>();
+	private final Map<Long, BroadcastSchedule> schedules = new ConcurrentHashMap<Long, BroadcastSchedule>();
+	private final Map<Long, SoundMeta> sounds = new ConcurrentHashMap<Long, SoundMeta>();
+	private final Map<Long, byte[]> soundData = new ConcurrentHashMap<Long, byte[]>();
+	private final Map<Long, Subscription> subscriptions = new ConcurrentHashMap<Long, Subscription>();
+	private final Map<Long, Contact> contacts = new ConcurrentHashMap<Long, Contact>();
+	private final Map<Long, FakeContactList> contactLists = new ConcurrentHashMap<Long, FakeContactList>();
+	// ids created for each RequestId, so a repeated request returns the first result
+	private final ConcurrentHashMap<String, Long> requestIds = new ConcurrentHashMap<String, Long>();
+	private final Random random = new Random();
+
+	private volatile long latencyMs;
+	private volatile long latencyJitterMs;
+	private volatile double faultRate;
+	private volatile FaultCode faultCode = FaultCode.UNAVAILABLE;
+	private volatile double dispatchRate = 1000;
+	private volatile long deliveryDelayMs = 500;
+	private volatile double failedResultRate;
+
+	// only used by the notifier thread
+	private ScheduledExecutorService notifier;
+	private NotificationApi notificationApi;
+	private final Map<String, TextNotificationPortType> textNotificationPorts = new HashMap<String, TextNotificationPortType>();
+	private final Map<String, CallNotificationPortType> callNotificationPorts = new HashMap<String, CallNotificationPortType>();
+
+	/**
+	 * Sets the time every call takes, uniformly distributed in [latencyMs, latencyMs + jitterMs].
+	 */
+	public void setLatency(long latencyMs, long jitterMs) {
+		this.latencyMs = latencyMs;
+		this.latencyJitterMs = jitterMs;
+	}
+
+	/**
+	 * @param faultRate the fraction of calls, between 0 and 1, that fail
+	 * @param faultCode the fault code of the injected ServiceFaults
+	 */
+	public void setFaultRate(double faultRate, FaultCode faultCode) {
+		this.faultRate = faultRate;
+		this.faultCode = faultCode;
+	}
+
+	/**
+	 * @param dispatchRate actions dispatched per second by each running broadcast
+	 * @param deliveryDelayMs time between an action being dispatched and finishing
+	 */
+	public void setDelivery(double dispatchRate, long deliveryDelayMs) {
+		if (dispatchRate <= 0) {
+			throw new IllegalArgumentException("dispatchRate must be positive: " + dispatchRate);
+		}
+		this.dispatchRate = dispatchRate;
+		this.deliveryDelayMs = deliveryDelayMs;
+	}
+
+	/**
+	 * @param failedResultRate the fraction of actions that finish with a failed Result
+	 */
+	public void setFailedResultRate(double failedResultRate) {
+		this.failedResultRate = failedResultRate;
+	}
+
+	// CallFireClientPool.PortFactory, the fake is thread-safe so every port is this instance
+
+	@Override
+	public BroadcastServicePortType createBroadcastService() {
+		return this;
+	}
+
+	@Override
+	public TextServicePortType createTextService() {
+		return this;
+	}
+
+	@Override
+	public CallServicePortType createCallService() {
+		return this;
+	}
+
+	@Override
+	public ContactServicePortType createContactService() {
+		return this;
+	}
+
+	@Override
+	public SubscriptionServicePortType createSubscriptionService() {
+		return this;
+	}
+
+	@Override
+	public ActionStreamPort createActionStream() {
+		// there is no SOAP endpoint, so results are marshalled only to be decoded again
+		return SoapActionStream.overPorts(this, this);
+	}
+
+	@Override
+	public RestTransport createRestTransport() {
+		// requests are parsed back from their parameters, and results marshalled into resources
+		return RestTransport.overPorts(this, this, this);
+	}
+
+	// BroadcastServicePortType
+
+	@Override
+	public long createBroadcast(BroadcastRequest request) throws ServiceFault {
+		simulateCall("createBroadcast");
+		Long previous = previousResult(request.getRequestId());
+		if (previous != null) {
+			return previous;
+		}
+		Broadcast broadcast = request.getBroadcast();
+		if (broadcast == null) {
+			throw fault(FaultCode.BAD_REQUEST, "broadcast is required");
+		}
+		return result(request.getRequestId(), addBroadcast(broadcast).id);
+	}
+
+	@Override
+	public void updateBroadcast(BroadcastRequest request) throws ServiceFault {
+		simulateCall("updateBroadcast");
+		Broadcast update = request.getBroadcast();
+		FakeBroadcast fake = getFakeBroadcast(update.getId() == null ? 0 : update.getId());
+		synchronized (fake) {
+			update.setStatus(fake.broadcast.getStatus());
+			update.setType(fake.broadcast.getType());
+			update.setLastModified(now());
+			fake.broadcast = update;
+		}
+	}
+
+	@Override
+	public Broadcast getBroadcast(IdRequest request) throws ServiceFault {
+		simulateCall("getBroadcast");
+		FakeBroadcast fake = getFakeBroadcast(request.getId());
+		synchronized (fake) {
+			fake.advance(System.currentTimeMillis());
+			return fake.broadcast;
+		}
+	}
+
+	@Override
+	public BroadcastQueryResult queryBroadcasts(QueryBroadcasts query) throws ServiceFault {
+		simulateCall("queryBroadcasts");
+		List<Broadcast> matches = new ArrayList<Broadcast>();
+		long now = System.currentTimeMillis();
+		for (FakeBroadcast fake : sorted(broadcasts.values())) {
+			synchronized (fake) {
+				fake.advance(now);
+				Broadcast broadcast = fake.broadcast;
+				if (!query.getType().isEmpty() && !query.getType().contains(broadcast.getType())) {
+					continue;
+				}
+				if (query.isRunning() != null && query.isRunning() != (broadcast.getStatus() == BroadcastStatus.RUNNING)) {
+					continue;
+				}
+				matches.add(broadcast);
+			}
+		}
+		BroadcastQueryResult result = new BroadcastQueryResult();
+		result.setTotalResults(matches.size());
+		result.getBroadcast().addAll(page(matches, query));
+		return result;
+	}
+
+	@Override
+	public void controlBroadcast(ControlBroadcast control) throws ServiceFault {
+		simulateCall("controlBroadcast");
+		FakeBroadcast fake = getFakeBroadcast(control.getId());
+		synchronized (fake) {
+			long now = System.currentTimeMillis();
+			fake.advance(now);
+			BroadcastCommand command = control.getCommand();
+			if (command == BroadcastCommand.START) {
+				fake.start(now);
+			}
+			else if (command == BroadcastCommand.STOP) {
+				fake.stop(now);
+			}
+			else if (command == BroadcastCommand.ARCHIVE) {
+				fake.stop(now);
+				fake.broadcast.setStatus(BroadcastStatus.ARCHIVED);
+			}
+			fake.broadcast.setLastModified(now());
+		}
+	}
+
+	@Override
+	public long createContactBatch(CreateContactBatch request) throws ServiceFault {
+		simulateCall("createContactBatch");
+		Long previous = previousResult(request.getRequestId());
+		if (previous != null) {
+			return previous;
+		}
+		FakeBroadcast fake = getFakeBroadcast(request.getBroadcastId());
+		List<ToNumber> toNumbers = request.getToNumber();
+		if (request.getContactListId() != null) {
+			toNumbers = new ArrayList<ToNumber>(toNumbers);
+			toNumbers.addAll(getFakeContactList(request.getContactListId()).toNumbers());
+		}
+		if (toNumbers.isEmpty()) {
+			throw fault(FaultCode.BAD_REQUEST, "contact batch has no numbers");
+		}
+		ContactBatch batch = new ContactBatch();
+		batch.setId(ids.incrementAndGet());
+		batch.setName(request.getName());
+		batch.setBroadcastId(fake.id);
+		batch.setCreated(now());
+		batch.setStatus(BatchStatus.ACTIVE);
+		batch.setSize(toNumbers.size());
+		batches.put(batch.getId(), batch);
+		synchronized (fake) {
+			fake.addActions(batch.getId(), toNumbers, Boolean.TRUE.equals(request.isScrubBroadcastDuplicates()),
+					System.currentTimeMillis());
+		}
+		return result(request.getRequestId(), batch.getId());
+	}
+
+	@Override
+	public ContactBatch getContactBatch(IdRequest request) throws ServiceFault {
+		simulateCall("getContactBatch");
+		ContactBatch batch = batches.get(request.getId());
+		if (batch == null) {
+			throw fault(FaultCode.NOT_FOUND, "no contact batch " + request.getId());
+		}
+		return batch;
+	}
+
+	@Override
+	public ContactBatchQueryResult queryContactBatches(QueryContactBatches query) throws ServiceFault {
+		simulateCall("queryContactBatches");
+		List<ContactBatch> matches = new ArrayList<ContactBatch>();
+		for (ContactBatch batch : batches.values()) {
+			if (batch.getBroadcastId() == query.getBroadcastId()) {
+				matches.add(batch);
+			}
+		}
+		ContactBatchQueryResult result = new ContactBatchQueryResult();
+		result.setTotalResults(matches.size());
+		result.getContactBatch().addAll(page(matches, query));
+		return result;
+	}
+
+	@Override
+	public void controlContactBatch(ControlContactBatch control) throws ServiceFault {
+		simulateCall("controlContactBatch");
+		ContactBatch batch = batches.get(control.getId());
+		if (batch == null) {
+			throw fault(FaultCode.NOT_FOUND, "no contact batch " + control.getId());
+		}
+		if (control.getName() != null) {
+			batch.setName(control.getName());
+		}
+	}
+
+	@Override
+	public long createBroadcastSchedule(CreateBroadcastSchedule request) throws ServiceFault {
+		simulateCall("createBroadcastSchedule");
+		getFakeBroadcast(request.getBroadcastId());
+		BroadcastSchedule schedule = request.getBroadcastSchedule();
+		schedule.setId(ids.incrementAndGet());
+		schedules.put(schedule.getId(), schedule);
+		return schedule.getId();
+	}
+
+	@Override
+	public BroadcastSchedule getBroadcastSchedule(IdRequest request) throws ServiceFault {
+		simulateCall("getBroadcastSchedule");
+		BroadcastSchedule schedule = schedules.get(request.getId());
+		if (schedule == null) {
+			throw fault(FaultCode.NOT_FOUND, "no broadcast schedule " + request.getId());
+		}
+		return schedule;
+	}
+
+	@Override
+	public void deleteBroadcastSchedule(IdRequest request) throws ServiceFault {
+		simulateCall("deleteBroadcastSchedule");
+		if (schedules.remove(request.getId()) == null) {
+			throw fault(FaultCode.NOT_FOUND, "no broadcast schedule " + request.getId());
+		}
+	}
+
+	@Override
+	public BroadcastScheduleQueryResult queryBroadcastSchedule(QueryBroadcastSchedules query) throws ServiceFault {
+		simulateCall("queryBroadcastSchedule");
+		// schedules don't record their broadcast, so every schedule matches
+		List<BroadcastSchedule> matches = new ArrayList<BroadcastSchedule>(schedules.values());
+		BroadcastScheduleQueryResult result = new BroadcastScheduleQueryResult();
+		result.setTotalResults(matches.size());
+		result.getBroadcastSchedule().addAll(page(matches, query));
+		return result;
+	}
+
+	@Override
+	public BroadcastStats getBroadcastStats(GetBroadcastStats request) throws ServiceFault {
+		simulateCall("getBroadcastStats");
+		FakeBroadcast fake = getFakeBroadcast(request.getId());
+		long begin = request.getIntervalBegin() == null ? Long.MIN_VALUE : request.getIntervalBegin().getTimeInMillis();
+		long end = request.getIntervalEnd() == null ? Long.MAX_VALUE : request.getIntervalEnd().getTimeInMillis();
+
+		Map<Result, int[]> counts = new EnumMap<Result, int[]>(Result.class);
+		int actions = 0;
+		int attempts = 0;
+		float billed = 0;
+		synchronized (fake) {
+			fake.advance(System.currentTimeMillis());
+			for (Action action : fake.actions) {
+				long modified = action.getModified().getTimeInMillis();
+				if (modified < begin || modified >= end) {
+					continue;
+				}
+				actions++;
+				Result finalResult = action.getFinalResult();
+				if (finalResult != null) {
+					attempts++;
+					billed += billedAmount(action);
+					int[] count = counts.get(finalResult);
+					if (count == null) {
+						count = new int[1];
+						counts.put(finalResult, count);
+					}
+					count[0]++;
+				}
+			}
+		}
+
+		BroadcastStats stats = new BroadcastStats();
+		BroadcastStats.UsageStats usage = new BroadcastStats.UsageStats();
+		usage.setActions(actions);
+		usage.setAttempts(attempts);
+		usage.setBilledAmount(billed);
+		stats.setUsageStats(usage);
+		for (Map.Entry<Result, int[]> entry : counts.entrySet()) {
+			BroadcastStats.ResultStat resultStat = new BroadcastStats.ResultStat();
+			resultStat.setResult(entry.getKey());
+			resultStat.setActions(entry.getValue()[0]);
+			resultStat.setAttempts(entry.getValue()[0]);
+			stats.getResultStat().add(resultStat);
+		}
+		return stats;
+	}
+
+	// TextServicePortType
+
+	@Override
+	public long sendText(SendText sendText) throws ServiceFault {
+		simulateCall("sendText");
+		Broadcast broadcast = new Broadcast();
+		broadcast.setName(sendText.getBroadcastName());
+		broadcast.setTextBroadcastConfig(sendText.getTextBroadcastConfig());
+		return send(broadcast, sendText);
+	}
+
+	@Override
+	public TextQueryResult queryTexts(ActionQuery query) throws ServiceFault {
+		simulateCall("queryTexts");
+		TextQueryResult result = new TextQueryResult();
+		List<Action> matches = queryActions(query, BroadcastType.TEXT);
+		result.setTotalResults(matches.size());
+		for (Action action : page(matches, query)) {
+			result.getText().add((Text)action);
+		}
+		return result;
+	}
+
+	@Override
+	public Text getText(IdRequest request) throws ServiceFault {
+		simulateCall("getText");
+		Action action = findAction(request.getId());
+		if (!(action instanceof Text)) {
+			throw fault(FaultCode.NOT_FOUND, "no text " + request.getId());
+		}
+		return (Text)action;
+	}
+
+	@Override
+	public long createAutoReply(CreateAutoReply request) throws ServiceFault {
+		throw fault(FaultCode.NOT_IMPLEMENTED, "auto replies are not simulated");
+	}
+
+	@Override
+	public AutoReplyQueryResult queryAutoReplies(Query query) throws ServiceFault {
+		throw fault(FaultCode.NOT_IMPLEMENTED, "auto replies are not simulated");
+	}
+
+	@Override
+	public com.callfire.api.data.AutoReply getAutoReply(IdRequest request) throws ServiceFault {
+		throw fault(FaultCode.NOT_IMPLEMENTED, "auto replies are not simulated");
+	}
+
+	@Override
+	public void deleteAutoReply(IdRequest request) throws ServiceFault {
+		throw fault(FaultCode.NOT_IMPLEMENTED, "auto replies are not simulated");
+	}
+
+	// CallServicePortType
+
+	@Override
+	public long sendCall(SendCall sendCall) throws ServiceFault {
+		simulateCall("sendCall");
+		Broadcast broadcast = new Broadcast();
+		broadcast.setName(sendCall.getBroadcastName());
+		broadcast.setVoiceBroadcastConfig(sendCall.getVoiceBroadcastConfig());
+		broadcast.setIvrBroadcastConfig(sendCall.getIvrBroadcastConfig());
+		return send(broadcast, sendCall);
+	}
+
+	@Override
+	public CallQueryResult queryCalls(ActionQuery query) throws ServiceFault {
+		simulateCall("queryCalls");
+		CallQueryResult result = new CallQueryResult();
+		List<Action> matches = queryActions(query, null);
+		result.setTotalResults(matches.size());
+		for (Action action : page(matches, query)) {
+			result.getCall().add((Call)action);
+		}
+		return result;
+	}
+
+	@Override
+	public Call getCall(IdRequest request) throws ServiceFault {
+		simulateCall("getCall");
+		Action action = findAction(request.getId());
+		if (!(action instanceof Call)) {
+			throw fault(FaultCode.NOT_FOUND, "no call " + request.getId());
+		}
+		return (Call)action;
+	}
+
+	@Override
+	public long createSound(CreateSound request) throws ServiceFault {
+		simulateCall("createSound");
+		if (request.getData() == null) {
+			throw fault(FaultCode.BAD_REQUEST, "sound data is required");
+		}
+		byte[] data;
+		try {
+			data = readFully(request.getData().getInputStream());
+		}
+		catch (IOException e) {
+			throw fault(FaultCode.BAD_REQUEST, "unreadable sound data: " + e.getMessage());
+		}
+		SoundMeta meta = new SoundMeta();
+		meta.setId(ids.incrementAndGet());
+		meta.setName(request.getName());
+		meta.setCreated(now());
+		meta.setStatus(SoundStatus.ACTIVE);
+		soundData.put(meta.getId(), data);
+		sounds.put(meta.getId(), meta);
+		return meta.getId();
+	}
+
+	@Override
+	public SoundMeta getSoundMeta(IdRequest request) throws ServiceFault {
+		simulateCall("getSoundMeta");
+		SoundMeta meta = sounds.get(request.getId());
+		if (meta == null) {
+			throw fault(FaultCode.NOT_FOUND, "no sound " + request.getId());
+		}
+		return meta;
+	}
+
+	@Override
+	public SoundMetaQueryResult querySoundMeta(Query query) throws ServiceFault {
+		simulateCall("querySoundMeta");
+		List<SoundMeta> matches = new ArrayList<SoundMeta>(sounds.values());
+		SoundMetaQueryResult result = new SoundMetaQueryResult();
+		result.setTotalResults(matches.size());
+		result.getSoundMeta().addAll(page(matches, query));
+		return result;
+	}
+
+	@Override
+	public DataHandler getSoundData(GetSoundData request) throws ServiceFault {
+		simulateCall("getSoundData");
+		byte[] data = soundData.get(request.getId());
+		if (data == null) {
+			throw fault(FaultCode.NOT_FOUND, "no sound " + request.getId());
+		}
+		return new DataHandler(new ByteArrayDataSource(data, "audio/mpeg"));
+	}
+
+	@Override
+	public DataHandler getRecordingData(GetRecordingData request) throws ServiceFault {
+		throw fault(FaultCode.NOT_IMPLEMENTED, "recordings are not simulated");
+	}
+
+	// SubscriptionServicePortType
+
+	@Override
+	public long createSubscription(SubscriptionRequest request) throws ServiceFault {
+		simulateCall("createSubscription");
+		Long previous = previousResult(request.getRequestId());
+		if (previous != null) {
+			return previous;
+		}
+		Subscription subscription = request.getSubscription();
+		if (subscription == null || subscription.getEndpoint() == null) {
+			throw fault(FaultCode.BAD_REQUEST, "subscription has no endpoint");
+		}
+		long id = ids.incrementAndGet();
+		subscription.setId(id);
+		subscriptions.put(id, subscription);
+		startNotifier();
+		return result(request.getRequestId(), id);
+	}
+
+	@Override
+	public SubscriptionQueryResult querySubscriptions(Query query) throws ServiceFault {
+		simulateCall("querySubscriptions");
+		List<Subscription> matches = new ArrayList<Subscription>(subscriptions.values());
+		SubscriptionQueryResult result = new SubscriptionQueryResult();
+		result.setTotalResults(matches.size());
+		result.getSubscription().addAll(page(matches, query));
+		return result;
+	}
+
+	@Override
+	public void updateSubscription(SubscriptionRequest request) throws ServiceFault {
+		simulateCall("updateSubscription");
+		Subscription subscription = request.getSubscription();
+		if (subscription == null || subscription.getId() == null || !subscriptions.containsKey(subscription.getId())) {
+			throw fault(FaultCode.NOT_FOUND, "no subscription " + (subscription == null ? null : subscription.getId()));
+		}
+		subscriptions.put(subscription.getId(), subscription);
+	}
+
+	@Override
+	public Subscription getSubscription(IdRequest request) throws ServiceFault {
+		simulateCall("getSubscription");
+		Subscription subscription = subscriptions.get(request.getId());
+		if (subscription == null) {
+			throw fault(FaultCode.NOT_FOUND, "no subscription " + request.getId());
+		}
+		return subscription;
+	}
+
+	@Override
+	public void deleteSubscription(IdRequest request) throws ServiceFault {
+		simulateCall("deleteSubscription");
+		if (subscriptions.remove(request.getId()) == null) {
+			throw fault(FaultCode.NOT_FOUND, "no subscription " + request.getId());
+		}
+	}
+
+	// ContactServicePortType
+
+	@Override
+	public long createContactList(CreateContactList request) throws ServiceFault {
+		simulateCall("createContactList");
+		Long previous = previousResult(request.getRequestId());
+		if (previous != null) {
+			return previous;
+		}
+		FakeContactList list = new FakeContactList(ids.incrementAndGet(), request.getName());
+		if (request.getContactSource() != null) {
+			addContacts(list, request.getContactSource());
+		}
+		contactLists.put(list.id, list);
+		return result(request.getRequestId(), list.id);
+	}
+
+	@Override
+	public void addContactsToList(ContactListRequest request) throws ServiceFault {
+		simulateCall("addContactsToList");
+		FakeContactList list = getFakeContactList(request.getContactListId());
+		if (request.getContactSource() == null) {
+			throw fault(FaultCode.BAD_REQUEST, "no contacts to add");
+		}
+		addContacts(list, request.getContactSource());
+	}
+
+	@Override
+	public void removeContactsFromList(ContactListRequest request) throws ServiceFault {
+		simulateCall("removeContactsFromList");
+		FakeContactList list = getFakeContactList(request.getContactListId());
+		ContactSource source = request.getContactSource();
+		if (source == null) {
+			throw fault(FaultCode.BAD_REQUEST, "no contacts to remove");
+		}
+		synchronized (list) {
+			for (Long contactId : source.getContactId()) {
+				Contact contact = contacts.get(contactId);
+				if (contact != null) {
+					list.contacts.remove(phone(contact));
+				}
+			}
+			for (Contact contact : source.getContact()) {
+				list.contacts.remove(phone(contact));
+			}
+			if (source.getNumbers() != null) {
+				for (String number : source.getNumbers().getValue()) {
+					list.contacts.remove(normalized(number));
+				}
+			}
+		}
+	}
+
+	@Override
+	public void deleteContactList(IdRequest request) throws ServiceFault {
+		simulateCall("deleteContactList");
+		if (contactLists.remove(request.getId()) == null) {
+			throw fault(FaultCode.NOT_FOUND, "no contact list " + request.getId());
+		}
+	}
+
+	@Override
+	public ContactListQueryResult queryContactLists(Query query) throws ServiceFault {
+		simulateCall("queryContactLists");
+		List<ContactList> matches = new ArrayList<ContactList>();
+		for (FakeContactList list : contactLists.values()) {
+			synchronized (list) {
+				ContactList contactList = new ContactList();
+				contactList.setId(list.id);
+				contactList.setName(list.name);
+				contactList.setCreated(list.created);
+				contactList.setSize(BigInteger.valueOf(list.contacts.size()));
+				matches.add(contactList);
+			}
+		}
+		ContactListQueryResult result = new ContactListQueryResult();
+		result.setTotalResults(matches.size());
+		result.getContactList().addAll(page(matches, query));
+		return result;
+	}
+
+	@Override
+	public ContactQueryResult queryContacts(QueryContacts query) throws ServiceFault {
+		simulateCall("queryContacts");
+		List<Contact> matches;
+		ContactQueryResult result = new ContactQueryResult();
+		if (query.getContactListId() != null) {
+			FakeContactList list = getFakeContactList(query.getContactListId());
+			synchronized (list) {
+				matches = new ArrayList<Contact>(list.contacts.values());
+			}
+			result.setContactListName(list.name);
+		}
+		else {
+			matches = new ArrayList<Contact>(contacts.values());
+		}
+		result.setTotalResults(matches.size());
+		result.getContact().addAll(page(matches, query));
+		return result;
+	}
+
+	@Override
+	public Contact getContact(IdRequest request) throws ServiceFault {
+		simulateCall("getContact");
+		Contact contact = contacts.get(request.getId());
+		if (contact == null) {
+			throw fault(FaultCode.NOT_FOUND, "no contact " + request.getId());
+		}
+		return contact;
+	}
+
+	@Override
+	public void updateContacts(UpdateContacts request) throws ServiceFault {
+		simulateCall("updateContacts");
+		for (Contact update : request.getContact()) {
+			if (update.getId() == null || !contacts.containsKey(update.getId())) {
+				throw fault(FaultCode.NOT_FOUND, "no contact " + update.getId());
+			}
+			contacts.put(update.getId(), update);
+		}
+	}
+
+	@Override
+	public void removeContacts(RemoveContacts request) throws ServiceFault {
+		simulateCall("removeContacts");
+		for (Long contactId : request.getContactId()) {
+			Contact contact = contacts.remove(contactId);
+			if (contact == null) {
+				continue;
+			}
+			for (FakeContactList list : contactLists.values()) {
+				synchronized (list) {
+					list.contacts.remove(phone(contact));
+				}
+			}
+		}
+	}
+
+	@Override
+	public ContactHistory getContactHistory(IdRequest request) throws ServiceFault {
+		simulateCall("getContactHistory");
+		throw fault(FaultCode.NOT_IMPLEMENTED, "contact history is not simulated");
+	}
+
+	// simulation
+
+	private long send(Broadcast broadcast, SendRequest request) throws ServiceFault {
+		Long previous = previousResult(request.getRequestId());
+		if (previous != null) {
+			return previous;
+		}
+		if (request.getToNumber().isEmpty()) {
+			throw fault(FaultCode.BAD_REQUEST, "no numbers to send to");
+		}
+		FakeBroadcast fake = addBroadcast(broadcast);
+		synchronized (fake) {
+			long now = System.currentTimeMillis();
+			fake.addActions(null, request.getToNumber(), Boolean.TRUE.equals(request.isScrubBroadcastDuplicates()), now);
+			fake.start(now);
+		}
+		return result(request.getRequestId(), fake.id);
+	}
+
+	private Long previousResult(String requestId) {
+		return requestId == null ? null : requestIds.get(requestId);
+	}
+
+	private long result(String requestId, long id) {
+		if (requestId != null) {
+			requestIds.putIfAbsent(requestId, id);
+		}
+		return id;
+	}
+
+	private FakeContactList getFakeContactList(long id) throws ServiceFault {
+		FakeContactList list = contactLists.get(id);
+		if (list == null) {
+			throw fault(FaultCode.NOT_FOUND, "no contact list " + id);
+		}
+		return list;
+	}
+
+	private void addContacts(FakeContactList list, ContactSource source) throws ServiceFault {
+		if (source.getFile() != null) {
+			throw fault(FaultCode.NOT_IMPLEMENTED, "contact files are not simulated");
+		}
+		List<Contact> added = new ArrayList<Contact>(source.getContact());
+		for (Long contactId : source.getContactId()) {
+			Contact contact = contacts.get(contactId);
+			if (contact == null) {
+				throw fault(FaultCode.NOT_FOUND, "no contact " + contactId);
+			}
+			added.add(contact);
+		}
+		if (source.getNumbers() != null) {
+			String field = source.getNumbers().getFieldName();
+			for (String number : source.getNumbers().getValue()) {
+				Contact contact = new Contact();
+				if ("workPhone".equals(field)) {
+					contact.setWorkPhone(number);
+				}
+				else if ("mobilePhone".equals(field)) {
+					contact.setMobilePhone(number);
+				}
+				else {
+					contact.setHomePhone(number);
+				}
+				added.add(contact);
+			}
+		}
+		synchronized (list) {
+			for (Contact contact : added) {
+				String phone = phone(contact);
+				if (phone == null) {
+					throw fault(FaultCode.BAD_REQUEST, "contact has no phone number");
+				}
+				if (contact.getId() == null) {
+					contact.setId(ids.incrementAndGet());
+					contacts.put(contact.getId(), contact);
+				}
+				list.contacts.put(phone, contact);
+			}
+		}
+	}
+
+	/**
+	 * @return the contact's number, normalized so the same number is one contact however it's written
+	 */
+	private static String phone(Contact contact) {
+		String phone = contact.getMobilePhone() != null ? contact.getMobilePhone()
+				: contact.getHomePhone() != null ? contact.getHomePhone() : contact.getWorkPhone();
+		return phone == null ? null : normalized(phone);
+	}
+
+	private static String normalized(String number) {
+		long normalized = PhoneNumbers.normalize(number);
+		return normalized == PhoneNumbers.INVALID ? number : PhoneNumbers.toDigits(normalized);
+	}
+
+	private synchronized void startNotifier() {
+		if (notifier != null) {
+			return;
+		}
+		notifier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "fake-callfire-notifier");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		notifier.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					postNotifications();
+				}
+				catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "exception posting notifications", e);
+				}
+			}
+		}, NOTIFY_INTERVAL_MS, NOTIFY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Posts a notification for every action that finished since the last run.
+	 */
+	private void postNotifications() {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (FakeBroadcast fake : sorted(broadcasts.values())) {
+			List<Action> finished;
+			synchronized (fake) {
+				fake.advance(now);
+				finished = new ArrayList<Action>(fake.actions.subList(fake.notified, fake.finished));
+				fake.notified = fake.finished;
+			}
+			for (Action action : finished) {
+				if (action.getState() != ActionState.FINISHED) {
+					continue;
+				}
+				for (Subscription subscription : subscriptions.values()) {
+					if (matches(subscription, action)) {
+						postNotification(subscription, action);
+					}
+				}
+			}
+		}
+	}
+
+	private void postNotification(Subscription subscription, Action action) {
+		String endpoint = subscription.getEndpoint();
+		try {
+			if (notificationApi == null) {
+				notificationApi = new NotificationApi();
+			}
+			if (action instanceof Text) {
+				TextNotificationPortType port = textNotificationPorts.get(endpoint);
+				if (port == null) {
+					port = notificationApi.getTextNotificationPort();
+					((BindingProvider)port).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpoint);
+					textNotificationPorts.put(endpoint, port);
+				}
+				TextNotification notification = new TextNotification();
+				notification.setSubscriptionId(subscription.getId());
+				notification.setText((Text)action);
+				port.textSent(notification);
+			}
+			else {
+				CallNotificationPortType port = callNotificationPorts.get(endpoint);
+				if (port == null) {
+					port = notificationApi.getCallNotificationPort();
+					((BindingProvider)port).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpoint);
+					callNotificationPorts.put(endpoint, port);
+				}
+				CallFinished notification = new CallFinished();
+				notification.setSubscriptionId(subscription.getId());
+				notification.setCall((Call)action);
+				port.callFinished(notification);
+			}
+		}
+		catch (WebServiceException e) {
+			// like the real service, undeliverable notifications are dropped
+			LOG.log(Level.FINE, "exception posting notification to " + endpoint, e);
+		}
+	}
+
+	private static boolean matches(Subscription subscription, Action action) {
+		if (Boolean.FALSE.equals(subscription.isEnabled())
+				|| subscription.getNotificationFormat() != NotificationFormat.SOAP) {
+			return false;
+		}
+		SubscriptionFilter filter = subscription.getSubscriptionFilter();
+		if (filter == null) {
+			return true;
+		}
+		return !Boolean.TRUE.equals(filter.isInbound())
+				&& (filter.getBroadcastId() == null || filter.getBroadcastId().equals(action.getBroadcastId()))
+				&& (filter.getBatchId() == null || filter.getBatchId().equals(action.getBatchId()))
+				&& (filter.getToNumber() == null || filter.getToNumber().equals(action.getToNumber().getValue()))
+				&& (filter.getFromNumber() == null || filter.getFromNumber().equals(action.getFromNumber()));
+	}
+
+	private FakeBroadcast addBroadcast(Broadcast broadcast) {
+		long id = ids.incrementAndGet();
+		broadcast.setId(id);
+		if (broadcast.getType() == null) {
+			broadcast.setType(broadcast.getTextBroadcastConfig() != null ? BroadcastType.TEXT
+					: broadcast.getIvrBroadcastConfig() != null ? BroadcastType.IVR : BroadcastType.VOICE);
+		}
+		broadcast.setStatus(BroadcastStatus.STOPPED);
+		broadcast.setLastModified(now());
+		FakeBroadcast fake = new FakeBroadcast(id, broadcast);
+		broadcasts.put(id, fake);
+		return fake;
+	}
+
+	private FakeBroadcast getFakeBroadcast(long broadcastId) throws ServiceFault {
+		FakeBroadcast fake = broadcasts.get(broadcastId);
+		if (fake == null) {
+			throw fault(FaultCode.NOT_FOUND, "no broadcast " + broadcastId);
+		}
+		return fake;
+	}
+
+	/**
+	 * @param type TEXT for texts, or null for voice and IVR calls
+	 */
+	private List<Action> queryActions(ActionQuery query, BroadcastType type) throws ServiceFault {
+		Collection<FakeBroadcast> candidates;
+		if (query.getBroadcastId() != null) {
+			candidates = Arrays.asList(getFakeBroadcast(query.getBroadcastId()));
+		}
+		else {
+			candidates = sorted(broadcasts.values());
+		}
+
+		long modifiedSince = query.getModifiedSince() == null ? Long.MIN_VALUE : query.getModifiedSince().getTimeInMillis();
+		long now = System.currentTimeMillis();
+		List<Action> matches = new ArrayList<Action>();
+		for (FakeBroadcast fake : candidates) {
+			synchronized (fake) {
+				boolean isText = fake.broadcast.getType() == BroadcastType.TEXT;
+				if (isText != (type == BroadcastType.TEXT)) {
+					continue;
+				}
+				fake.advance(now);
+				for (Action action : fake.actions) {
+					if (query.getBatchId() != null && !query.getBatchId().equals(action.getBatchId())) {
+						continue;
+					}
+					if (action.getModified().getTimeInMillis() < modifiedSince) {
+						continue;
+					}
+					if (!query.getState().isEmpty() && !query.getState().contains(action.getState())) {
+						continue;
+					}
+					if (!query.getResult().isEmpty() && !query.getResult().contains(action.getFinalResult())) {
+						continue;
+					}
+					if (query.getToNumber() != null && !query.getToNumber().equals(action.getToNumber().getValue())) {
+						continue;
+					}
+					if (query.getFromNumber() != null && !query.getFromNumber().equals(action.getFromNumber())) {
+						continue;
+					}
+					matches.add(action);
+				}
+			}
+		}
+		return matches;
+	}
+
+	private Action findAction(long actionId) {
+		long now = System.currentTimeMillis();
+		for (FakeBroadcast fake : broadcasts.values()) {
+			synchronized (fake) {
+				fake.advance(now);
+				for (Action action : fake.actions) {
+					if (action.getId() == actionId) {
+						return action;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private Result finalResult(boolean text) {
+		synchronized (random) {
+			if (random.nextDouble() < failedResultRate) {
+				return text ? Result.CARRIER_TEMP_ERROR : Result.NO_ANS;
+			}
+			return text ? Result.SENT : CALL_RESULTS[random.nextInt(CALL_RESULTS.length)];
+		}
+	}
+
+	private void simulateCall(String operation) throws ServiceFault {
+		long sleep = latencyMs;
+		boolean fail;
+		synchronized (random) {
+			if (latencyJitterMs > 0) {
+				sleep += (long)(random.nextDouble() * latencyJitterMs);
+			}
+			fail = faultRate > 0 && random.nextDouble() < faultRate;
+		}
+		if (sleep > 0) {
+			try {
+				Thread.sleep(sleep);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw fault(FaultCode.TIMEOUT, operation + " interrupted");
+			}
+		}
+		if (fail) {
+			throw fault(faultCode, "injected fault in " + operation);
+		}
+	}
+
+	static ServiceFault fault(FaultCode code, String message) {
+		ServiceFaultInfo info = new ServiceFaultInfo();
+		info.setFaultCode(code);
+		info.setMessage(message);
+		return new ServiceFault(message, info);
+	}
+
+	private static float billedAmount(Action action) {
+		List<? extends ActionRecord> records = action instanceof Text ? ((Text)action).getTextRecord()
+				: ((Call)action).getCallRecord();
+		float billed = 0;
+		for (ActionRecord record : records) {
+			billed += record.getBilledAmount();
+		}
+		return billed;
+	}
+
+	private static <T> List<T> page(List<T> matches, Query query) {
+		int first = query.getFirstResult() == null ? 0 : Math.max(0, query.getFirstResult());
+		int max = query.getMaxResults() == null ? DEFAULT_MAX_RESULTS : Math.max(0, query.getMaxResults());
+		if (first >= matches.size()) {
+			return new ArrayList<T>(0);
+		}
+		return matches.subList(first, (int)Math.min(matches.size(), (long)first + max));
+	}
+
+	private static List<FakeBroadcast> sorted(Collection<FakeBroadcast> values) {
+		List<FakeBroadcast> sorted = new ArrayList<FakeBroadcast>(values);
+		java.util.Collections.sort(sorted, new java.util.Comparator<FakeBroadcast>() {
+			@Override
+			public int compare(FakeBroadcast a, FakeBroadcast b) {
+				return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+			}
+		});
+		return sorted;
+	}
+
+	private static Calendar now() {
+		return Calendar.getInstance();
+	}
+
+	private static Calendar calendar(long millis) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		return calendar;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The simulated state of one broadcast. Actions are dispatched in the
+	 * order they were added, so two cursors are enough to track progress.
+	 * All access is synchronized on the instance.
+	 */
+	private class FakeBroadcast {
+		final long id;
+		Broadcast broadcast;
+		final List<Action> actions = new ArrayList<Action>();
+		final OutstandingNumbers numbers = new OutstandingNumbers(16);
+		long[] dispatchAt = new long[16];
+		int scheduled;
+		int selected;
+		int finished;
+		int notified;
+		double nextSlot;
+		boolean running;
+
+		FakeBroadcast(long id, Broadcast broadcast) {
+			this.id = id;
+			this.broadcast = broadcast;
+		}
+
+		void addActions(Long batchId, List<ToNumber> toNumbers, boolean scrubDuplicates, long now) {
+			boolean text = broadcast.getType() == BroadcastType.TEXT;
+			String message = text && broadcast.getTextBroadcastConfig() != null
+					? broadcast.getTextBroadcastConfig().getMessage() : null;
+			String fromNumber = text ? (broadcast.getTextBroadcastConfig() == null ? null
+					: broadcast.getTextBroadcastConfig().getFromNumber())
+					: (broadcast.getVoiceBroadcastConfig() == null ? null
+					: broadcast.getVoiceBroadcastConfig().getFromNumber());
+			Calendar created = calendar(now);
+			for (ToNumber toNumber : toNumbers) {
+				boolean duplicate = !numbers.add(toNumber.getValue());
+				Action action = text ? new Text() : new Call();
+				action.setId(ids.incrementAndGet());
+				action.setBroadcastId(id);
+				action.setBatchId(batchId);
+				action.setToNumber(toNumber);
+				action.setFromNumber(fromNumber);
+				action.setCreated(created);
+				action.setModified(created);
+				if (text) {
+					((Text)action).setMessage(render(message, toNumber.getOtherAttributes()));
+				}
+				if (duplicate && scrubDuplicates) {
+					action.setState(ActionState.DUP);
+					action.setFinalResult(Result.UNDIALED);
+				}
+				else if (PhoneNumbers.normalize(toNumber.getValue()) == PhoneNumbers.INVALID) {
+					action.setState(ActionState.INVALID);
+					action.setFinalResult(Result.UNDIALED);
+				}
+				else {
+					action.setState(ActionState.READY);
+				}
+				actions.add(action);
+			}
+			if (running) {
+				schedule(now);
+			}
+		}
+
+		void start(long now) {
+			running = true;
+			broadcast.setStatus(BroadcastStatus.RUNNING);
+			schedule(now);
+		}
+
+		void stop(long now) {
+			running = false;
+			broadcast.setStatus(BroadcastStatus.STOPPED);
+			// actions that were not dispatched yet wait for the next start
+			for (int i = selected; i < scheduled; i++) {
+				dispatchAt[i] = Long.MAX_VALUE;
+			}
+			scheduled = selected;
+		}
+
+		/**
+		 * Assigns a dispatch time to every action that doesn't have one yet.
+		 */
+		void schedule(long now) {
+			if (dispatchAt.length < actions.size()) {
+				dispatchAt = Arrays.copyOf(dispatchAt, Math.max(actions.size(), dispatchAt.length << 1));
+			}
+			double interval = 1000 / dispatchRate;
+			nextSlot = Math.max(nextSlot, now);
+			for (; scheduled < actions.size(); scheduled++) {
+				if (actions.get(scheduled).getState() != ActionState.READY) {
+					dispatchAt[scheduled] = now;
+					continue;
+				}
+				dispatchAt[scheduled] = (long)nextSlot;
+				nextSlot += interval;
+			}
+		}
+
+		void advance(long now) {
+			while (selected < scheduled && dispatchAt[selected] <= now) {
+				Action action = actions.get(selected++);
+				if (action.getState() == ActionState.READY) {
+					action.setState(ActionState.SELECTED);
+					action.setModified(calendar(dispatchAt[selected - 1]));
+				}
+			}
+			while (finished < selected && dispatchAt[finished] + deliveryDelayMs <= now) {
+				long finishTime = dispatchAt[finished] + deliveryDelayMs;
+				Action action = actions.get(finished++);
+				if (action.getState() != ActionState.SELECTED) {
+					continue;
+				}
+				finish(action, finishTime);
+			}
+			if (running && finished == actions.size()) {
+				running = false;
+				broadcast.setStatus(BroadcastStatus.FINISHED);
+			}
+		}
+
+		private void finish(Action action, long finishTime) {
+			Calendar finishedAt = calendar(finishTime);
+			boolean text = action instanceof Text;
+			Result finalResult = finalResult(text);
+			action.setState(ActionState.FINISHED);
+			action.setFinalResult(finalResult);
+			action.setModified(finishedAt);
+			if (text) {
+				TextRecord record = new TextRecord();
+				record.setId(ids.incrementAndGet());
+				record.setResult(finalResult);
+				record.setFinishTime(finishedAt);
+				record.setMessage(((Text)action).getMessage());
+				record.setBilledAmount(finalResult == Result.SENT ? 1 : 0);
+				((Text)action).getTextRecord().add(record);
+			}
+			else {
+				CallRecord record = new CallRecord();
+				record.setId(ids.incrementAndGet());
+				record.setResult(finalResult);
+				record.setOriginateTime(calendar(finishTime - deliveryDelayMs));
+				record.setFinishTime(finishedAt);
+				record.setDuration(finalResult == Result.NO_ANS ? 0 : 30);
+				record.setBilledAmount(finalResult == Result.NO_ANS ? 0 : 1);
+				((Call)action).getCallRecord().add(record);
+			}
+		}
+	}
+
+	/**
+	 * A stored contact list, holding each number's latest contact.
+	 */
+	private static class FakeContactList {
+		final long id;
+		final String name;
+		final Calendar created = now();
+		// by normalized number, guarded by this
+		final Map<String, Contact> contacts = new LinkedHashMap<String, Contact>();
+
+		FakeContactList(long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		synchronized List<ToNumber> toNumbers() {
+			List<ToNumber> toNumbers = new ArrayList<ToNumber>(contacts.size());
+			for (Map.Entry<String, Contact> entry : contacts.entrySet()) {
+				ToNumber toNumber = new ToNumber();
+				toNumber.setValue(entry.getKey());
+				toNumber.getOtherAttributes().putAll(entry.getValue().getOtherAttributes());
+				toNumbers.add(toNumber);
+			}
+			return toNumbers;
+		}
+	}
+
+	/**
+	 * Serves stored sound bytes through a DataHandler.
+	 */
+	private static class ByteArrayDataSource implements DataSource {
+		private final byte[] data;
+		private final String contentType;
+
+		ByteArrayDataSource(byte[] data, String contentType) {
+			this.data = data;
+			this.contentType = contentType;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("read-only data source");
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getName() {
+			return "sound";
+		}
+	}
+
+	private static String render(String message, Map<QName, String> attributes) {
+		if (message == null || attributes.isEmpty() || message.indexOf("${") < 0) {
+			return message;
+		}
+		return MergeTemplate.compile(message).render(attributes);
+	}
+}
@@ -0,0 +1,574 @@
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.xsd.FaultCode;
+
+/**
+ * Records the latency, faults and concurrency of every call made to the
+ * CallFire services, by operation, and hands them to an {@link Exporter}.
+ *
+ * Latencies go into a log-linear histogram in the style of HdrHistogram:
+ * each power of two of microseconds is split into 32 linear buckets, so
+ * any latency from a microsecond to hours is kept to within about 3% in a
+ * fixed array of counters. Faults are counted by FaultCode, with transport
+ * errors counted apart, and every operation has a gauge of the calls in
+ * flight and the most there have been.
+ *
+ * Recording only updates atomic counters created with the operation, so in
+ * the default, low overhead mode a call allocates nothing beyond what the
+ * port proxy does. In detailed mode each call also measures its payload,
+ * as the number of recipients, results or bytes in the request and the
+ * response, and traces the call to the log at FINE.
+ */
+public class InstrumentedPorts implements PortWrapper, Closeable {
+	private static final Logger LOG = Logger.getLogger(InstrumentedPorts.class.getName());
+
+	/**
+	 * Receives the metrics of every operation called so far.
+	 */
+	public interface Exporter {
+		void export(List<Snapshot> snapshots);
+	}
+
+	/**
+	 * Logs one line per operation.
+	 */
+	public static final Exporter LOGGING_EXPORTER = new Exporter() {
+		@Override
+		public void export(List<Snapshot> snapshots) {
+			for (Snapshot snapshot : snapshots) {
+				LOG.info(snapshot.toString());
+			}
+		}
+	};
+
+	private static final FaultCode[] FAULT_CODES = FaultCode.values();
+	// the fault counter of transport errors and faults without a code
+	private static final int OTHER_FAULT = FAULT_CODES.length;
+
+	private final boolean detailed;
+	private final Exporter exporter;
+	private final ConcurrentMap<Method, Operation> operations = new ConcurrentHashMap<Method, Operation>();
+	private final AtomicLong traces = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Creates low overhead instrumentation that logs its metrics when closed.
+	 */
+	public InstrumentedPorts() {
+		this(false, LOGGING_EXPORTER);
+	}
+
+	/**
+	 * @param detailed true to also measure payloads and trace every call
+	 * @param exporter
+	 */
+	public InstrumentedPorts(boolean detailed, Exporter exporter) {
+		this.detailed = detailed;
+		this.exporter = exporter;
+	}
+
+	/**
+	 * Creates instrumentation from the sample.properties settings metrics_detailed
+	 * and metrics_export_interval_ms, which logs the metrics at that interval
+	 * if it isn't 0, and when closed.
+	 * @param config
+	 * @return new instrumentation
+	 */
+	public static InstrumentedPorts fromConfiguration(Configuration config) {
+		InstrumentedPorts instrumentation = new InstrumentedPorts(config.getBoolean("metrics_detailed", false),
+				LOGGING_EXPORTER);
+		long intervalMs = config.getLong("metrics_export_interval_ms", 0);
+		if (intervalMs > 0) {
+			instrumentation.startExporting(intervalMs);
+		}
+		return instrumentation;
+	}
+
+	/**
+	 * Records every call made through a port. Every port of the same type
+	 * wrapped by this instance records into the same operations.
+	 * @param portType
+	 * @param port
+	 * @return a port that records each call
+	 */
+	@Override
+	public <T> T wrap(Class<T> portType, final T port) {
+		return portType.cast(Proxy.newProxyInstance(portType.getClassLoader(), new Class<?>[] { portType },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(this, args);
+						}
+						return getOperation(method).call(port, method, args);
+					}
+				}));
+	}
+
+	/**
+	 * Exports the metrics every intervalMs until closed.
+	 * @param intervalMs
+	 */
+	public synchronized void startExporting(long intervalMs) {
+		if (scheduler != null) {
+			throw new IllegalStateException("already exporting");
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-exporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					export();
+				}
+				catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "exception exporting metrics", e);
+				}
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hands the current metrics to the exporter.
+	 */
+	public void export() {
+		List<Snapshot> snapshots = getSnapshots();
+		if (!snapshots.isEmpty()) {
+			exporter.export(snapshots);
+		}
+	}
+
+	/**
+	 * @return the metrics of every operation called so far, by name
+	 */
+	public List<Snapshot> getSnapshots() {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		for (Operation operation : operations.values()) {
+			snapshots.add(operation.snapshot());
+		}
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+			@Override
+			public int compare(Snapshot a, Snapshot b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return snapshots;
+	}
+
+	/**
+	 * Stops exporting periodically and exports the final metrics.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		export();
+	}
+
+	private Operation getOperation(Method method) {
+		Operation operation = operations.get(method);
+		if (operation == null) {
+			operations.putIfAbsent(method, new Operation(method.getDeclaringClass().getSimpleName() + "."
+					+ method.getName()));
+			operation = operations.get(method);
+		}
+		return operation;
+	}
+
+	/**
+	 * The counters of one operation.
+	 */
+	private class Operation {
+		private final String name;
+		private final Histogram latencies = new Histogram();
+		private final AtomicLongArray faults = new AtomicLongArray(FAULT_CODES.length + 1);
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+		private final AtomicLong requestSize = new AtomicLong();
+		private final AtomicLong responseSize = new AtomicLong();
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		Object call(Object port, Method method, Object[] args) throws Throwable {
+			int current = inFlight.incrementAndGet();
+			int max = maxInFlight.get();
+			while (current > max && !maxInFlight.compareAndSet(max, current)) {
+				max = maxInFlight.get();
+			}
+			long start = System.nanoTime();
+			Throwable failure = null;
+			Object result = null;
+			try {
+				result = method.invoke(port, args);
+				return result;
+			}
+			catch (InvocationTargetException e) {
+				failure = e.getCause();
+				throw failure;
+			}
+			finally {
+				long latencyNanos = System.nanoTime() - start;
+				inFlight.decrementAndGet();
+				latencies.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+				if (failure != null) {
+					faults.incrementAndGet(faultIndex(failure));
+				}
+				if (detailed) {
+					long sent = Payloads.size(args);
+					long received = failure == null ? Payloads.size(result) : 0;
+					requestSize.addAndGet(sent);
+					responseSize.addAndGet(received);
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine("trace " + traces.incrementAndGet() + " " + name + " "
+								+ TimeUnit.NANOSECONDS.toMicros(latencyNanos) + "us, sent " + sent + ", received "
+								+ received + (failure == null ? "" : ", failed: " + failure));
+					}
+				}
+			}
+		}
+
+		Snapshot snapshot() {
+			Map<FaultCode, Long> faultCounts = new EnumMap<FaultCode, Long>(FaultCode.class);
+			for (int i = 0; i < FAULT_CODES.length; i++) {
+				long count = faults.get(i);
+				if (count > 0) {
+					faultCounts.put(FAULT_CODES[i], count);
+				}
+			}
+			return new Snapshot(name, latencies.copy(), faultCounts, faults.get(OTHER_FAULT), inFlight.get(),
+					maxInFlight.get(), detailed ? requestSize.get() : -1, detailed ? responseSize.get() : -1);
+		}
+	}
+
+	private static int faultIndex(Throwable failure) {
+		if (failure instanceof ServiceFault) {
+			FaultCode code = ResilientPorts.getFaultCode((ServiceFault)failure);
+			if (code != null) {
+				return code.ordinal();
+			}
+		}
+		return OTHER_FAULT;
+	}
+
+	/**
+	 * Counts of latencies in microseconds, in buckets that are linear within
+	 * each power of two: values below 64 are counted exactly, and values in
+	 * [2^k, 2^(k+1)) for larger k fall into 32 buckets 2^(k-5) wide.
+	 */
+	static class Histogram {
+		private static final int SUB_BUCKET_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		// about 19 hours in microseconds, longer latencies are counted in the last bucket
+		private static final int MAX_VALUE_BITS = 36;
+
+		private final AtomicLongArray counts;
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram() {
+			this(new AtomicLongArray((MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS));
+		}
+
+		private Histogram(AtomicLongArray counts) {
+			this.counts = counts;
+		}
+
+		void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			counts.incrementAndGet(Math.min(indexOf(value), counts.length() - 1));
+			total.incrementAndGet();
+			sum.addAndGet(value);
+			long previous = max.get();
+			while (value > previous && !max.compareAndSet(previous, value)) {
+				previous = max.get();
+			}
+		}
+
+		Histogram copy() {
+			Histogram copy = new Histogram(new AtomicLongArray(counts.length()));
+			for (int i = 0; i < counts.length(); i++) {
+				copy.counts.set(i, counts.get(i));
+			}
+			copy.total.set(total.get());
+			copy.sum.set(sum.get());
+			copy.max.set(max.get());
+			return copy;
+		}
+
+		long getCount() {
+			return total.get();
+		}
+
+		double getMean() {
+			long count = total.get();
+			return count == 0 ? 0 : (double)sum.get() / count;
+		}
+
+		long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param percentile e.g. 99.9
+		 * @return the highest value of the bucket that holds the percentile
+		 */
+		long getValueAtPercentile(double percentile) {
+			long count = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				count += counts.get(i);
+			}
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return Math.min(highestValueAt(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		static int indexOf(long value) {
+			if (value < 2 * SUB_BUCKETS) {
+				return (int)value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			return shift * SUB_BUCKETS + (int)(value >>> shift);
+		}
+
+		static long highestValueAt(int index) {
+			if (index < 2 * SUB_BUCKETS) {
+				return index;
+			}
+			int shift = index / SUB_BUCKETS - 1;
+			long lowest = (long)(index - shift * SUB_BUCKETS) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+	}
+
+	/**
+	 * Measures the payload of a request or response as the number of items
+	 * it carries: the elements of its first list, e.g. the recipients of a
+	 * contact batch or the results of a query, or the bytes of sound data.
+	 */
+	static class Payloads {
+		private static final Object[] NO_ARGS = new Object[0];
+		private static final Method NONE;
+		private static final ConcurrentMap<Class<?>, Method> ACCESSORS = new ConcurrentHashMap<Class<?>, Method>();
+
+		static {
+			try {
+				NONE = Object.class.getMethod("hashCode");
+			}
+			catch (NoSuchMethodException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		static long size(Object[] args) {
+			long size = 0;
+			if (args != null) {
+				for (Object arg : args) {
+					size += size(arg);
+				}
+			}
+			return size;
+		}
+
+		static long size(Object payload) {
+			if (payload == null) {
+				return 0;
+			}
+			if (payload instanceof byte[]) {
+				return ((byte[])payload).length;
+			}
+			if (payload instanceof Collection) {
+				return ((Collection<?>)payload).size();
+			}
+			if (payload instanceof Number) {
+				return 1;
+			}
+			Method accessor = accessor(payload.getClass());
+			if (accessor == NONE) {
+				return 1;
+			}
+			try {
+				return size(accessor.invoke(payload, NO_ARGS));
+			}
+			catch (Exception e) {
+				return 1;
+			}
+		}
+
+		/**
+		 * @return the first getter returning a list or bytes, or NONE
+		 */
+		private static Method accessor(Class<?> type) {
+			Method accessor = ACCESSORS.get(type);
+			if (accessor == null) {
+				accessor = NONE;
+				for (Method method : type.getMethods()) {
+					Class<?> returnType = method.getReturnType();
+					if (method.getName().startsWith("get") && method.getParameterTypes().length == 0
+							&& (List.class.isAssignableFrom(returnType) || returnType == byte[].class)) {
+						accessor = method;
+						break;
+					}
+				}
+				ACCESSORS.putIfAbsent(type, accessor);
+			}
+			return accessor;
+		}
+	}
+
+	/**
+	 * The metrics of one operation at one moment.
+	 */
+	public static class Snapshot {
+		private final String name;
+		private final Histogram latencies;
+		private final Map<FaultCode, Long> faults;
+		private final long otherFaults;
+		private final int inFlight;
+		private final int maxInFlight;
+		private final long requestSize;
+		private final long responseSize;
+
+		Snapshot(String name, Histogram latencies, Map<FaultCode, Long> faults, long otherFaults, int inFlight,
+				int maxInFlight, long requestSize, long responseSize) {
+			this.name = name;
+			this.latencies = latencies;
+			this.faults = Collections.unmodifiableMap(faults);
+			this.otherFaults = otherFaults;
+			this.inFlight = inFlight;
+			this.maxInFlight = maxInFlight;
+			this.requestSize = requestSize;
+			this.responseSize = responseSize;
+		}
+
+		/**
+		 * @return the port type and operation, e.g. TextServicePortType.queryTexts
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public long getCalls() {
+			return latencies.getCount();
+		}
+
+		/**
+		 * @param percentile e.g. 99
+		 * @return the latency in microseconds that percentile of the calls took at most
+		 */
+		public long getLatencyMicros(double percentile) {
+			return latencies.getValueAtPercentile(percentile);
+		}
+
+		public double getMeanLatencyMicros() {
+			return latencies.getMean();
+		}
+
+		public long getMaxLatencyMicros() {
+			return latencies.getMax();
+		}
+
+		/**
+		 * @return the number of ServiceFaults by FaultCode
+		 */
+		public Map<FaultCode, Long> getFaults() {
+			return faults;
+		}
+
+		/**
+		 * @return the number of transport errors and other failures
+		 */
+		public long getOtherFaults() {
+			return otherFaults;
+		}
+
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		public int getMaxInFlight() {
+			return maxInFlight;
+		}
+
+		/**
+		 * @return the items sent in every request, or -1 if payloads weren't measured
+		 */
+		public long getRequestSize() {
+			return requestSize;
+		}
+
+		/**
+		 * @return the items received in every response, or -1 if payloads weren't measured
+		 */
+		public long getResponseSize() {
+			return responseSize;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder string = new StringBuilder(name).append(": ").append(getCalls()).append(" calls");
+			string.append(String.format(", latency ms p50 %.1f p90 %.1f p99 %.1f max %.1f",
+					getLatencyMicros(50) / 1000.0, getLatencyMicros(90) / 1000.0, getLatencyMicros(99) / 1000.0,
+					getMaxLatencyMicros() / 1000.0));
+			if (!faults.isEmpty() || otherFaults > 0) {
+				string.append(", faults ").append(faults);
+				if (otherFaults > 0) {
+					string.append(" and ").append(otherFaults).append(" other");
+				}
+			}
+			string.append(", in flight ").append(inFlight).append(" (max ").append(maxInFlight).append(')');
+			if (requestSize >= 0) {
+				string.append(", sent ").append(requestSize).append(" items, received ").append(responseSize);
+			}
+			return string.toString();
+		}
+	}
+}
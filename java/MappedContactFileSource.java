@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.namespace.QName;
+
+import com.callfire.api.data.ToNumber;
+
+/**
+ * Streams contacts from a CSV or newline-delimited file of any size.
+ *
+ * The file is memory-mapped one window at a time and rows are parsed
+ * directly from the mapped bytes; only the field values themselves are
+ * copied out into Strings. The first column is the phone number. In CSV
+ * files with a header row, every further column becomes a merge attribute
+ * named after its header, e.g. a file starting with
+ * <pre>number,regTimeWindow,regLocation</pre>
+ * fills the ${regTimeWindow} and ${regLocation} placeholders of a text
+ * broadcast. Quoted fields may contain commas and doubled quotes, but not
+ * line breaks. Files are expected to be UTF-8.
+ */
+public class MappedContactFileSource implements ContactSource {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final int SAMPLE_SIZE = 64 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long length;
+	private final int windowSize;
+	private final char delimiter;
+	private final QName[] attributeNames;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+	private byte[] scratch = new byte[256];
+	private final List<String> fields = new ArrayList<String>();
+	private ToNumber next;
+
+	/**
+	 * @param contactsFile a CSV file whose first row names the columns
+	 * @return a source over every data row of the file
+	 * @throws IOException
+	 */
+	public static MappedContactFileSource csv(File contactsFile) throws IOException {
+		return new MappedContactFileSource(contactsFile, ',', true, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param contactsFile a file with one phone number per line
+	 * @return a source over every number in the file
+	 * @throws IOException
+	 */
+	public static MappedContactFileSource lines(File contactsFile) throws IOException {
+		return new MappedContactFileSource(contactsFile, '\n', false, DEFAULT_WINDOW_SIZE);
+	}
+
+	MappedContactFileSource(File contactsFile, char delimiter, boolean header, int windowSize) throws IOException {
+		this.file = new RandomAccessFile(contactsFile, "r");
+		this.channel = file.getChannel();
+		this.length = channel.size();
+		this.windowSize = windowSize;
+		this.delimiter = delimiter;
+
+		List<QName> names = new ArrayList<QName>();
+		if (header && readRow()) {
+			for (int i = 1; i < fields.size(); i++) {
+				names.add(ContactAttributes.name(fields.get(i).trim()));
+			}
+		}
+		this.attributeNames = names.toArray(new QName[names.size()]);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			next = readContact();
+		}
+		return next != null;
+	}
+
+	@Override
+	public ToNumber next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		ToNumber toNumber = next;
+		next = null;
+		return toNumber;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Estimates the rows left to read from the average row length of the
+	 * next 64KB, without reading the whole file, e.g. to size a
+	 * {@link RecipientDeduplicator}.
+	 * @return the estimated number of rows left, exact if the rest of the file is under 64KB
+	 * @throws IOException
+	 */
+	public long estimateRemainingRows() throws IOException {
+		long remaining = length - position;
+		if (remaining <= 0) {
+			return 0;
+		}
+		ByteBuffer sample = ByteBuffer.allocate((int)Math.min(remaining, SAMPLE_SIZE));
+		// reads at an absolute position, leaving the mapped windows alone
+		while (sample.hasRemaining()) {
+			if (channel.read(sample, position + sample.position()) < 0) {
+				break;
+			}
+		}
+		long rows = 0;
+		for (int i = 0; i < sample.position(); i++) {
+			if (sample.get(i) == '\n') {
+				rows++;
+			}
+		}
+		if (sample.position() == remaining) {
+			// a last row without a newline
+			return sample.get(sample.position() - 1) == '\n' ? rows : rows + 1;
+		}
+		return rows == 0 ? 1 : (long)((double)remaining * rows / sample.position());
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		file.close();
+	}
+
+	private ToNumber readContact() {
+		try {
+			while (readRow()) {
+				String number = fields.get(0).trim();
+				if (number.length() == 0) {
+					// skip blank lines
+					continue;
+				}
+				ToNumber toNumber = new ToNumber();
+				toNumber.setValue(number);
+				int columns = Math.min(fields.size() - 1, attributeNames.length);
+				for (int i = 0; i < columns; i++) {
+					toNumber.getOtherAttributes().put(attributeNames[i], fields.get(i + 1));
+				}
+				return toNumber;
+			}
+			return null;
+		}
+		catch (IOException e) {
+			throw new RuntimeException("exception reading contacts", e);
+		}
+	}
+
+	/**
+	 * Parses the row starting at the current position into fields.
+	 * @return false at the end of the file
+	 */
+	private boolean readRow() throws IOException {
+		fields.clear();
+		if (position >= length) {
+			return false;
+		}
+
+		long rowEnd = findRowEnd();
+		int offset = (int)(position - windowStart);
+		int end = (int)(rowEnd - windowStart);
+		if (end > offset && window.get(end - 1) == '\r') {
+			end--;
+		}
+
+		while (offset <= end) {
+			offset = readField(offset, end);
+		}
+		position = rowEnd + 1;
+		return true;
+	}
+
+	/**
+	 * Ensures the whole current row is mapped and returns the offset of its line break.
+	 */
+	private long findRowEnd() throws IOException {
+		if (window == null || position >= windowStart + window.limit()) {
+			map(position);
+		}
+		while (true) {
+			int limit = window.limit();
+			for (int i = (int)(position - windowStart); i < limit; i++) {
+				if (window.get(i) == '\n') {
+					return windowStart + i;
+				}
+			}
+			if (windowStart + limit >= length) {
+				// last row without a trailing line break
+				return length;
+			}
+			if (position == windowStart) {
+				throw new IOException("row at offset " + position + " is longer than " + windowSize + " bytes");
+			}
+			// the row straddles the window, remap starting at the row
+			map(position);
+		}
+	}
+
+	/**
+	 * Reads one field starting at offset, which is either a delimiter or the end of row.
+	 * @return the offset just past the field's delimiter
+	 */
+	private int readField(int offset, int end) {
+		int n = 0;
+		if (offset < end && window.get(offset) == '"') {
+			offset++;
+			while (offset < end) {
+				byte b = window.get(offset++);
+				if (b == '"') {
+					if (offset < end && window.get(offset) == '"') {
+						offset++;
+					}
+					else {
+						break;
+					}
+				}
+				n = append(n, b);
+			}
+			while (offset < end && window.get(offset) != delimiter) {
+				offset++;
+			}
+		}
+		else {
+			while (offset < end) {
+				byte b = window.get(offset);
+				if (b == delimiter) {
+					break;
+				}
+				n = append(n, b);
+				offset++;
+			}
+		}
+		fields.add(decode(n));
+		return offset + 1;
+	}
+
+	private int append(int n, byte b) {
+		if (n == scratch.length) {
+			byte[] grown = new byte[scratch.length << 1];
+			System.arraycopy(scratch, 0, grown, 0, n);
+			scratch = grown;
+		}
+		scratch[n] = b;
+		return n + 1;
+	}
+
+	private String decode(int n) {
+		for (int i = 0; i < n; i++) {
+			if (scratch[i] < 0) {
+				return new String(scratch, 0, n, UTF_8);
+			}
+		}
+		// plain ASCII, which covers every phone number
+		return new String(scratch, 0, n, US_ASCII);
+	}
+
+	private void map(long start) throws IOException {
+		long size = Math.min(windowSize, length - start);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		windowStart = start;
+	}
+}
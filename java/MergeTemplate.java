@@ -0,0 +1,353 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.namespace.QName;
+
+import com.callfire.api.data.BigMessageStrategy;
+import com.callfire.api.data.TextBroadcastConfig;
+import com.callfire.api.data.ToNumber;
+
+/**
+ * A text message with ${name} placeholders, compiled once so that the
+ * message each recipient will get can be rendered and measured locally,
+ * before anything is uploaded.
+ *
+ * CallFire fills the placeholders of a {@link TextBroadcastConfig} message
+ * from each {@link ToNumber#getOtherAttributes()}, so a message that is
+ * too long for some recipients only fails once the broadcast runs. The
+ * message is parsed into its literal text and the attribute names between
+ * the text, and rendering looks each name up in the recipient's attributes
+ * and appends to a buffer the caller reuses, so checking millions of
+ * recipients allocates nothing per recipient.
+ *
+ * A placeholder without a matching attribute is rendered as written, the
+ * same as the message CallFire would send.
+ */
+public class MergeTemplate {
+	/**
+	 * The segments a message may be sent in when {@link BigMessageStrategy#SEND_MULTIPLE} is used.
+	 */
+	public static final int DEFAULT_MAX_SEGMENTS = 3;
+
+	private static final int GSM_SINGLE = 160;
+	private static final int GSM_PART = 153;
+	private static final int UCS2_SINGLE = 70;
+	private static final int UCS2_PART = 67;
+
+	// septets each character below 0x400 takes in the GSM 7 bit alphabet, 0 if it isn't in it
+	private static final byte[] GSM_SEPTETS = new byte[0x400];
+	private static final char EURO = '\u20AC';
+
+	static {
+		String basic = "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5"
+				+ "\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9"
+				+ " !\"#\u00A4%&'()*+,-./0123456789:;<=>?"
+				+ "\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7"
+				+ "\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+		for (int i = 0; i < basic.length(); i++) {
+			GSM_SEPTETS[basic.charAt(i)] = 1;
+		}
+		// the extension table is reached with an escape septet
+		String extension = "\f^{}\\[~]|";
+		for (int i = 0; i < extension.length(); i++) {
+			GSM_SEPTETS[extension.charAt(i)] = 2;
+		}
+	}
+
+	private final String message;
+	// literals[i] comes before names[i], the last literal ends the message
+	private final String[] literals;
+	private final QName[] names;
+	private final String[] placeholders;
+
+	private MergeTemplate(String message, List<String> literals, List<QName> names) {
+		this.message = message;
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.names = names.toArray(new QName[names.size()]);
+		this.placeholders = new String[this.names.length];
+		for (int i = 0; i < this.names.length; i++) {
+			placeholders[i] = "${" + this.names[i].getLocalPart() + "}";
+		}
+	}
+
+	/**
+	 * @param message e.g. "Your registration window is ${regTimeWindow}."
+	 * @return the compiled message
+	 */
+	public static MergeTemplate compile(String message) {
+		List<String> literals = new ArrayList<String>();
+		List<QName> names = new ArrayList<QName>();
+		int start = 0;
+		int from = 0;
+		while (true) {
+			int open = message.indexOf("${", from);
+			int close = open < 0 ? -1 : message.indexOf('}', open + 2);
+			if (close < 0) {
+				break;
+			}
+			String name = message.substring(open + 2, close);
+			if (name.length() == 0 || name.indexOf("${") >= 0) {
+				// not a placeholder, keep it as literal text
+				from = open + 2;
+				continue;
+			}
+			literals.add(message.substring(start, open));
+			names.add(ContactAttributes.name(name));
+			start = close + 1;
+			from = start;
+		}
+		literals.add(message.substring(start));
+		return new MergeTemplate(message, literals, names);
+	}
+
+	/**
+	 * @param config
+	 * @return the compiled message of config
+	 */
+	public static MergeTemplate compile(TextBroadcastConfig config) {
+		return compile(config.getMessage());
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the attributes the message refers to, in order
+	 */
+	public List<QName> getNames() {
+		return Collections.unmodifiableList(Arrays.asList(names));
+	}
+
+	/**
+	 * Appends the message rendered for one recipient to out.
+	 * @param attributes e.g. from {@link ToNumber#getOtherAttributes()}
+	 * @param out
+	 * @return the number of placeholders without a matching attribute
+	 */
+	public int renderTo(Map<QName, String> attributes, StringBuilder out) {
+		int missing = 0;
+		for (int i = 0; i < names.length; i++) {
+			out.append(literals[i]);
+			String value = attributes.get(names[i]);
+			if (value == null) {
+				out.append(placeholders[i]);
+				missing++;
+			}
+			else {
+				out.append(value);
+			}
+		}
+		out.append(literals[names.length]);
+		return missing;
+	}
+
+	/**
+	 * @param attributes
+	 * @return the message rendered for one recipient
+	 */
+	public String render(Map<QName, String> attributes) {
+		if (names.length == 0) {
+			return message;
+		}
+		StringBuilder out = new StringBuilder(message.length() + 32);
+		renderTo(attributes, out);
+		return out.toString();
+	}
+
+	/**
+	 * @param text
+	 * @return true if every character of text is in the GSM 7 bit alphabet
+	 */
+	public static boolean isGsm(CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (septets(text.charAt(i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the SMS segments text is sent in: up to 160 characters in one
+	 * segment, or 153 per segment beyond that, if it is all GSM 7 bit
+	 * characters, otherwise 70 or 67 per segment as UCS-2.
+	 * @param text
+	 * @return the number of segments, at least 1
+	 */
+	public static int segments(CharSequence text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int septets = septets(text.charAt(i));
+			if (septets == 0) {
+				return segments(text.length(), UCS2_SINGLE, UCS2_PART);
+			}
+			length += septets;
+		}
+		return segments(length, GSM_SINGLE, GSM_PART);
+	}
+
+	private static int segments(int length, int single, int part) {
+		if (length <= single) {
+			return 1;
+		}
+		return (length + part - 1) / part;
+	}
+
+	private static int septets(char c) {
+		if (c < GSM_SEPTETS.length) {
+			return GSM_SEPTETS[c];
+		}
+		return c == EURO ? 2 : 0;
+	}
+
+	/**
+	 * @param strategy how the broadcast sends messages that don't fit one segment, or null for the default
+	 * @param maxSegments the most segments a message sent in several may take
+	 * @return a check that flags recipients whose message doesn't fit
+	 */
+	public SizeCheck newSizeCheck(BigMessageStrategy strategy, int maxSegments) {
+		if (strategy == BigMessageStrategy.DO_NOT_SEND || strategy == BigMessageStrategy.TRIM) {
+			return new SizeCheck(1, strategy);
+		}
+		return new SizeCheck(maxSegments, BigMessageStrategy.SEND_MULTIPLE);
+	}
+
+	/**
+	 * Renders the message of each recipient into a reused buffer and
+	 * flags the ones that would take more than the allowed segments.
+	 */
+	public class SizeCheck {
+		private static final int MAX_SAMPLES = 20;
+
+		private final int maxSegments;
+		private final BigMessageStrategy strategy;
+		private final StringBuilder buffer = new StringBuilder(GSM_SINGLE * 2);
+		private long checked;
+		private long multipart;
+		private long unicode;
+		private long oversize;
+		private long missingAttributes;
+		private int longest;
+		private final List<String> samples = new ArrayList<String>();
+
+		SizeCheck(int maxSegments, BigMessageStrategy strategy) {
+			if (maxSegments < 1) {
+				throw new IllegalArgumentException("maxSegments must be at least 1: " + maxSegments);
+			}
+			this.maxSegments = maxSegments;
+			this.strategy = strategy;
+		}
+
+		/**
+		 * @param toNumber
+		 * @return false if the message toNumber would get doesn't fit in the allowed segments
+		 * and would fail to send
+		 */
+		public synchronized boolean check(ToNumber toNumber) {
+			buffer.setLength(0);
+			int missing = renderTo(toNumber.getOtherAttributes(), buffer);
+			int segments = segments(buffer);
+			checked++;
+			missingAttributes += missing > 0 ? 1 : 0;
+			longest = Math.max(longest, buffer.length());
+			if (segments > 1) {
+				multipart++;
+			}
+			if (!isGsm(buffer)) {
+				unicode++;
+			}
+			if (segments <= maxSegments) {
+				return true;
+			}
+			oversize++;
+			if (samples.size() < MAX_SAMPLES) {
+				samples.add(toNumber.getValue() + " (" + buffer.length() + " chars, " + segments + " segments)");
+			}
+			// a trimmed message is still sent
+			return strategy == BigMessageStrategy.TRIM;
+		}
+
+		/**
+		 * @param toNumbers
+		 * @return the recipients of toNumbers whose message would be sent, read lazily
+		 */
+		public Iterator<ToNumber> filter(final Iterator<ToNumber> toNumbers) {
+			return new Iterator<ToNumber>() {
+				private ToNumber next;
+
+				@Override
+				public boolean hasNext() {
+					while (next == null && toNumbers.hasNext()) {
+						ToNumber toNumber = toNumbers.next();
+						if (check(toNumber)) {
+							next = toNumber;
+						}
+					}
+					return next != null;
+				}
+
+				@Override
+				public ToNumber next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					ToNumber toNumber = next;
+					next = null;
+					return toNumber;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public int getMaxSegments() {
+			return maxSegments;
+		}
+
+		public synchronized long getChecked() {
+			return checked;
+		}
+
+		/**
+		 * @return the number of recipients whose message takes more than the allowed segments
+		 */
+		public synchronized long getOversize() {
+			return oversize;
+		}
+
+		/**
+		 * @return the number of recipients missing an attribute the message refers to
+		 */
+		public synchronized long getMissingAttributes() {
+			return missingAttributes;
+		}
+
+		/**
+		 * @return the first few oversize recipients, with their rendered length
+		 */
+		public synchronized List<String> getOversizeSamples() {
+			return new ArrayList<String>(samples);
+		}
+
+		@Override
+		public synchronized String toString() {
+			String report = checked + " messages checked, " + multipart + " multipart, " + unicode + " UCS-2, "
+					+ missingAttributes + " missing attributes, longest " + longest + " chars";
+			if (oversize > 0) {
+				String outcome = strategy == BigMessageStrategy.TRIM ? "would be trimmed" : "over " + maxSegments
+						+ " segments";
+				report += ", " + oversize + " " + outcome + ", e.g. " + samples;
+			}
+			return report;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jws.WebService;
+import javax.xml.ws.BindingType;
+import javax.xml.ws.Endpoint;
+import javax.xml.ws.soap.SOAPBinding;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.callfire.api.data.Action;
+import com.callfire.api.data.NotificationFormat;
+import com.callfire.api.data.Subscription;
+import com.callfire.api.data.Subscription.SubscriptionFilter;
+import com.callfire.api.data.Text;
+import com.callfire.api.notification.wsdl.CallNotificationPortType;
+import com.callfire.api.notification.wsdl.TextNotificationPortType;
+import com.callfire.api.notification.xsd.CallFinished;
+import com.callfire.api.notification.xsd.TextNotification;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.wsdl.SubscriptionServicePortType;
+import com.callfire.api.service.xsd.IdRequest;
+import com.callfire.api.service.xsd.SubscriptionRequest;
+
+/**
+ * Receives CallFire postback notifications instead of polling for status.
+ *
+ * The text and call notification ports are published as SOAP 1.2 endpoints
+ * on the JDK's embedded HTTP server, at bindUrl/text and bindUrl/call. Each
+ * subscribe call registers a {@link Subscription} for one broadcast, or one
+ * batch of it, pointing at publicUrl/text or publicUrl/call, the address
+ * CallFire can reach the endpoints at. Every TextSent and CallFinished
+ * notification is handed to the listeners whose broadcast and batch match
+ * the action, so a recipient completes as soon as its result is known
+ * rather than on the next poll.
+ *
+ * Notifications can be lost or arrive before a subscription is known, so
+ * {@link #await(Class, List, ActionStatusTracker.Listener, OutstandingNumbers, long)}
+ * polls once after subscribing and once more if it times out.
+ */
+public class NotificationReceiver implements Closeable {
+	private static final Logger LOG = Logger.getLogger(NotificationReceiver.class.getName());
+
+	private final SubscriptionServicePortType subscriptionService;
+	private final String bindUrl;
+	private final String publicUrl;
+	private final List<Registration<?>> registrations = new CopyOnWriteArrayList<Registration<?>>();
+	private Endpoint textEndpoint;
+	private Endpoint callEndpoint;
+
+	/**
+	 * @param subscriptionService
+	 * @param bindUrl the local address to listen on, e.g. http://0.0.0.0:8080/notifications
+	 * @param publicUrl the address CallFire posts to, or null if it is bindUrl
+	 */
+	public NotificationReceiver(SubscriptionServicePortType subscriptionService, String bindUrl, String publicUrl) {
+		this.subscriptionService = subscriptionService;
+		this.bindUrl = stripSlash(bindUrl);
+		this.publicUrl = publicUrl == null ? this.bindUrl : stripSlash(publicUrl);
+	}
+
+	/**
+	 * Creates and starts a receiver from the sample.properties settings
+	 * notification_url and notification_bind_url.
+	 * @param config
+	 * @param subscriptionService
+	 * @return a started receiver, or null if notification_url is not set
+	 */
+	public static NotificationReceiver fromConfiguration(Configuration config,
+			SubscriptionServicePortType subscriptionService) {
+		String publicUrl = config.getString("notification_url");
+		if (publicUrl == null || publicUrl.length() == 0) {
+			return null;
+		}
+		String bindUrl = config.getString("notification_bind_url");
+		if (bindUrl == null || bindUrl.length() == 0) {
+			bindUrl = publicUrl;
+		}
+		NotificationReceiver receiver = new NotificationReceiver(subscriptionService, bindUrl, publicUrl);
+		receiver.start();
+		return receiver;
+	}
+
+	/**
+	 * Publishes the notification endpoints.
+	 */
+	public synchronized void start() {
+		if (textEndpoint != null) {
+			return;
+		}
+		textEndpoint = Endpoint.publish(bindUrl + "/text", new TextEndpoint(this));
+		callEndpoint = Endpoint.publish(bindUrl + "/call", new CallEndpoint(this));
+		LOG.info("receiving notifications at: " + bindUrl);
+	}
+
+	/**
+	 * Deletes every remaining subscription and stops the endpoints.
+	 */
+	@Override
+	public synchronized void close() {
+		for (Registration<?> registration : registrations) {
+			try {
+				unsubscribe(registration.subscriptionId);
+			}
+			catch (ServiceFault e) {
+				LOG.log(Level.WARNING, "exception deleting subscription " + registration.subscriptionId, e);
+			}
+			catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "exception deleting subscription " + registration.subscriptionId, e);
+			}
+		}
+		if (textEndpoint != null) {
+			textEndpoint.stop();
+			callEndpoint.stop();
+			textEndpoint = null;
+			callEndpoint = null;
+		}
+	}
+
+	/**
+	 * Subscribes to the texts or calls of a broadcast. The listener is
+	 * registered before the subscription is created so no notification
+	 * for it can be missed.
+	 * @param actionType Text.class or Call.class
+	 * @param broadcastId
+	 * @param batchId the batch to restrict to, or null for the whole broadcast
+	 * @param listener
+	 * @return the subscription id
+	 * @throws ServiceFault
+	 */
+	public <T extends Action> long subscribe(Class<T> actionType, long broadcastId, Long batchId,
+			ActionStatusTracker.Listener<? super T> listener) throws ServiceFault {
+		Registration<T> registration = new Registration<T>(actionType, broadcastId, batchId, listener);
+		registrations.add(registration);
+
+		SubscriptionFilter filter = new SubscriptionFilter();
+		filter.setBroadcastId(broadcastId);
+		filter.setBatchId(batchId);
+		Subscription subscription = new Subscription();
+		subscription.setEnabled(true);
+		subscription.setEndpoint(publicUrl + (actionType == Text.class ? "/text" : "/call"));
+		subscription.setNotificationFormat(NotificationFormat.SOAP);
+		subscription.setSubscriptionFilter(filter);
+		SubscriptionRequest request = new SubscriptionRequest();
+		request.setSubscription(subscription);
+		try {
+			registration.subscriptionId = subscriptionService.createSubscription(request);
+		}
+		catch (ServiceFault e) {
+			registrations.remove(registration);
+			throw e;
+		}
+		return registration.subscriptionId;
+	}
+
+	/**
+	 * Deletes a subscription and removes its listener.
+	 * @param subscriptionId
+	 * @throws ServiceFault
+	 */
+	public void unsubscribe(long subscriptionId) throws ServiceFault {
+		for (Registration<?> registration : registrations) {
+			if (registration.subscriptionId == subscriptionId) {
+				registrations.remove(registration);
+			}
+		}
+		IdRequest request = new IdRequest();
+		request.setId(subscriptionId);
+		subscriptionService.deleteSubscription(request);
+	}
+
+	/**
+	 * Waits for every outstanding recipient to complete through notifications.
+	 *
+	 * Subscribes to each tracker's broadcast/batch, polls each tracker once
+	 * to catch up with actions that finished before the subscriptions
+	 * existed, and then waits. If the timeout elapses the trackers are
+	 * polled once more in case notifications were lost.
+	 * @param actionType Text.class or Call.class
+	 * @param trackers
+	 * @param listener completes recipients in outstanding, it must be idempotent
+	 * @param outstanding
+	 * @param timeoutMs
+	 * @return true if every outstanding recipient completed
+	 * @throws ServiceFault
+	 * @throws InterruptedException
+	 */
+	public <T extends Action> boolean await(Class<T> actionType, List<ActionStatusTracker<T>> trackers,
+			ActionStatusTracker.Listener<? super T> listener, OutstandingNumbers outstanding, long timeoutMs)
+			throws ServiceFault, InterruptedException {
+		List<Long> subscriptionIds = new ArrayList<Long>(trackers.size());
+		try {
+			for (ActionStatusTracker<T> tracker : trackers) {
+				subscriptionIds.add(subscribe(actionType, tracker.getBroadcastId(), tracker.getBatchId(), listener));
+			}
+			for (ActionStatusTracker<T> tracker : trackers) {
+				tracker.poll(listener);
+			}
+			if (outstanding.awaitEmpty(timeoutMs)) {
+				return true;
+			}
+			LOG.info("timed out waiting for notifications, polling for " + outstanding.remaining() + " outstanding");
+			for (ActionStatusTracker<T> tracker : trackers) {
+				tracker.poll(listener);
+			}
+			return outstanding.isEmpty();
+		}
+		finally {
+			// a failure to unsubscribe mustn't hide the outcome of the wait,
+			// nor keep the other subscriptions from being removed
+			for (Long subscriptionId : subscriptionIds) {
+				try {
+					unsubscribe(subscriptionId);
+				}
+				catch (ServiceFault e) {
+					LOG.log(Level.WARNING, "exception deleting subscription " + subscriptionId, e);
+				}
+				catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "exception deleting subscription " + subscriptionId, e);
+				}
+			}
+		}
+	}
+
+	public String getPublicUrl() {
+		return publicUrl;
+	}
+
+	private void dispatch(Action action) {
+		if (action == null) {
+			return;
+		}
+		for (Registration<?> registration : registrations) {
+			registration.offer(action);
+		}
+	}
+
+	private static String stripSlash(String url) {
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	/**
+	 * A listener and the broadcast/batch it subscribed to.
+	 */
+	private static class Registration<T extends Action> {
+		final Class<T> actionType;
+		final long broadcastId;
+		final Long batchId;
+		final ActionStatusTracker.Listener<? super T> listener;
+		volatile long subscriptionId;
+
+		Registration(Class<T> actionType, long broadcastId, Long batchId,
+				ActionStatusTracker.Listener<? super T> listener) {
+			this.actionType = actionType;
+			this.broadcastId = broadcastId;
+			this.batchId = batchId;
+			this.listener = listener;
+		}
+
+		void offer(Action action) {
+			if (!actionType.isInstance(action) || action.getBroadcastId() == null
+					|| action.getBroadcastId() != broadcastId) {
+				return;
+			}
+			if (batchId != null && !batchId.equals(action.getBatchId())) {
+				return;
+			}
+			listener.onAction(actionType.cast(action));
+		}
+	}
+
+	@WebService(endpointInterface = "com.callfire.api.notification.wsdl.TextNotificationPortType",
+			targetNamespace = "http://api.callfire.com/notification/wsdl/http/soap12",
+			serviceName = "NotificationApi", portName = "TextNotificationPort")
+	@BindingType(SOAPBinding.SOAP12HTTP_BINDING)
+	public static class TextEndpoint implements TextNotificationPortType {
+		private final NotificationReceiver receiver;
+
+		TextEndpoint(NotificationReceiver receiver) {
+			this.receiver = receiver;
+		}
+
+		@Override
+		public void textReceived(TextNotification notification) {
+			// inbound texts aren't subscribed to
+		}
+
+		@Override
+		public void textSent(TextNotification notification) {
+			receiver.dispatch(notification.getText());
+		}
+	}
+
+	@WebService(endpointInterface = "com.callfire.api.notification.wsdl.CallNotificationPortType",
+			targetNamespace = "http://api.callfire.com/notification/wsdl/http/soap12",
+			serviceName = "NotificationApi", portName = "CallNotificationPort")
+	@BindingType(SOAPBinding.SOAP12HTTP_BINDING)
+	public static class CallEndpoint implements CallNotificationPortType {
+		private final NotificationReceiver receiver;
+
+		CallEndpoint(NotificationReceiver receiver) {
+			this.receiver = receiver;
+		}
+
+		@Override
+		public void callFinished(CallFinished notification) {
+			receiver.dispatch(notification.getCall());
+		}
+	}
+}
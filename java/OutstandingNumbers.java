@@ -0,0 +1,260 @@
+import java.util.Collection;
+import java.util.Iterator;
+
+import com.callfire.api.data.ToNumber;
+
+/**
+ * The set of recipients that have not reached a final result yet.
+ *
+ * Numbers are normalized with {@link PhoneNumbers} and stored as primitive
+ * longs in an open-addressing hash table with linear probing, so each
+ * outstanding number costs a few longs of memory and marking a result
+ * complete is a constant-time operation, regardless of batch size.
+ *
+ * All methods are synchronized so results may be completed from polling
+ * and notification threads at the same time.
+ */
+public class OutstandingNumbers {
+	private static final long EMPTY = 0L;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] table;
+	private int size;
+	private int invalid;
+
+	public OutstandingNumbers(int expectedSize) {
+		table = new long[tableSizeFor(expectedSize)];
+	}
+
+	/**
+	 * @param toNumbers the raw numbers, e.g. as returned from PropertiesConfiguration.getList
+	 * @return a set containing every valid number in toNumbers
+	 */
+	public static OutstandingNumbers of(Collection<?> toNumbers) {
+		OutstandingNumbers outstanding = new OutstandingNumbers(toNumbers.size());
+		for (Object toNumber : toNumbers) {
+			outstanding.add(String.valueOf(toNumber));
+		}
+		return outstanding;
+	}
+
+	/**
+	 * Wraps a stream of contacts so that every number is added to this set
+	 * as it is read, e.g. while it is being uploaded.
+	 * @param toNumbers
+	 * @return an iterator over the same contacts
+	 */
+	public Iterator<ToNumber> track(final Iterator<ToNumber> toNumbers) {
+		return new Iterator<ToNumber>() {
+			@Override
+			public boolean hasNext() {
+				return toNumbers.hasNext();
+			}
+
+			@Override
+			public ToNumber next() {
+				ToNumber toNumber = toNumbers.next();
+				add(toNumber.getValue());
+				return toNumber;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @param toNumber
+	 * @return true if the number was added, false if it was already outstanding or invalid
+	 */
+	public synchronized boolean add(CharSequence toNumber) {
+		long number = PhoneNumbers.normalize(toNumber);
+		if (number == PhoneNumbers.INVALID) {
+			invalid++;
+			return false;
+		}
+		return add(number);
+	}
+
+	/**
+	 * @param number a normalized number
+	 * @return true if the number was added, false if it was already outstanding
+	 */
+	public synchronized boolean add(long number) {
+		checkNumber(number);
+		if (size + 1 > table.length * LOAD_FACTOR) {
+			resize(table.length << 1);
+		}
+		int mask = table.length - 1;
+		int i = index(number, mask);
+		while (table[i] != EMPTY) {
+			if (table[i] == number) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = number;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Marks a recipient as having reached a final result.
+	 * @param toNumber
+	 * @return true if the number was outstanding
+	 */
+	public synchronized boolean complete(CharSequence toNumber) {
+		long number = PhoneNumbers.normalize(toNumber);
+		return number != PhoneNumbers.INVALID && complete(number);
+	}
+
+	/**
+	 * @param number a normalized number
+	 * @return true if the number was outstanding
+	 */
+	public synchronized boolean complete(long number) {
+		checkNumber(number);
+		int mask = table.length - 1;
+		int i = index(number, mask);
+		while (table[i] != EMPTY) {
+			if (table[i] == number) {
+				deleteAt(i, mask);
+				if (--size == 0) {
+					notifyAll();
+				}
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	public synchronized boolean contains(CharSequence toNumber) {
+		long number = PhoneNumbers.normalize(toNumber);
+		if (number == PhoneNumbers.INVALID) {
+			return false;
+		}
+		int mask = table.length - 1;
+		int i = index(number, mask);
+		while (table[i] != EMPTY) {
+			if (table[i] == number) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of recipients still waiting for a final result
+	 */
+	public synchronized int remaining() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Blocks until every recipient has reached a final result.
+	 * @param timeoutMs the maximum time to wait
+	 * @return true if the set is empty, false if the timeout elapsed first
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitEmpty(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (size > 0) {
+			long remainingMs = deadline - System.currentTimeMillis();
+			if (remainingMs <= 0) {
+				return false;
+			}
+			wait(remainingMs);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of rejected numbers that could not be normalized
+	 */
+	public synchronized int getInvalidCount() {
+		return invalid;
+	}
+
+	/**
+	 * @return the outstanding numbers, in no particular order
+	 */
+	public synchronized long[] toArray() {
+		long[] numbers = new long[size];
+		int n = 0;
+		for (long number : table) {
+			if (number != EMPTY) {
+				numbers[n++] = number;
+			}
+		}
+		return numbers;
+	}
+
+	/**
+	 * Backward-shift deletion keeps probe sequences intact without tombstones.
+	 */
+	private void deleteAt(int hole, int mask) {
+		int i = hole;
+		while (true) {
+			i = (i + 1) & mask;
+			long number = table[i];
+			if (number == EMPTY) {
+				break;
+			}
+			int home = index(number, mask);
+			// move the entry into the hole unless its home lies cyclically in (hole, i]
+			if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+				table[hole] = number;
+				hole = i;
+			}
+		}
+		table[hole] = EMPTY;
+	}
+
+	private void resize(int capacity) {
+		long[] old = table;
+		table = new long[capacity];
+		int mask = capacity - 1;
+		for (long number : old) {
+			if (number != EMPTY) {
+				int i = index(number, mask);
+				while (table[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				table[i] = number;
+			}
+		}
+	}
+
+	private static void checkNumber(long number) {
+		if (number <= 0) {
+			throw new IllegalArgumentException("not a normalized number: " + number);
+		}
+	}
+
+	private static int index(long number, int mask) {
+		// murmur3 finalizer, spreads the low entropy of sequential numbers
+		long h = number;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int)h & mask;
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
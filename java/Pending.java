@@ -0,0 +1,313 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.callfire.api.service.wsdl.ServiceFault;
+
+/**
+ * The result of a call that runs in the background, e.g. from
+ * {@link AsyncPorts}.
+ *
+ * Like any Future it can be waited for, but it also runs callbacks once it
+ * completes, so dependent work starts as soon as its input is ready:
+ * {@link #whenDone(Callback)} is told of the outcome, {@link #then(Step)}
+ * starts a further call with the result, and {@link #all(List)} completes
+ * once every one of several independent calls has. Callbacks run on the
+ * thread that completes the result, or straight away on the caller's if it
+ * already has, so they should be short and must not block.
+ */
+public class Pending<V> implements Future<V> {
+	private static final Logger LOG = Logger.getLogger(Pending.class.getName());
+
+	/**
+	 * Is told how a result completed.
+	 */
+	public interface Callback<V> {
+		void onSuccess(V result);
+
+		void onFailure(Throwable failure);
+	}
+
+	/**
+	 * Starts further work with a result.
+	 */
+	public interface Step<V, R> {
+		Pending<R> apply(V result) throws Exception;
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	// run once, when the result completes
+	private final List<Runnable> listeners = new ArrayList<Runnable>(2);
+	private boolean completed;
+	private boolean cancelled;
+	private V result;
+	private Throwable failure;
+	private volatile Future<?> task;
+
+	/**
+	 * @param result
+	 * @return a result that has already completed
+	 */
+	public static <V> Pending<V> of(V result) {
+		Pending<V> pending = new Pending<V>();
+		pending.complete(result);
+		return pending;
+	}
+
+	/**
+	 * @param failure
+	 * @return a result that has already failed
+	 */
+	public static <V> Pending<V> failed(Throwable failure) {
+		Pending<V> pending = new Pending<V>();
+		pending.fail(failure);
+		return pending;
+	}
+
+	/**
+	 * @param pendings
+	 * @return the results of every one of pendings, in order, or the first failure
+	 */
+	public static <V> Pending<List<V>> all(final List<? extends Pending<? extends V>> pendings) {
+		final Pending<List<V>> all = new Pending<List<V>>();
+		if (pendings.isEmpty()) {
+			all.complete(Collections.<V>emptyList());
+			return all;
+		}
+		final AtomicInteger remaining = new AtomicInteger(pendings.size());
+		for (Pending<? extends V> pending : pendings) {
+			pending.whenDone(new Callback<V>() {
+				@Override
+				public void onSuccess(V result) {
+					if (remaining.decrementAndGet() == 0) {
+						List<V> results = new ArrayList<V>(pendings.size());
+						for (Pending<? extends V> completed : pendings) {
+							results.add(completed.getResult());
+						}
+						all.complete(results);
+					}
+				}
+
+				@Override
+				public void onFailure(Throwable failure) {
+					all.fail(failure);
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * @param result
+	 * @return false if it had already completed
+	 */
+	public boolean complete(V result) {
+		return finish(result, null, false);
+	}
+
+	/**
+	 * @param failure
+	 * @return false if it had already completed
+	 */
+	public boolean fail(Throwable failure) {
+		return finish(null, failure, false);
+	}
+
+	/**
+	 * Completes with a CancellationException and cancels the task computing
+	 * the result, if it hasn't started yet or mayInterruptIfRunning.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!finish(null, new CancellationException(), true)) {
+			return false;
+		}
+		Future<?> running = task;
+		if (running != null) {
+			running.cancel(mayInterruptIfRunning);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return completed;
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		done.await();
+		return report();
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return report();
+	}
+
+	/**
+	 * Waits for the result, failing the way the call itself would have.
+	 * @return the result
+	 * @throws ServiceFault if the call failed with one
+	 * @throws InterruptedException
+	 */
+	public V await() throws ServiceFault, InterruptedException {
+		done.await();
+		synchronized (this) {
+			if (failure == null) {
+				return result;
+			}
+			if (failure instanceof ServiceFault) {
+				throw (ServiceFault)failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException)failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error)failure;
+			}
+			throw new RuntimeException("exception in background call", failure);
+		}
+	}
+
+	/**
+	 * @param callback told of the outcome once the result completes
+	 * @return this
+	 */
+	public Pending<V> whenDone(final Callback<? super V> callback) {
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				V value;
+				Throwable thrown;
+				synchronized (Pending.this) {
+					value = result;
+					thrown = failure;
+				}
+				if (thrown == null) {
+					callback.onSuccess(value);
+				}
+				else {
+					callback.onFailure(thrown);
+				}
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * @param step started with the result, if it succeeds
+	 * @return the result of step, or the failure of either
+	 */
+	public <R> Pending<R> then(final Step<? super V, R> step) {
+		final Pending<R> next = new Pending<R>();
+		whenDone(new Callback<V>() {
+			@Override
+			public void onSuccess(V value) {
+				Pending<R> started;
+				try {
+					started = step.apply(value);
+				}
+				catch (Exception e) {
+					next.fail(e);
+					return;
+				}
+				started.whenDone(new Callback<R>() {
+					@Override
+					public void onSuccess(R value) {
+						next.complete(value);
+					}
+
+					@Override
+					public void onFailure(Throwable failure) {
+						next.fail(failure);
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(Throwable failure) {
+				next.fail(failure);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * @param task computes the result, so cancelling the result cancels it
+	 */
+	void setTask(Future<?> task) {
+		this.task = task;
+	}
+
+	private synchronized V getResult() {
+		return result;
+	}
+
+	private boolean finish(V value, Throwable thrown, boolean cancel) {
+		List<Runnable> completedListeners;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			completed = true;
+			cancelled = cancel;
+			result = value;
+			failure = thrown;
+			completedListeners = new ArrayList<Runnable>(listeners);
+			listeners.clear();
+		}
+		done.countDown();
+		for (Runnable listener : completedListeners) {
+			run(listener);
+		}
+		return true;
+	}
+
+	private void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!completed) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		run(listener);
+	}
+
+	private static void run(Runnable listener) {
+		try {
+			listener.run();
+		}
+		catch (RuntimeException e) {
+			// one failing callback mustn't keep the others from running
+			LOG.log(Level.WARNING, "exception in callback", e);
+		}
+	}
+
+	private synchronized V report() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException)failure;
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Helpers for normalizing phone numbers to E.164 digits packed into a long.
+ *
+ * E.164 numbers have at most 15 digits, so every valid number fits in a
+ * long without loss. A number written with a leading '+' already has its
+ * country code and must have 8 to 15 digits. Without one, North American
+ * 10 digit numbers are assumed to be missing their country code and are
+ * prefixed with 1.
+ */
+public final class PhoneNumbers {
+	public static final long INVALID = -1L;
+
+	private static final int MAX_DIGITS = 15;
+	private static final int MIN_INTERNATIONAL_DIGITS = 8;
+
+	private PhoneNumbers() {
+	}
+
+	/**
+	 * @param number a phone number in any common format, e.g. "(213) 221-2289" or "+1 213 221 2289"
+	 * @return the E.164 digits packed as a long, or {@link #INVALID} if the number can't be normalized
+	 */
+	public static long normalize(CharSequence number) {
+		if (number == null) {
+			return INVALID;
+		}
+		long value = 0;
+		int digits = 0;
+		boolean international = false;
+		for (int i = 0; i < number.length(); i++) {
+			char c = number.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (digits == 0 && c == '0') {
+					// country codes never start with 0
+					return INVALID;
+				}
+				if (++digits > MAX_DIGITS) {
+					return INVALID;
+				}
+				value = value * 10 + (c - '0');
+			}
+			else if (c == '+' && digits == 0) {
+				international = true;
+			}
+			else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')') {
+				return INVALID;
+			}
+		}
+		if (international) {
+			return digits < MIN_INTERNATIONAL_DIGITS ? INVALID : value;
+		}
+		if (digits == 10) {
+			// assume a North American number without its country code
+			return 10000000000L + value;
+		}
+		return digits < 7 ? INVALID : value;
+	}
+
+	/**
+	 * @param number a normalized number as returned from {@link #normalize(CharSequence)}
+	 * @return the E.164 digits without the leading '+'
+	 */
+	public static String toDigits(long number) {
+		return Long.toString(number);
+	}
+}
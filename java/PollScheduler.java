@@ -0,0 +1,310 @@
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.callfire.api.data.Action;
+import com.callfire.api.service.wsdl.ServiceFault;
+
+/**
+ * Polls any number of broadcasts and batches from a few shared threads.
+ *
+ * Instead of a sleeping thread per broadcast, each {@link Poll} is a task
+ * on one ScheduledExecutorService that reschedules itself after every
+ * poll. The interval adapts to the completion rate: it doubles, up to
+ * maxIntervalMs, while nothing completes, and otherwise is half the time
+ * the outstanding recipients are expected to take at the observed rate,
+ * so polling speeds up as a broadcast nears the end. A poll never runs
+ * past its deadline; the last one runs at the deadline.
+ *
+ * A poll may be gated by a {@link BroadcastStatsMonitor}, in which case
+ * the broadcast's counters are read first and the trackers only query
+ * actions when the number of finished actions has changed.
+ *
+ * A poll that fails with a fault {@link ResilientPorts} considers
+ * retryable is treated as one that saw no progress and tried again later,
+ * so an outage shorter than the timeout doesn't end the poll. Any other
+ * failure ends it at once.
+ */
+public class PollScheduler implements Closeable {
+	public static final long DEFAULT_MIN_INTERVAL_MS = 500;
+	public static final long DEFAULT_INITIAL_INTERVAL_MS = 2000;
+	public static final long DEFAULT_MAX_INTERVAL_MS = 30000;
+	/**
+	 * Polls block on their queries, and on the backoff of retried ones, so
+	 * more than one thread keeps a slow broadcast from stalling the rest.
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	private final ScheduledExecutorService executor;
+	private final long minIntervalMs;
+	private final long initialIntervalMs;
+	private final long maxIntervalMs;
+	private final Set<Poll<?>> active = Collections.newSetFromMap(new ConcurrentHashMap<Poll<?>, Boolean>());
+
+	public PollScheduler() {
+		this(DEFAULT_THREADS, DEFAULT_MIN_INTERVAL_MS, DEFAULT_INITIAL_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS);
+	}
+
+	/**
+	 * @param threads the number of threads polls run on
+	 * @param minIntervalMs
+	 * @param initialIntervalMs the delay before the first poll
+	 * @param maxIntervalMs
+	 */
+	public PollScheduler(int threads, long minIntervalMs, long initialIntervalMs, long maxIntervalMs) {
+		if (minIntervalMs <= 0 || minIntervalMs > maxIntervalMs) {
+			throw new IllegalArgumentException("bad poll intervals: " + minIntervalMs + " to " + maxIntervalMs);
+		}
+		this.minIntervalMs = minIntervalMs;
+		this.initialIntervalMs = initialIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+		this.executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "poll-scheduler-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts polling the trackers until every outstanding recipient completes,
+	 * the timeout elapses or the poll is cancelled.
+	 * @param trackers
+	 * @param listener completes recipients in outstanding, it must be idempotent
+	 * @param outstanding
+	 * @param timeoutMs
+	 * @return a handle to wait on or cancel the poll
+	 */
+	public <T extends Action> Poll<T> schedule(List<ActionStatusTracker<T>> trackers,
+			ActionStatusTracker.Listener<? super T> listener, OutstandingNumbers outstanding, long timeoutMs) {
+		return schedule(trackers, listener, outstanding, timeoutMs, null);
+	}
+
+	/**
+	 * Like {@link #schedule(List, ActionStatusTracker.Listener, OutstandingNumbers, long)},
+	 * but skips the trackers' queries while the stats show no new finished actions.
+	 * @param trackers
+	 * @param listener completes recipients in outstanding, it must be idempotent
+	 * @param outstanding
+	 * @param timeoutMs
+	 * @param stats the monitor of the broadcast the trackers belong to, or null
+	 * @return a handle to wait on or cancel the poll
+	 */
+	public <T extends Action> Poll<T> schedule(List<ActionStatusTracker<T>> trackers,
+			ActionStatusTracker.Listener<? super T> listener, OutstandingNumbers outstanding, long timeoutMs,
+			BroadcastStatsMonitor stats) {
+		Poll<T> poll = new Poll<T>(trackers, listener, outstanding, timeoutMs, stats);
+		active.add(poll);
+		poll.scheduleNext(Math.min(initialIntervalMs, Math.max(0, timeoutMs)));
+		return poll;
+	}
+
+	/**
+	 * Cancels every active poll and stops the threads.
+	 */
+	@Override
+	public void close() {
+		for (Poll<?> poll : active) {
+			poll.cancel();
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the number of polls that haven't finished
+	 */
+	public int getActiveCount() {
+		return active.size();
+	}
+
+	/**
+	 * One broadcast's, or set of batches', polling task.
+	 */
+	public class Poll<T extends Action> implements Runnable {
+		private final List<ActionStatusTracker<T>> trackers;
+		private final ActionStatusTracker.Listener<? super T> listener;
+		private final OutstandingNumbers outstanding;
+		private final BroadcastStatsMonitor stats;
+		private final long deadline;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		// written only by the task, which never runs concurrently with itself
+		private volatile long intervalMs = initialIntervalMs;
+		private int lastRemaining;
+		private int lastFinished = -1;
+
+		private volatile ScheduledFuture<?> future;
+		private volatile boolean completed;
+		private volatile ServiceFault fault;
+		private volatile RuntimeException failure;
+		private volatile int polls;
+
+		Poll(List<ActionStatusTracker<T>> trackers, ActionStatusTracker.Listener<? super T> listener,
+				OutstandingNumbers outstanding, long timeoutMs, BroadcastStatsMonitor stats) {
+			this.trackers = trackers;
+			this.listener = listener;
+			this.outstanding = outstanding;
+			this.stats = stats;
+			this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+			this.lastRemaining = outstanding.remaining();
+		}
+
+		@Override
+		public void run() {
+			if (isDone()) {
+				return;
+			}
+			Exception transientFailure = null;
+			try {
+				int finished = readFinished();
+				if (stats == null || finished != lastFinished) {
+					for (ActionStatusTracker<T> tracker : trackers) {
+						tracker.poll(listener);
+					}
+				}
+				// only once the trackers have seen them
+				lastFinished = finished;
+			}
+			catch (ServiceFault e) {
+				if (!ResilientPorts.isRetryable(e)) {
+					fault = e;
+					finish(false);
+					return;
+				}
+				transientFailure = e;
+			}
+			catch (RuntimeException e) {
+				if (!ResilientPorts.isRetryable(e)) {
+					failure = e;
+					finish(false);
+					return;
+				}
+				transientFailure = e;
+			}
+			polls++;
+
+			int remaining = outstanding.remaining();
+			if (remaining == 0) {
+				finish(true);
+				return;
+			}
+			long untilDeadlineMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (untilDeadlineMs <= 0) {
+				// report why the last poll failed rather than just timing out
+				if (transientFailure instanceof ServiceFault) {
+					fault = (ServiceFault)transientFailure;
+				}
+				else if (transientFailure != null) {
+					failure = (RuntimeException)transientFailure;
+				}
+				finish(false);
+				return;
+			}
+			intervalMs = nextInterval(lastRemaining - remaining, remaining);
+			lastRemaining = remaining;
+			scheduleNext(Math.min(intervalMs, untilDeadlineMs));
+		}
+
+		/**
+		 * Reads the counters, which happens before the trackers query, so
+		 * no result that finishes in between can be missed.
+		 */
+		private int readFinished() throws ServiceFault {
+			return stats == null ? -1 : stats.refresh().getFinished();
+		}
+
+		private long nextInterval(int completedSinceLast, int remaining) {
+			if (completedSinceLast <= 0) {
+				return Math.min(maxIntervalMs, intervalMs * 2);
+			}
+			// the time the rest should take at the rate seen since the last poll
+			double expectedMs = (double)remaining * intervalMs / completedSinceLast;
+			long next = Math.min((long)(expectedMs / 2), intervalMs * 2);
+			return Math.max(minIntervalMs, Math.min(maxIntervalMs, next));
+		}
+
+		private void scheduleNext(long delayMs) {
+			try {
+				future = executor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+			}
+			catch (RuntimeException e) {
+				// the scheduler was closed
+				finish(false);
+			}
+			if (isDone() && future != null) {
+				future.cancel(false);
+			}
+		}
+
+		private synchronized void finish(boolean allCompleted) {
+			if (isDone()) {
+				return;
+			}
+			completed = allCompleted;
+			active.remove(this);
+			done.countDown();
+		}
+
+		/**
+		 * Stops polling; waiting threads see the poll as not completed.
+		 */
+		public void cancel() {
+			if (isDone()) {
+				return;
+			}
+			ScheduledFuture<?> scheduled = future;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+			finish(false);
+		}
+
+		/**
+		 * Blocks until the poll finishes.
+		 * @return true if every outstanding recipient completed
+		 * @throws ServiceFault if a poll failed
+		 * @throws InterruptedException
+		 */
+		public boolean await() throws ServiceFault, InterruptedException {
+			done.await();
+			if (fault != null) {
+				throw fault;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return completed;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		/**
+		 * @return the number of polls run so far
+		 */
+		public int getPollCount() {
+			return polls;
+		}
+
+		/**
+		 * @return the current interval between polls
+		 */
+		public long getIntervalMs() {
+			return intervalMs;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A bounded pool of JAX-WS ports of one service type.
+ *
+ * Ports are expensive to create and must not be used by two threads at
+ * once, so each port is created lazily, at most maxSize of them, and
+ * handed out to one caller at a time with {@link #checkout()} and
+ * {@link #release(Object)}. {@link #shared()} returns a single thread-safe
+ * instance of the port interface that does the checkout and release around
+ * every call, which is usually all a caller needs.
+ */
+public class PortPool<T> {
+
+	/**
+	 * Creates new ports for the pool.
+	 */
+	public interface Factory<T> {
+		T create();
+	}
+
+	private final Class<T> portType;
+	private final Factory<T> factory;
+	private final int maxSize;
+	private final BlockingQueue<T> idle;
+	private final T shared;
+	private int created;
+
+	public PortPool(Class<T> portType, Factory<T> factory, int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.portType = portType;
+		this.factory = factory;
+		this.maxSize = maxSize;
+		this.idle = new LinkedBlockingQueue<T>(maxSize);
+		this.shared = portType.cast(Proxy.newProxyInstance(portType.getClassLoader(),
+				new Class<?>[] { portType }, new PooledInvocationHandler()));
+	}
+
+	/**
+	 * Takes a port out of the pool, creating one if none is idle and the pool
+	 * isn't full, or otherwise waiting for one to be released.
+	 * @return a port for the exclusive use of the caller until it is released
+	 */
+	public T checkout() {
+		T port = idle.poll();
+		if (port != null) {
+			return port;
+		}
+		synchronized (this) {
+			if (created < maxSize) {
+				port = factory.create();
+				created++;
+				return port;
+			}
+		}
+		try {
+			return idle.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted waiting for a " + portType.getSimpleName(), e);
+		}
+	}
+
+	/**
+	 * Returns a port obtained from {@link #checkout()} to the pool.
+	 * @param port
+	 */
+	public void release(T port) {
+		if (!idle.offer(port)) {
+			throw new IllegalStateException("released more ports than were checked out");
+		}
+	}
+
+	/**
+	 * @return a thread-safe port that borrows a pooled port for each call
+	 */
+	public T shared() {
+		return shared;
+	}
+
+	public Class<T> getPortType() {
+		return portType;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of ports created so far
+	 */
+	public synchronized int getCreated() {
+		return created;
+	}
+
+	private class PooledInvocationHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(this, args);
+			}
+			T port = checkout();
+			try {
+				return method.invoke(port, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			finally {
+				release(port);
+			}
+		}
+	}
+}
@@ -0,0 +1,12 @@
+/**
+ * Adds behaviour around every call made through a port, by returning
+ * another implementation of the port interface that delegates to it.
+ */
+public interface PortWrapper {
+	/**
+	 * @param portType
+	 * @param port a thread-safe port
+	 * @return a thread-safe port of the same type
+	 */
+	<T> T wrap(Class<T> portType, T port);
+}
@@ -0,0 +1,277 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.callfire.api.data.ToNumber;
+
+/**
+ * Normalizes recipients and drops the ones that shouldn't be sent to,
+ * before they are uploaded.
+ *
+ * Every number is normalized with {@link PhoneNumbers} and rewritten as
+ * its E.164 digits. Numbers that can't be normalized are dropped, and so
+ * is every number already seen by this instance, so one instance per
+ * broadcast removes duplicates within and across all of its batches,
+ * however they were formatted.
+ *
+ * Seen numbers are kept exactly, as primitive longs, up to a few million
+ * numbers, at 16 to 32 bytes each. Beyond that a Bloom filter takes about
+ * 4 bytes a number at the default rate; it never lets a duplicate through,
+ * but may drop a number it hasn't seen at falsePositiveRate, which the
+ * {@link Report} estimates separately.
+ */
+public class RecipientDeduplicator {
+	/**
+	 * Expected sizes above this use a Bloom filter, see {@link #forExpectedSize(long)}.
+	 */
+	public static final long BLOOM_FILTER_THRESHOLD = 4000000;
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-6;
+
+	private static final int MAX_SAMPLES = 20;
+
+	private final OutstandingNumbers exact;
+	private final BloomFilter bloom;
+	private long accepted;
+	private long duplicates;
+	private long invalid;
+	private final List<String> droppedSamples = new ArrayList<String>();
+
+	/**
+	 * Creates a deduplicator that keeps every number exactly.
+	 * @param expectedSize
+	 */
+	public RecipientDeduplicator(int expectedSize) {
+		this.exact = new OutstandingNumbers(expectedSize);
+		this.bloom = null;
+	}
+
+	private RecipientDeduplicator(long expectedSize, double falsePositiveRate) {
+		this.exact = null;
+		this.bloom = new BloomFilter(expectedSize, falsePositiveRate);
+	}
+
+	/**
+	 * @param expectedSize
+	 * @param falsePositiveRate the chance that a number never seen is dropped as a duplicate
+	 * @return a deduplicator backed by a Bloom filter
+	 */
+	public static RecipientDeduplicator withBloomFilter(long expectedSize, double falsePositiveRate) {
+		return new RecipientDeduplicator(expectedSize, falsePositiveRate);
+	}
+
+	/**
+	 * @param expectedSize
+	 * @return an exact deduplicator, or one backed by a Bloom filter if expectedSize
+	 * is over {@link #BLOOM_FILTER_THRESHOLD}
+	 */
+	public static RecipientDeduplicator forExpectedSize(long expectedSize) {
+		if (expectedSize > BLOOM_FILTER_THRESHOLD) {
+			return withBloomFilter(expectedSize, DEFAULT_FALSE_POSITIVE_RATE);
+		}
+		return new RecipientDeduplicator((int)expectedSize);
+	}
+
+	/**
+	 * Normalizes the recipient in place if it is kept.
+	 * @param toNumber
+	 * @return true if the recipient should be sent to
+	 */
+	public synchronized boolean accept(ToNumber toNumber) {
+		String raw = toNumber.getValue();
+		long number = PhoneNumbers.normalize(raw);
+		if (number == PhoneNumbers.INVALID) {
+			invalid++;
+			sample("invalid", raw);
+			return false;
+		}
+		boolean added = exact != null ? exact.add(number) : bloom.add(number);
+		if (!added) {
+			duplicates++;
+			sample("duplicate", raw);
+			return false;
+		}
+		accepted++;
+		toNumber.setValue(PhoneNumbers.toDigits(number));
+		return true;
+	}
+
+	/**
+	 * @param toNumbers
+	 * @return the recipients of toNumbers that are accepted, read lazily
+	 */
+	public Iterator<ToNumber> filter(final Iterator<ToNumber> toNumbers) {
+		return new Iterator<ToNumber>() {
+			private ToNumber next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && toNumbers.hasNext()) {
+					ToNumber toNumber = toNumbers.next();
+					if (accept(toNumber)) {
+						next = toNumber;
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public ToNumber next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ToNumber toNumber = next;
+				next = null;
+				return toNumber;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return what has been accepted and dropped so far
+	 */
+	public synchronized Report getReport() {
+		return new Report(accepted, duplicates, invalid, bloom == null ? 0 : bloom.expectedFalsePositives(accepted),
+				new ArrayList<String>(droppedSamples));
+	}
+
+	private void sample(String reason, String raw) {
+		if (droppedSamples.size() < MAX_SAMPLES) {
+			droppedSamples.add(reason + " " + raw);
+		}
+	}
+
+	/**
+	 * The counts of recipients accepted and dropped.
+	 */
+	public static class Report {
+		private final long accepted;
+		private final long duplicates;
+		private final long invalid;
+		private final double expectedFalsePositives;
+		private final List<String> droppedSamples;
+
+		Report(long accepted, long duplicates, long invalid, double expectedFalsePositives,
+				List<String> droppedSamples) {
+			this.accepted = accepted;
+			this.duplicates = duplicates;
+			this.invalid = invalid;
+			this.expectedFalsePositives = expectedFalsePositives;
+			this.droppedSamples = Collections.unmodifiableList(droppedSamples);
+		}
+
+		public long getAccepted() {
+			return accepted;
+		}
+
+		/**
+		 * @return the number of recipients dropped as duplicates, including any false positives
+		 */
+		public long getDuplicates() {
+			return duplicates;
+		}
+
+		public long getInvalid() {
+			return invalid;
+		}
+
+		/**
+		 * @return how many of the duplicates a Bloom filter is expected to have dropped
+		 * wrongly, 0 when numbers are kept exactly
+		 */
+		public double getExpectedFalsePositives() {
+			return expectedFalsePositives;
+		}
+
+		/**
+		 * @return the first few dropped numbers, each prefixed with why it was dropped
+		 */
+		public List<String> getDroppedSamples() {
+			return droppedSamples;
+		}
+
+		@Override
+		public String toString() {
+			String report = accepted + " accepted, " + duplicates + " duplicates and " + invalid + " invalid dropped";
+			if (expectedFalsePositives > 0) {
+				report += String.format(" (about %.2g of the duplicates may not be)", expectedFalsePositives);
+			}
+			return droppedSamples.isEmpty() ? report : report + ", e.g. " + droppedSamples;
+		}
+	}
+
+	/**
+	 * A Bloom filter of normalized numbers, using double hashing to derive
+	 * its hash functions from two halves of one 64 bit hash.
+	 */
+	private static class BloomFilter {
+		private final long[] bits;
+		private final long bitCount;
+		private final int hashCount;
+
+		BloomFilter(long expectedSize, double falsePositiveRate) {
+			if (expectedSize <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+				throw new IllegalArgumentException("bad Bloom filter parameters: " + expectedSize + ", "
+						+ falsePositiveRate);
+			}
+			double ln2 = Math.log(2);
+			long m = (long)Math.ceil(-expectedSize * Math.log(falsePositiveRate) / (ln2 * ln2));
+			this.bits = new long[(int)Math.min(Integer.MAX_VALUE - 8, (m + 63) >>> 6)];
+			this.bitCount = (long)bits.length << 6;
+			this.hashCount = Math.max(1, (int)Math.round((double)bitCount / expectedSize * ln2));
+		}
+
+		/**
+		 * @return true if the number was not in the filter
+		 */
+		boolean add(long number) {
+			long hash = mix(number);
+			int h1 = (int)hash;
+			int h2 = (int)(hash >>> 32);
+			boolean added = false;
+			for (int i = 1; i <= hashCount; i++) {
+				long combined = (h1 + (long)i * h2) & Long.MAX_VALUE;
+				long bit = combined % bitCount;
+				long mask = 1L << bit;
+				int word = (int)(bit >>> 6);
+				if ((bits[word] & mask) == 0) {
+					bits[word] |= mask;
+					added = true;
+				}
+			}
+			return added;
+		}
+
+		/**
+		 * @param inserted the numbers added so far
+		 * @return the expected number of wrongly dropped numbers among that many insertions
+		 */
+		double expectedFalsePositives(long inserted) {
+			double sum = 0;
+			// the false positive rate grows as the filter fills, so sum it over a few steps
+			int steps = 16;
+			for (int step = 1; step <= steps; step++) {
+				double n = (double)inserted * step / steps;
+				sum += Math.pow(1 - Math.exp(-hashCount * n / bitCount), hashCount) * inserted / steps;
+			}
+			return sum;
+		}
+
+		private static long mix(long number) {
+			// murmur3 finalizer, as in OutstandingNumbers
+			long h = number;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
@@ -1,16 +1,21 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.namespace.QName;
-
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 
@@ -25,17 +30,13 @@ import com.callfire.api.data.ToNumber;
 import com.callfire.api.service.wsdl.BroadcastServicePortType;
 import com.callfire.api.service.wsdl.ServiceFault;
 import com.callfire.api.service.wsdl.TextServicePortType;
-import com.callfire.api.service.wsdl.http.soap12.CallFireApi;
 import com.callfire.api.service.wsdl.http.soap12.CallFireApi.ServiceState;
-import com.callfire.api.service.xsd.ActionQuery;
 import com.callfire.api.service.xsd.BroadcastCommand;
 import com.callfire.api.service.xsd.BroadcastRequest;
 import com.callfire.api.service.xsd.ControlBroadcast;
 import com.callfire.api.service.xsd.CreateBroadcastSchedule;
-import com.callfire.api.service.xsd.CreateContactBatch;
 import com.callfire.api.service.xsd.FaultCode;
 import com.callfire.api.service.xsd.IdRequest;
-import com.callfire.api.service.xsd.TextQueryResult;
 
 /**
  * Example implementation of using CallFire's APIs to send
@@ -51,23 +52,64 @@ public class RegistrationTextBroadcastSample {
 	private final String password;
 	private final int maxWaitMs;
 	
-	private final CallFireApi callFireApi;
+	private final CallFireClientPool clientPool;
+	private final NotificationReceiver notificationReceiver;
+	private final PollScheduler pollScheduler;
+	private final CampaignOrchestrator orchestrator;
 	private final BroadcastServicePortType broadcastService;
 	private final TextServicePortType textService;
+	private final ActionStreamPort actionStream;
+	private final SendJournal sendJournal;
+	private final ContactBatchUploader batchUploader;
+	private final ContactListManager contactLists;
+	private final File resultExportFile;
+	// each broadcast's recipients so far, so no one gets a text twice
+	private final ConcurrentMap<Long, RecipientDeduplicator> recipients =
+			new ConcurrentHashMap<Long, RecipientDeduplicator>();
+	// each broadcast's message, compiled to check what every recipient will get
+	private final ConcurrentMap<Long, MergeTemplate> templates = new ConcurrentHashMap<Long, MergeTemplate>();
+	// the merge attributes of every batch of this run, so equal values and sets are shared across batches
+	private final ContactAttributes.Pool attributes = new ContactAttributes.Pool();
 	private final PropertiesConfiguration propertiesConfig;
 	private Long scheduleId;
 	
-	public RegistrationTextBroadcastSample() throws ConfigurationException {
+	public RegistrationTextBroadcastSample() throws ConfigurationException, IOException {
 		propertiesConfig = new PropertiesConfiguration("sample.properties");
 		user = propertiesConfig.getString("user");
 		password = propertiesConfig.getString("password");
 		maxWaitMs = propertiesConfig.getInt("max_wait_ms");
-		callFireApi = new CallFireApi(user, password, ServiceState.DEVELOPMENT);
-		broadcastService = callFireApi.getBroadcastServicePort();
-		textService = callFireApi.getTextServicePort();
+		// ports are created once and pooled so they can be shared across threads,
+		// set offline = true to run against an in-process fake of the API
+		clientPool = CallFireClientPool.fromConfiguration(propertiesConfig, ServiceState.DEVELOPMENT);
+		// set notification_url to have results pushed to us instead of polling for them
+		notificationReceiver = NotificationReceiver.fromConfiguration(propertiesConfig,
+				clientPool.getSubscriptionService());
+		// one shared scheduler runs every poll, at intervals that adapt to progress
+		pollScheduler = new PollScheduler();
+		// campaigns run concurrently, with a bounded number of calls in flight to each service
+		orchestrator = new CampaignOrchestrator(propertiesConfig.getInt("campaign_max_calls_per_endpoint",
+				CampaignOrchestrator.DEFAULT_MAX_CALLS_PER_ENDPOINT));
+		broadcastService = orchestrator.limit(BroadcastServicePortType.class, clientPool.getBroadcastService());
+		textService = orchestrator.limit(TextServicePortType.class, clientPool.getTextService());
+		// set stream_query_results to decode only the fields polling reads from each page of results
+		actionStream = propertiesConfig.getBoolean("stream_query_results", false)
+				? orchestrator.limit(ActionStreamPort.class, clientPool.getActionStream()) : null;
+		// set send_journal_file to record sends, so an interrupted run resumes without sending twice
+		sendJournal = SendJournal.fromConfiguration(propertiesConfig);
+		batchUploader = new ContactBatchUploader(broadcastService, sendJournal);
+		// set contact_list_dir to keep the students of a contact file in a contact list,
+		// so sending the file again only uploads the rows that changed
+		contactLists = ContactListManager.fromConfiguration(propertiesConfig, clientPool.getContactService());
+		// set result_export_file to save every text of a contact file's broadcast once it is done
+		String exportFile = propertiesConfig.getString("result_export_file", "").trim();
+		resultExportFile = exportFile.length() == 0 ? null : new File(exportFile);
 	}
 	
 	private long createBroadcast(final String textMsg) throws ServiceFault {
+		return createBroadcast(textMsg, SendJournal.newRequestId());
+	}
+	
+	private long createBroadcast(final String textMsg, String requestId) throws ServiceFault {
 		TextBroadcastConfig config = new TextBroadcastConfig();
 		config.setMessage(textMsg);
 
@@ -75,6 +117,7 @@ public class RegistrationTextBroadcastSample {
 		broadcast.setTextBroadcastConfig(config);
 		broadcast.setName("student registration notification broadcast");
 		BroadcastRequest createRequest = new BroadcastRequest();
+		createRequest.setRequestId(requestId);
 		createRequest.setBroadcast(broadcast);
 		return broadcastService.createBroadcast(createRequest);
 	}
@@ -95,11 +138,14 @@ public class RegistrationTextBroadcastSample {
 		broadcast.setTextBroadcastConfig(config);
 		
 		broadcast.setName("student registration notification broadcast");
+		// the RequestIds let CallFire spot a retried create as a duplicate
 		BroadcastRequest createRequest = new BroadcastRequest();
+		createRequest.setRequestId(SendJournal.newRequestId());
 		createRequest.setBroadcast(broadcast);
 		Long broadcastId = broadcastService.createBroadcast(createRequest);
 
 		CreateBroadcastSchedule create = new CreateBroadcastSchedule();
+		create.setRequestId(SendJournal.newRequestId());
 		BroadcastSchedule schedule = new BroadcastSchedule();
 
 		schedule.setTimeZone(TimeZone.getDefault().getID());
@@ -114,84 +160,112 @@ public class RegistrationTextBroadcastSample {
 		return broadcastId;
 	}
 
-	private long sendBatch(String name, Map<String, Map<QName, String>> toNumbers, long broadcastId)
-			throws ServiceFault {
-		Long batchId = broadcastService.createContactBatch(createBatch(name, toNumbers, broadcastId));
+	/**
+	 * @param name
+	 * @param toNumbers
+	 * @param expectedRecipients sizes the broadcast's deduplicator when this is its first batch
+	 * @param broadcastId
+	 * @param contactListName the contact list to keep the recipients in, or null to upload them all
+	 * @param outstanding gets every recipient that is uploaded, i.e. that the filters accept
+	 */
+	private List<Long> sendBatch(String name, Iterator<ToNumber> toNumbers, long expectedRecipients,
+			long broadcastId, String contactListName, OutstandingNumbers outstanding)
+			throws ServiceFault, IOException {
+		// numbers are normalized, and ones that are invalid or were
+		// already sent in this or an earlier batch are dropped; very
+		// large sources are deduplicated with a Bloom filter
+		RecipientDeduplicator deduplicator = recipients.get(broadcastId);
+		if (deduplicator == null) {
+			recipients.putIfAbsent(broadcastId, RecipientDeduplicator.forExpectedSize(expectedRecipients));
+			deduplicator = recipients.get(broadcastId);
+		}
+		
+		// every recipient's message is rendered locally, and ones
+		// that would be too long to send are dropped before upload
+		MergeTemplate.SizeCheck sizeCheck = templates.get(broadcastId).newSizeCheck(null,
+				propertiesConfig.getInt("text_max_segments", MergeTemplate.DEFAULT_MAX_SEGMENTS));
+
+		// the size check runs first, so a number is only marked as seen once
+		// it passes every filter, and a later valid row for it is still sent;
+		// only the recipients that are uploaded are awaited, a dropped one never gets a result
+		Iterator<ToNumber> students = outstanding.track(deduplicator.filter(sizeCheck.filter(toNumbers)));
+		List<Long> batchIds;
+		if (contactListName != null && contactLists != null) {
+			// only the changes to the list are uploaded, and the batch is created from it
+			long contactListId = contactLists.sync(contactListName, students);
+			batchIds = Collections.singletonList(batchUploader.upload(name, broadcastId, contactListId));
+		}
+		else {
+			// large lists are split into several batches
+			// which are uploaded concurrently
+			batchIds = batchUploader.upload(name, broadcastId, students);
+		}
+		LOG.info("recipients of broadcast " + broadcastId + ": " + deduplicator.getReport());
+		LOG.info("messages of broadcast " + broadcastId + ": " + sizeCheck);
 		
 		// start the broadcast
 		ControlBroadcast control = new ControlBroadcast();
 		control.setId(broadcastId);
 		control.setCommand(BroadcastCommand.START);
 		broadcastService.controlBroadcast(control);
-		return batchId;
-	}
-
-	private CreateContactBatch createBatch(String name, Map<String, Map<QName, String>> toNumbers, Long broadcastId) {
-		CreateContactBatch createBatch = new CreateContactBatch();
-		createBatch.setName(name);
-		createBatch.setBroadcastId(broadcastId);
-		for (String toNumber : toNumbers.keySet()) {
-			ToNumber toNumberElem = new ToNumber();
-			toNumberElem.setValue(toNumber);
-			toNumberElem.getOtherAttributes().putAll(toNumbers.get(toNumber));
-			createBatch.getToNumber().add(toNumberElem);
-		}
-		createBatch.setScrubBroadcastDuplicates(false);
-		return createBatch;
+		return batchIds;
 	}
 
 	/**
 	 * @param broadcastId
-	 * @param toNumbers
-	 * @return true if Result.SENT is received for each specified toNumber.
+	 * @param outstanding
+	 * @return true if Result.SENT is received for each outstanding toNumber.
 	 */
-	private boolean pollForResponse(long broadcastId, Collection<Object> toNumbers, Long batchId) {
-		LOG.info("polling for responses for batch: " + batchId);
+	private boolean pollForResponse(long broadcastId, final OutstandingNumbers outstanding, List<Long> batchIds) {
+		LOG.info("polling for responses for batches: " + batchIds);
 		
-		final int sleepInterval = 3000;
-		int totalWait = 0;
-
-		ActionQuery textQuery = new ActionQuery();
-		textQuery.setBroadcastId(broadcastId);
-
-		while (totalWait < maxWaitMs) {
-			try {
-				Thread.sleep(sleepInterval);
-				totalWait += sleepInterval;
-			}
-			catch (InterruptedException e) {
-				LOG.log(Level.FINE, "interrupted", e);
+		List<ActionStatusTracker<Text>> trackers = new ArrayList<ActionStatusTracker<Text>>(batchIds.size());
+		for (Long batchId : batchIds) {
+			trackers.add(actionStream == null ? ActionStatusTracker.forTexts(textService, broadcastId, batchId)
+					: ActionStatusTracker.forTexts(actionStream, broadcastId, batchId));
+		}
+		ActionStatusTracker.Listener<Text> listener = new ActionStatusTracker.Listener<Text>() {
+			@Override
+			public void onAction(Text text) {
+				Result finalResult = text.getFinalResult();
+				if (finalResult != null) {
+					if (finalResult.equals(Result.SENT)) {
+						String toNumber = text.getToNumber().getValue();
+						outstanding.complete(toNumber);
+						LOG.info("batchId: " + text.getBatchId() + " with toNumber: " + toNumber);
+					}
+				}
 			}
+		};
 
+		if (notificationReceiver != null) {
+			// results are pushed as they happen, polling is only used to catch up
 			try {
-				LOG.info("polling for text status");
-				TextQueryResult result = textService.queryTexts(textQuery);
-				List<Text> textList = result.getText();
-				if (textList.isEmpty()) {
-					throw new RuntimeException("call query did not return a text");
-				}
-
-				for (Text text : textList) {
-					Result finalResult = text.getFinalResult();
-					if (finalResult != null) {
-						if (finalResult.equals(Result.SENT)) {
-							String toNumber = text.getToNumber().getValue();
-							if (text.getBatchId().equals(batchId)) {
-								toNumbers.remove(toNumber);
-							}
-							LOG.info("batchId: " + text.getBatchId() + " with toNumber: " + toNumber);
-							if (toNumbers.isEmpty()) {
-								return true;
-							}
-						}
-					}
-				}
+				return notificationReceiver.await(Text.class, trackers, listener, outstanding, maxWaitMs);
 			}
 			catch (ServiceFault e) {
-				throw new RuntimeException("exception querying for texts", e);
+				throw new RuntimeException("exception waiting for text notifications", e);
 			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		// the batches are only queried when the broadcast's counters show new results
+		PollScheduler.Poll<Text> poll = pollScheduler.schedule(trackers, listener, outstanding, maxWaitMs,
+				new BroadcastStatsMonitor(broadcastService, broadcastId));
+		try {
+			return poll.await();
+		}
+		catch (ServiceFault e) {
+			throw new RuntimeException("exception querying for texts", e);
+		}
+		catch (InterruptedException e) {
+			poll.cancel();
+			Thread.currentThread().interrupt();
+			return false;
 		}
-		return false;
 	}
 	
 	private Calendar getCalendarFromHour(int hour) {
@@ -200,49 +274,55 @@ public class RegistrationTextBroadcastSample {
 		return calendar;
 	}
 	
-	private void sendFallRegistrationBatch(long broadcastId, List<Object> toNumbers) throws ServiceFault {
+	private void sendFallRegistrationBatch(long broadcastId, List<Object> toNumbers) throws ServiceFault, IOException {
 		
-		Map<String, Map<QName, String>> fallContacts = new HashMap<String, Map<QName, String>>();
+		// every student in the batch shares one set of attributes
+		ContactAttributes fallAttributes = attributes.none().with("regTimeWindow", "9/9/2012 at 12:30-1:30pm")
+				.with("regLocation", "school gym");
+		Map<String, ContactAttributes> fallContacts = new HashMap<String, ContactAttributes>();
 		
 		for (Object toNumber : toNumbers) {
-			Map<QName, String> attributes = new HashMap<QName, String>();
-			attributes.put(new QName("regTimeWindow"), "9/9/2012 at 12:30-1:30pm");
-			attributes.put(new QName("regLocation"), "school gym");
-			fallContacts.put((String)toNumber, attributes);
+			fallContacts.put((String)toNumber, fallAttributes);
 		}
 		
 		// send batch for fall 2012 students
-		Long fallBatchId = sendBatch("Fall Batch", fallContacts, broadcastId);
-		boolean response = pollForResponse(broadcastId, toNumbers, fallBatchId);
+		OutstandingNumbers outstanding = new OutstandingNumbers(toNumbers.size());
+		List<Long> fallBatchIds = sendBatch("Fall Batch", ContactBatchUploader.toNumbers(fallContacts),
+				fallContacts.size(), broadcastId, null, outstanding);
+		boolean response = pollForResponse(broadcastId, outstanding, fallBatchIds);
+		batchUploader.complete(broadcastId);
 
 		if (!response) {
-			LOG.log(Level.WARNING, "did not receive postive reponse from batch: " + fallBatchId);
+			LOG.log(Level.WARNING, "did not receive postive reponse from batches: " + fallBatchIds);
 		}
 		else {
-			LOG.log(Level.INFO, "received postive reponse from batch: " + fallBatchId);
+			LOG.log(Level.INFO, "received postive reponse from batches: " + fallBatchIds);
 		}
 	}
 
-	private void sendWinterRegistrationBatch(long broadcastId, List<Object> toNumbers) throws ServiceFault {
-		Map<String, Map<QName, String>> winterContacts = new HashMap<String, Map<QName, String>>();
+	private void sendWinterRegistrationBatch(long broadcastId, List<Object> toNumbers) throws ServiceFault, IOException {
+		// every student in the batch shares one set of attributes
+		ContactAttributes winterAttributes = attributes.none().with("regTimeWindow", "12/19/2012 at 12:30-1:30pm")
+				.with("regLocation", "school gym");
+		Map<String, ContactAttributes> winterContacts = new HashMap<String, ContactAttributes>();
 		
 		for (Object toNumber : toNumbers) {
-			Map<QName, String> attributes = new HashMap<QName, String>();
-			attributes.put(new QName("regTimeWindow"), "12/19/2012 at 12:30-1:30pm");
-			attributes.put(new QName("regLocation"), "school gym");
-			winterContacts.put((String)toNumber, attributes);
+			winterContacts.put((String)toNumber, winterAttributes);
 		}
 		
 		// send another batch for winter 2012 students
 		// reusing the existing broadcast configuration.
-		Long winterBatchId = sendBatch("Winter Batch", winterContacts, broadcastId);
-		boolean response = pollForResponse(broadcastId, toNumbers, winterBatchId);
+		OutstandingNumbers outstanding = new OutstandingNumbers(toNumbers.size());
+		List<Long> winterBatchIds = sendBatch("Winter Batch", ContactBatchUploader.toNumbers(winterContacts),
+				winterContacts.size(), broadcastId, null, outstanding);
+		boolean response = pollForResponse(broadcastId, outstanding, winterBatchIds);
+		batchUploader.complete(broadcastId);
 
 		if (!response) {
-			LOG.log(Level.WARNING, "did not receive postive reponse from batch: " + winterBatchId);
+			LOG.log(Level.WARNING, "did not receive postive reponse from batches: " + winterBatchIds);
 		}
 		else {
-			LOG.log(Level.INFO, "received postive reponse from batch: " + winterBatchId);
+			LOG.log(Level.INFO, "received postive reponse from batches: " + winterBatchIds);
 		}
 	}
 	
@@ -250,12 +330,14 @@ public class RegistrationTextBroadcastSample {
 	 * Exercises the concept of sending two batches of notifications
 	 * but reusing the same broadcast configuration.
 	 * @throws ServiceFault
+	 * @throws IOException
 	 */
-	private void sendFallThenWinterBatches() throws ServiceFault {
+	private void sendFallThenWinterBatches() throws ServiceFault, IOException {
 		
 		String textMessage = "Welcome to the 2012 school year! "
 				+ "Your registration window is ${regTimeWindow} at the ${regLocation}.";
 		long broadcastId = createBroadcast(textMessage);
+		templates.put(broadcastId, MergeTemplate.compile(textMessage));
 		
 		List<Object> fallBatch = propertiesConfig.getList("contacts_batch_1");
 		
@@ -276,12 +358,14 @@ public class RegistrationTextBroadcastSample {
 	 * Exercises the ability to schedule the start and stop times 
 	 * as well as the days of the week that a broadcast can run. 
 	 * @throws ServiceFault
+	 * @throws IOException
 	 */
-	private void sendScheduledFallBatch() throws ServiceFault {
+	private void sendScheduledFallBatch() throws ServiceFault, IOException {
 		
 		String textMessage = "Welcome to the 2012 school year! "
 				+ "Your registration window is ${regTimeWindow} at the ${regLocation}.";
 		long broadcastId = createScheduledBroadcast(textMessage);
+		templates.put(broadcastId, MergeTemplate.compile(textMessage));
 		
 		List<Object> scheduledBatch = propertiesConfig.getList("contacts_batch_3");
 		
@@ -291,6 +375,63 @@ public class RegistrationTextBroadcastSample {
 		sendFallRegistrationBatch(broadcastId, scheduledBatch);
 	}
 	
+	/**
+	 * Exercises streaming a large contact file straight into contact batches.
+	 * The extra columns of each row become that student's merge attributes,
+	 * so the file needs a header like: number,regTimeWindow,regLocation
+	 * @param contactsFile
+	 * @throws ServiceFault
+	 * @throws IOException
+	 */
+	private void sendRegistrationFile(File contactsFile) throws ServiceFault, IOException {
+		
+		final String textMessage = "Welcome to the 2012 school year! "
+				+ "Your registration window is ${regTimeWindow} at the ${regLocation}.";
+		// with a journal, a file that was only partly sent is resumed into
+		// the broadcast it was being sent to, unless the file was changed since
+		final String journalKey = SendJournal.key("createBroadcast", contactsFile.getAbsolutePath(),
+				contactsFile.length(), contactsFile.lastModified(), textMessage);
+		long broadcastId = sendJournal == null ? createBroadcast(textMessage)
+				: sendJournal.send(journalKey, new SendJournal.Send() {
+					@Override
+					public long send(String requestId) throws ServiceFault {
+						return createBroadcast(textMessage, requestId);
+					}
+				});
+		templates.put(broadcastId, MergeTemplate.compile(textMessage));
+		
+		// numbers are collected as the filtered file is uploaded,
+		// the contacts themselves are never held in memory
+		OutstandingNumbers outstanding = new OutstandingNumbers(1024);
+		List<Long> fileBatchIds;
+		MappedContactFileSource contacts = MappedContactFileSource.csv(contactsFile);
+		try {
+			fileBatchIds = sendBatch("File Batch", contacts, contacts.estimateRemainingRows(), broadcastId,
+					"registration file " + contactsFile.getAbsolutePath(), outstanding);
+		}
+		finally {
+			contacts.close();
+		}
+		boolean response = pollForResponse(broadcastId, outstanding, fileBatchIds);
+		if (sendJournal != null) {
+			// the file is sent, sending it again creates a new broadcast
+			sendJournal.complete(journalKey);
+		}
+		batchUploader.complete(broadcastId);
+
+		if (!response) {
+			LOG.log(Level.WARNING, "did not receive postive reponse from batches: " + fileBatchIds);
+		}
+		else {
+			LOG.log(Level.INFO, "received postive reponse from batches: " + fileBatchIds);
+		}
+		if (resultExportFile != null) {
+			ResultExporter.forTexts(textService, ResultExporter.DEFAULT_PAGE_SIZE,
+					propertiesConfig.getInt("result_export_max_in_flight", ResultExporter.DEFAULT_MAX_IN_FLIGHT))
+					.export(broadcastId, fileBatchIds, resultExportFile);
+		}
+	}
+	
 	private void cleanup() {
 		if (scheduleId != null) {
 			IdRequest request = new IdRequest();
@@ -317,11 +458,61 @@ public class RegistrationTextBroadcastSample {
 	}
 	
 	public void run() throws Exception {
-		sendFallThenWinterBatches();
-		sendScheduledFallBatch();
-		
-		// delete the scehdule
-		cleanup();
+		try {
+			// the campaigns don't depend on each other, so they run side by side
+			// and take as long as the slowest of them rather than their sum
+			Map<String, Callable<Void>> campaigns = new LinkedHashMap<String, Callable<Void>>();
+			campaigns.put("fall then winter batches", new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					sendFallThenWinterBatches();
+					return null;
+				}
+			});
+			campaigns.put("scheduled fall batch", new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					sendScheduledFallBatch();
+					return null;
+				}
+			});
+			
+			final String contactsFile = propertiesConfig.getString("contacts_file");
+			if (contactsFile != null && contactsFile.length() > 0) {
+				campaigns.put("registration file", new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						sendRegistrationFile(new File(contactsFile));
+						return null;
+					}
+				});
+			}
+			
+			CampaignOrchestrator.Report<Void> report = orchestrator.runAll(campaigns);
+			for (CampaignOrchestrator.Outcome<Void> outcome : report.getOutcomes()) {
+				if (!outcome.isSuccess()) {
+					LOG.log(Level.WARNING, "campaign " + outcome.getName() + " failed", outcome.getFailure());
+				}
+			}
+			LOG.info(report.toString());
+			
+			// delete the scehdule
+			cleanup();
+		}
+		finally {
+			orchestrator.close();
+			pollScheduler.close();
+			if (notificationReceiver != null) {
+				notificationReceiver.close();
+			}
+			if (sendJournal != null) {
+				sendJournal.close();
+			}
+			if (clientPool.getInstrumentation() != null) {
+				// logs the latency and faults of every operation that was called
+				clientPool.getInstrumentation().close();
+			}
+		}
 	}
 	
 	public static void main(String[] args) {
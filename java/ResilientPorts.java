@@ -0,0 +1,390 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.SOAPFaultException;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.xsd.FaultCode;
+import com.callfire.api.service.xsd.ServiceFaultInfo;
+
+/**
+ * Retries failed calls to the CallFire services, and stops calling a
+ * service that keeps failing.
+ *
+ * Failures are classified before anything is retried. A ServiceFault with
+ * FaultCode UNAVAILABLE means the request was turned away and is retried
+ * for any operation. A TIMEOUT fault or a transport error, i.e. a
+ * WebServiceException other than a SOAP fault, may have happened after
+ * the request was carried out, so it is only retried for the get and
+ * query operations, which can safely run twice, and for requests with a
+ * RequestId, which CallFire recognises when they are repeated. Every
+ * other fault is fatal and thrown at once.
+ *
+ * Retries wait a random time between zero and an exponentially growing
+ * limit, so callers that failed together don't retry together. Each
+ * service has a retry budget that every call adds retryRatio of a retry
+ * to, and every retry takes a whole one from, so retries can never be
+ * more than a fixed fraction of the traffic. Each service also has a
+ * circuit breaker: when at least failureRatio of its last windowSize
+ * attempts failed in a retryable way it opens, and calls fail fast with
+ * UNAVAILABLE for openMs; then a single trial call decides whether it
+ * closes again. A service that only fails some of the time keeps being
+ * called, and the retries cover its failures.
+ */
+public class ResilientPorts implements PortWrapper {
+	private static final Logger LOG = Logger.getLogger(ResilientPorts.class.getName());
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final long DEFAULT_BASE_DELAY_MS = 100;
+	public static final long DEFAULT_MAX_DELAY_MS = 5000;
+	public static final double DEFAULT_RETRY_RATIO = 0.2;
+	public static final double DEFAULT_FAILURE_RATIO = 0.5;
+	public static final int DEFAULT_WINDOW_SIZE = 50;
+	public static final long DEFAULT_OPEN_MS = 10000;
+
+	/**
+	 * Retries a service's budget holds when full, i.e. the burst allowed after a quiet spell.
+	 */
+	private static final double RETRY_BUDGET_CAPACITY = 10;
+
+	public enum CircuitState {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int maxAttempts;
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final double retryRatio;
+	private final double failureRatio;
+	private final int windowSize;
+	private final long openMs;
+	private final ConcurrentMap<Class<?>, Endpoint> endpoints = new ConcurrentHashMap<Class<?>, Endpoint>();
+	private final Random random = new Random();
+
+	public ResilientPorts() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_RETRY_RATIO,
+				DEFAULT_FAILURE_RATIO, DEFAULT_WINDOW_SIZE, DEFAULT_OPEN_MS);
+	}
+
+	/**
+	 * @param maxAttempts attempts per call including the first, 1 disables retries
+	 * @param baseDelayMs the limit of the wait before the first retry
+	 * @param maxDelayMs the limit of the wait before any retry
+	 * @param retryRatio the retries each call earns for its service's budget
+	 * @param failureRatio the fraction of retryable failures that opens a circuit
+	 * @param windowSize the number of most recent attempts the fraction is taken over
+	 * @param openMs how long an open circuit fails calls before trying one
+	 */
+	public ResilientPorts(int maxAttempts, long baseDelayMs, long maxDelayMs, double retryRatio,
+			double failureRatio, int windowSize, long openMs) {
+		if (maxAttempts <= 0 || windowSize <= 0) {
+			throw new IllegalArgumentException("maxAttempts and windowSize must be positive");
+		}
+		if (baseDelayMs <= 0 || baseDelayMs > maxDelayMs) {
+			throw new IllegalArgumentException("bad retry delays: " + baseDelayMs + " to " + maxDelayMs);
+		}
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.retryRatio = retryRatio;
+		this.failureRatio = failureRatio;
+		this.windowSize = windowSize;
+		this.openMs = openMs;
+	}
+
+	/**
+	 * Creates the retry policy from the sample.properties settings retry_max_attempts,
+	 * retry_base_delay_ms, retry_max_delay_ms, retry_budget_ratio,
+	 * circuit_failure_ratio, circuit_window_size and circuit_open_ms.
+	 * @param config
+	 * @return a new policy
+	 */
+	public static ResilientPorts fromConfiguration(Configuration config) {
+		return new ResilientPorts(config.getInt("retry_max_attempts", DEFAULT_MAX_ATTEMPTS),
+				config.getLong("retry_base_delay_ms", DEFAULT_BASE_DELAY_MS),
+				config.getLong("retry_max_delay_ms", DEFAULT_MAX_DELAY_MS),
+				config.getDouble("retry_budget_ratio", DEFAULT_RETRY_RATIO),
+				config.getDouble("circuit_failure_ratio", DEFAULT_FAILURE_RATIO),
+				config.getInt("circuit_window_size", DEFAULT_WINDOW_SIZE),
+				config.getLong("circuit_open_ms", DEFAULT_OPEN_MS));
+	}
+
+	/**
+	 * Adds retries and the circuit breaker to a port. Every port of the same
+	 * type wrapped by this instance shares one budget and one breaker.
+	 * @param portType
+	 * @param port a thread-safe port, e.g. from CallFireClientPool
+	 * @return a port that retries and fails fast as described above
+	 */
+	@Override
+	public <T> T wrap(final Class<T> portType, final T port) {
+		final Endpoint endpoint = getEndpoint(portType);
+		return portType.cast(Proxy.newProxyInstance(portType.getClassLoader(), new Class<?>[] { portType },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(this, args);
+						}
+						return call(endpoint, port, method, args);
+					}
+				}));
+	}
+
+	/**
+	 * @param portType
+	 * @return the budget and breaker shared by every wrapped port of portType
+	 */
+	public Endpoint getEndpoint(Class<?> portType) {
+		endpoints.putIfAbsent(portType, new Endpoint(portType.getSimpleName(), windowSize));
+		return endpoints.get(portType);
+	}
+
+	private Object call(Endpoint endpoint, Object port, Method method, Object[] args) throws Throwable {
+		endpoint.deposit(retryRatio);
+		for (int attempt = 1;; attempt++) {
+			if (!endpoint.allowCall()) {
+				throw circuitOpen(endpoint, method);
+			}
+			Throwable failure;
+			try {
+				Object result = method.invoke(port, args);
+				endpoint.onSuccess();
+				return result;
+			}
+			catch (InvocationTargetException e) {
+				failure = e.getCause();
+			}
+
+			if (!isRetryable(failure)) {
+				// the service answered, so it is up
+				endpoint.onSuccess();
+				throw failure;
+			}
+			endpoint.onFailure(failureRatio, openMs);
+			if (attempt >= maxAttempts || !isSafeToRetry(method, args, failure) || !endpoint.withdraw()) {
+				throw failure;
+			}
+
+			long delayMs = backoff(attempt);
+			LOG.fine("retrying " + endpoint.getName() + "." + method.getName() + " in " + delayMs + "ms after "
+					+ failure);
+			try {
+				Thread.sleep(delayMs);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * @param attempt the number of attempts made so far
+	 * @return a random wait, up to a limit that doubles with every attempt
+	 */
+	private long backoff(int attempt) {
+		long limit = baseDelayMs << Math.min(attempt - 1, 30);
+		if (limit <= 0 || limit > maxDelayMs) {
+			limit = maxDelayMs;
+		}
+		synchronized (random) {
+			return (long)(random.nextDouble() * limit) + 1;
+		}
+	}
+
+	/**
+	 * @param failure
+	 * @return true if the failure may go away by itself, i.e. an UNAVAILABLE
+	 * or TIMEOUT fault or a transport error
+	 */
+	public static boolean isRetryable(Throwable failure) {
+		if (failure instanceof ServiceFault) {
+			FaultCode code = getFaultCode((ServiceFault)failure);
+			return code == FaultCode.UNAVAILABLE || code == FaultCode.TIMEOUT;
+		}
+		return failure instanceof WebServiceException && !(failure instanceof SOAPFaultException);
+	}
+
+	/**
+	 * @param method
+	 * @param args
+	 * @param failure a retryable failure
+	 * @return true if retrying can't carry out the operation twice
+	 */
+	static boolean isSafeToRetry(Method method, Object[] args, Throwable failure) {
+		if (failure instanceof ServiceFault && getFaultCode((ServiceFault)failure) == FaultCode.UNAVAILABLE) {
+			return true;
+		}
+		String name = method.getName();
+		return name.startsWith("get") || name.startsWith("query") || hasRequestId(args);
+	}
+
+	/**
+	 * @param args
+	 * @return true if the request, e.g. a SendText or CreateContactBatch, has a RequestId set
+	 */
+	private static boolean hasRequestId(Object[] args) {
+		if (args == null || args.length != 1 || args[0] == null) {
+			return false;
+		}
+		try {
+			return args[0].getClass().getMethod("getRequestId").invoke(args[0]) != null;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("can't read the RequestId of " + args[0].getClass().getName(), e);
+		}
+	}
+
+	static FaultCode getFaultCode(ServiceFault fault) {
+		return fault.getFaultInfo() == null ? null : fault.getFaultInfo().getFaultCode();
+	}
+
+	private static Exception circuitOpen(Endpoint endpoint, Method method) {
+		String message = "circuit open for " + endpoint.getName() + ", not calling " + method.getName();
+		for (Class<?> exceptionType : method.getExceptionTypes()) {
+			if (exceptionType.isAssignableFrom(ServiceFault.class)) {
+				ServiceFaultInfo info = new ServiceFaultInfo();
+				info.setFaultCode(FaultCode.UNAVAILABLE);
+				info.setMessage(message);
+				return new ServiceFault(message, info);
+			}
+		}
+		return new WebServiceException(message);
+	}
+
+	/**
+	 * The retry budget and circuit breaker of one service.
+	 */
+	public static class Endpoint {
+		private final String name;
+		private double retryTokens = RETRY_BUDGET_CAPACITY;
+		private CircuitState state = CircuitState.CLOSED;
+		// outcomes of the last attempts, true for a failure, as a ring
+		private final boolean[] window;
+		private int windowNext;
+		private int windowCount;
+		private int windowFailures;
+		private long openUntil;
+		private boolean trialInFlight;
+		private long calls;
+		private long retries;
+		private long rejected;
+
+		Endpoint(String name, int windowSize) {
+			this.name = name;
+			this.window = new boolean[windowSize];
+		}
+
+		synchronized void deposit(double tokens) {
+			calls++;
+			retryTokens = Math.min(RETRY_BUDGET_CAPACITY, retryTokens + tokens);
+		}
+
+		synchronized boolean withdraw() {
+			if (retryTokens < 1) {
+				return false;
+			}
+			retryTokens--;
+			retries++;
+			return true;
+		}
+
+		synchronized boolean allowCall() {
+			if (state == CircuitState.OPEN && System.currentTimeMillis() >= openUntil) {
+				state = CircuitState.HALF_OPEN;
+			}
+			if (state == CircuitState.CLOSED || (state == CircuitState.HALF_OPEN && !trialInFlight)) {
+				trialInFlight = state == CircuitState.HALF_OPEN;
+				return true;
+			}
+			rejected++;
+			return false;
+		}
+
+		synchronized void onSuccess() {
+			if (state != CircuitState.CLOSED) {
+				LOG.info("circuit closed for " + name);
+			}
+			if (state != CircuitState.CLOSED) {
+				// start the window afresh, or the old failures would open it again
+				windowCount = 0;
+				windowFailures = 0;
+			}
+			state = CircuitState.CLOSED;
+			trialInFlight = false;
+			record(false);
+		}
+
+		synchronized void onFailure(double failureRatio, long openMs) {
+			record(true);
+			boolean tripped = windowCount == window.length && windowFailures >= failureRatio * window.length;
+			if (state == CircuitState.HALF_OPEN || (state == CircuitState.CLOSED && tripped)) {
+				LOG.warning("circuit open for " + name + " after " + windowFailures + " of " + windowCount
+						+ " attempts failed");
+				state = CircuitState.OPEN;
+				openUntil = System.currentTimeMillis() + openMs;
+				trialInFlight = false;
+			}
+		}
+
+		private void record(boolean failed) {
+			if (windowCount == window.length) {
+				if (window[windowNext]) {
+					windowFailures--;
+				}
+			}
+			else {
+				windowCount++;
+			}
+			window[windowNext] = failed;
+			if (failed) {
+				windowFailures++;
+			}
+			windowNext = (windowNext + 1) % window.length;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public synchronized CircuitState getState() {
+			return state;
+		}
+
+		/**
+		 * @return the number of calls made through wrapped ports, not counting retries
+		 */
+		public synchronized long getCalls() {
+			return calls;
+		}
+
+		public synchronized long getRetries() {
+			return retries;
+		}
+
+		/**
+		 * @return the number of attempts failed fast while the circuit was open
+		 */
+		public synchronized long getRejected() {
+			return rejected;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return name + " " + state + ": " + calls + " calls, " + retries + " retries, " + rejected + " rejected";
+		}
+	}
+}
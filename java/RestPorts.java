@@ -0,0 +1,135 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * Sends the operations it is given over a {@link RestTransport}, and every
+ * other operation over the port it wraps.
+ *
+ * The operations that can go over REST are sendText, sendCall,
+ * createContactBatch, queryTexts and queryCalls, which are also routed
+ * when an {@link ActionStreamPort} is wrapped. Each is chosen separately,
+ * so the cost of either wire format can be measured for one operation at
+ * a time, e.g. by the metrics of {@link InstrumentedPorts}. A request
+ * that can't be expressed as form parameters, like a batch with merge
+ * attributes, still goes over SOAP.
+ *
+ * Wrapped innermost, i.e. last, the REST calls are retried, limited and
+ * recorded like any other.
+ */
+public class RestPorts implements PortWrapper {
+	public static final Set<String> OPERATIONS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"sendText", "sendCall", "createContactBatch", "queryTexts", "queryCalls")));
+
+	private final RestTransport transport;
+	private final Set<String> operations;
+	private final AtomicLong restCalls = new AtomicLong();
+	private final AtomicLong soapCalls = new AtomicLong();
+
+	/**
+	 * @param transport
+	 * @param operations the names of the operations to send over REST, each one of {@link #OPERATIONS}
+	 */
+	public RestPorts(RestTransport transport, Set<String> operations) {
+		for (String operation : operations) {
+			if (!OPERATIONS.contains(operation)) {
+				throw new IllegalArgumentException("can't send " + operation + " over REST, only " + OPERATIONS);
+			}
+		}
+		this.transport = transport;
+		this.operations = new HashSet<String>(operations);
+	}
+
+	/**
+	 * Creates a wrapper from the sample.properties setting rest_operations, a
+	 * comma-separated list of operation names.
+	 * @param config
+	 * @param factory creates the transport, if any operation is sent over REST
+	 * @return the wrapper, or null if no operation is sent over REST
+	 */
+	public static RestPorts fromConfiguration(Configuration config, CallFireClientPool.PortFactory factory) {
+		Set<String> operations = new HashSet<String>();
+		for (String operation : config.getStringArray("rest_operations")) {
+			if (operation.trim().length() > 0) {
+				operations.add(operation.trim());
+			}
+		}
+		return operations.isEmpty() ? null : new RestPorts(factory.createRestTransport(), operations);
+	}
+
+	/**
+	 * @param portType
+	 * @param port a thread-safe port
+	 * @return port itself if none of its operations go over REST
+	 */
+	@Override
+	public <T> T wrap(Class<T> portType, final T port) {
+		final Map<Method, Method> routes = new HashMap<Method, Method>();
+		for (Method method : portType.getMethods()) {
+			if (!operations.contains(method.getName())) {
+				continue;
+			}
+			try {
+				routes.put(method, RestTransport.class.getMethod(method.getName(), method.getParameterTypes()));
+			}
+			catch (NoSuchMethodException e) {
+				// another port's operation of the same name
+			}
+		}
+		if (routes.isEmpty()) {
+			return port;
+		}
+		return portType.cast(Proxy.newProxyInstance(portType.getClassLoader(), new Class<?>[] { portType },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(this, args);
+						}
+						Method route = routes.get(method);
+						try {
+							if (route != null && RestTransport.isExpressible(args[0])) {
+								restCalls.incrementAndGet();
+								return route.invoke(transport, args);
+							}
+							soapCalls.incrementAndGet();
+							return method.invoke(port, args);
+						}
+						catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				}));
+	}
+
+	/**
+	 * @return the names of the operations sent over REST
+	 */
+	public Set<String> getOperations() {
+		return Collections.unmodifiableSet(operations);
+	}
+
+	/**
+	 * @return the calls that went over REST
+	 */
+	public long getRestCalls() {
+		return restCalls.get();
+	}
+
+	/**
+	 * @return the calls of wrapped ports that went over SOAP, including requests REST can't express
+	 */
+	public long getSoapCalls() {
+		return soapCalls.get();
+	}
+}
@@ -0,0 +1,787 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.ws.WebServiceException;
+
+import com.callfire.api.data.Action;
+import com.callfire.api.data.ActionState;
+import com.callfire.api.data.AnsweringMachineConfig;
+import com.callfire.api.data.BigMessageStrategy;
+import com.callfire.api.data.BroadcastConfig;
+import com.callfire.api.data.BroadcastType;
+import com.callfire.api.data.Call;
+import com.callfire.api.data.IvrBroadcastConfig;
+import com.callfire.api.data.Result;
+import com.callfire.api.data.Text;
+import com.callfire.api.data.TextBroadcastConfig;
+import com.callfire.api.data.ToNumber;
+import com.callfire.api.data.VoiceBroadcastConfig;
+import com.callfire.api.resource.ResourceException;
+import com.callfire.api.resource.ResourceList;
+import com.callfire.api.resource.ResourceReference;
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.xsd.ActionQuery;
+import com.callfire.api.service.xsd.CallQueryResult;
+import com.callfire.api.service.xsd.CreateContactBatch;
+import com.callfire.api.service.xsd.FaultCode;
+import com.callfire.api.service.xsd.SendCall;
+import com.callfire.api.service.xsd.SendRequest;
+import com.callfire.api.service.xsd.SendText;
+import com.callfire.api.service.xsd.ServiceFaultInfo;
+import com.callfire.api.service.xsd.TextQueryResult;
+
+/**
+ * Carries the operations that are called most, sending texts and calls,
+ * creating contact batches and querying texts and calls, over the CallFire
+ * REST API instead of SOAP 1.2.
+ *
+ * A request is a handful of form parameters named like the elements of the
+ * SOAP request, e.g. To, Message and BroadcastName, instead of an envelope
+ * marshalled by JAXB, and a response is a small resource document: a
+ * ResourceReference with the id that was created, a ResourceList of texts
+ * or calls, or a ResourceException. Lists are read with StAX, a text or
+ * call at a time, and through the {@link ActionStreamPort} methods only the
+ * requested fields are decoded, as by {@link SoapActionStream}.
+ *
+ * Only requests the form parameters can express are sent this way: every
+ * number must be plain, without ClientData or merge attributes, and a
+ * send's configuration must be new and without a local time zone
+ * restriction. {@link #isExpressible(Object)} tells the others apart, so
+ * {@link RestPorts} can send them over SOAP.
+ *
+ * {@link #overHttp(String, String, String)} calls the CallFire API, with
+ * the same basic authentication as the JAX-WS ports and over the same
+ * keep-alive connections. {@link #overPorts(TextServicePortType,
+ * CallServicePortType, BroadcastServicePortType)} parses the parameters
+ * back into requests for ordinary ports and marshals their results into
+ * resources, so both ends of the format run offline against a
+ * {@link FakeCallFireService}.
+ */
+public abstract class RestTransport implements ActionStreamPort {
+	static final String RESOURCE_NS = "http://api.callfire.com/resource";
+
+	static final String TEXT_SEND = "/text/send";
+	static final String TEXT_INDEX = "/text/index";
+	static final String CALL_SEND = "/call/send";
+	static final String CALL_INDEX = "/call/index";
+	// followed by the broadcast id and BATCH
+	static final String BROADCAST = "/broadcast/";
+	static final String BATCH = "/batch";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+	private static JAXBContext jaxbContext;
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * @param baseUrl the address of the REST API, e.g. https://www.callfire.com/api/1.0/rest
+	 * @param user
+	 * @param password
+	 * @return a thread-safe transport that calls the CallFire API
+	 */
+	public static RestTransport overHttp(final String baseUrl, String user, String password) {
+		final String authorization = SoapActionStream.authorization(user, password);
+		return new RestTransport() {
+			@Override
+			protected InputStream send(String method, String path, Map<String, String> params)
+					throws ServiceFault, IOException {
+				byte[] form = form(params);
+				boolean get = method.equals("GET");
+				URL endpoint = new URL(baseUrl + path + (get && form.length > 0 ? "?" + new String(form, UTF8) : ""));
+				HttpURLConnection connection = (HttpURLConnection)endpoint.openConnection();
+				connection.setRequestMethod(method);
+				connection.setRequestProperty("Accept", "application/xml");
+				connection.setRequestProperty("Accept-Encoding", "gzip");
+				connection.setRequestProperty("Authorization", authorization);
+				if (!get) {
+					connection.setDoOutput(true);
+					connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+					connection.setFixedLengthStreamingMode(form.length);
+					OutputStream out = connection.getOutputStream();
+					try {
+						out.write(form);
+					}
+					finally {
+						out.close();
+					}
+				}
+				return SoapActionStream.response(connection, endpoint);
+			}
+		};
+	}
+
+	/**
+	 * @param textService
+	 * @param callService
+	 * @param broadcastService
+	 * @return a transport that serves its requests from the ports
+	 */
+	public static RestTransport overPorts(final TextServicePortType textService,
+			final CallServicePortType callService, final BroadcastServicePortType broadcastService) {
+		return new RestTransport() {
+			@Override
+			protected InputStream send(String method, String path, Map<String, String> params)
+					throws ServiceFault, IOException {
+				Object resource;
+				try {
+					resource = serve(path, params);
+				}
+				catch (ServiceFault e) {
+					resource = resourceException(e);
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+				try {
+					getJaxbContext().createMarshaller().marshal(resource, out);
+				}
+				catch (JAXBException e) {
+					throw new IOException("can't marshal " + resource.getClass().getSimpleName(), e);
+				}
+				return new ByteArrayInputStream(out.toByteArray());
+			}
+
+			private Object serve(String path, Map<String, String> params) throws ServiceFault {
+				if (path.equals(TEXT_SEND)) {
+					return resourceReference(textService.sendText(toSendText(params)));
+				}
+				if (path.equals(CALL_SEND)) {
+					return resourceReference(callService.sendCall(toSendCall(params)));
+				}
+				if (path.equals(TEXT_INDEX)) {
+					TextQueryResult result = textService.queryTexts(toActionQuery(params));
+					return resourceList(result.getText(), result.getTotalResults());
+				}
+				if (path.equals(CALL_INDEX)) {
+					CallQueryResult result = callService.queryCalls(toActionQuery(params));
+					return resourceList(result.getCall(), result.getTotalResults());
+				}
+				if (path.startsWith(BROADCAST) && path.endsWith(BATCH)) {
+					long broadcastId = Long.parseLong(path.substring(BROADCAST.length(), path.length() - BATCH.length()));
+					return resourceReference(broadcastService.createContactBatch(toCreateContactBatch(broadcastId, params)));
+				}
+				throw SoapActionStream.fault(FaultCode.NOT_FOUND, "no resource " + path);
+			}
+		};
+	}
+
+	/**
+	 * Sends a single request.
+	 * @param method GET or POST
+	 * @param path e.g. /text/send
+	 * @param params the form parameters, in the query string of a GET
+	 * @return a resource response
+	 */
+	protected abstract InputStream send(String method, String path, Map<String, String> params)
+			throws ServiceFault, IOException;
+
+	/**
+	 * @param request any request
+	 * @return true if request can be sent as form parameters
+	 */
+	public static boolean isExpressible(Object request) {
+		if (request instanceof ActionQuery) {
+			return true;
+		}
+		if (request instanceof CreateContactBatch) {
+			return arePlain(((CreateContactBatch)request).getToNumber());
+		}
+		if (request instanceof SendText) {
+			SendText sendText = (SendText)request;
+			return arePlain(sendText.getToNumber()) && isNew(sendText.getTextBroadcastConfig());
+		}
+		if (request instanceof SendCall) {
+			SendCall sendCall = (SendCall)request;
+			return arePlain(sendCall.getToNumber()) && (sendCall.getVoiceBroadcastConfig() == null
+					? isNew(sendCall.getIvrBroadcastConfig()) : isNew(sendCall.getVoiceBroadcastConfig())
+							&& sendCall.getIvrBroadcastConfig() == null);
+		}
+		return false;
+	}
+
+	public long sendText(SendText request) throws ServiceFault {
+		return reference("POST", TEXT_SEND, params(request));
+	}
+
+	public long sendCall(SendCall request) throws ServiceFault {
+		return reference("POST", CALL_SEND, params(request));
+	}
+
+	public long createContactBatch(CreateContactBatch request) throws ServiceFault {
+		return reference("POST", BROADCAST + request.getBroadcastId() + BATCH, params(request));
+	}
+
+	public TextQueryResult queryTexts(ActionQuery query) throws ServiceFault {
+		TextQueryResult result = new TextQueryResult();
+		result.setTotalResults(list(TEXT_INDEX, query, Text.class, result.getText()));
+		return result;
+	}
+
+	public CallQueryResult queryCalls(ActionQuery query) throws ServiceFault {
+		CallQueryResult result = new CallQueryResult();
+		result.setTotalResults(list(CALL_INDEX, query, Call.class, result.getCall()));
+		return result;
+	}
+
+	@Override
+	public int queryTexts(ActionQuery query, Set<Field> fields, ActionStatusTracker.Listener<? super Text> listener)
+			throws ServiceFault {
+		return stream(TEXT_INDEX, query, Text.class, fields, listener);
+	}
+
+	@Override
+	public int queryCalls(ActionQuery query, Set<Field> fields, ActionStatusTracker.Listener<? super Call> listener)
+			throws ServiceFault {
+		return stream(CALL_INDEX, query, Call.class, fields, listener);
+	}
+
+	/**
+	 * @return the id of the ResourceReference the request returns
+	 */
+	private long reference(String method, String path, Map<String, String> params) throws ServiceFault {
+		InputStream response = open(method, path, params);
+		try {
+			XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(response);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() != XMLStreamConstants.START_ELEMENT
+							|| !RESOURCE_NS.equals(reader.getNamespaceURI())) {
+						continue;
+					}
+					if (reader.getLocalName().equals("Id")) {
+						return Long.parseLong(reader.getElementText().trim());
+					}
+					if (reader.getLocalName().equals("ResourceException")) {
+						throw readException(reader);
+					}
+				}
+				throw new WebServiceException("no Id in the response to " + path);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new WebServiceException("can't read the response to " + path, e);
+		}
+		finally {
+			close(response);
+		}
+	}
+
+	/**
+	 * Unmarshals each action of a ResourceList, one at a time.
+	 * @return the totalResults of the list
+	 */
+	private <T extends Action> int list(String path, ActionQuery query, Class<T> actionType, List<T> actions)
+			throws ServiceFault {
+		InputStream response = open("GET", path, params(query));
+		try {
+			XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(response);
+			try {
+				Unmarshaller unmarshaller = getJaxbContext().createUnmarshaller();
+				String elementName = actionType.getSimpleName();
+				int totalResults = 0;
+				int event = reader.getEventType();
+				while (true) {
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						String name = reader.getLocalName();
+						if (name.equals(elementName) && SoapActionStream.DATA_NS.equals(reader.getNamespaceURI())) {
+							// leaves the reader just past the action
+							actions.add(unmarshaller.unmarshal(reader, actionType).getValue());
+							event = reader.getEventType();
+							continue;
+						}
+						if (name.equals("ResourceList")) {
+							String total = reader.getAttributeValue(null, "totalResults");
+							totalResults = total == null ? 0 : Integer.parseInt(total.trim());
+						}
+						else if (name.equals("ResourceException") && RESOURCE_NS.equals(reader.getNamespaceURI())) {
+							throw readException(reader);
+						}
+					}
+					if (!reader.hasNext()) {
+						return totalResults;
+					}
+					event = reader.next();
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new WebServiceException("can't read the " + actionType.getSimpleName() + "s", e);
+		}
+		catch (JAXBException e) {
+			throw new WebServiceException("can't unmarshal the " + actionType.getSimpleName() + "s", e);
+		}
+		finally {
+			close(response);
+		}
+	}
+
+	private <T extends Action> int stream(String path, ActionQuery query, Class<T> actionType, Set<Field> fields,
+			ActionStatusTracker.Listener<? super T> listener) throws ServiceFault {
+		InputStream response = open("GET", path, params(query));
+		try {
+			return SoapActionStream.decode(response, actionType, fields, listener);
+		}
+		catch (XMLStreamException e) {
+			throw new WebServiceException("can't read the " + actionType.getSimpleName() + "s", e);
+		}
+		finally {
+			close(response);
+		}
+	}
+
+	private InputStream open(String method, String path, Map<String, String> params) throws ServiceFault {
+		try {
+			return send(method, path, params);
+		}
+		catch (IOException e) {
+			throw new WebServiceException("can't " + method + " " + path, e);
+		}
+	}
+
+	private static void close(InputStream response) {
+		try {
+			response.close();
+		}
+		catch (IOException e) {
+			// the response was read, or has already failed
+		}
+	}
+
+	/**
+	 * Reads a ResourceException, from its start element to its end.
+	 * @param reader
+	 * @return the fault the SOAP API would have returned
+	 * @throws XMLStreamException
+	 */
+	static ServiceFault readException(XMLStreamReader reader) throws XMLStreamException {
+		int status = 0;
+		String message = null;
+		String detail = null;
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+			else if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("HttpStatus")) {
+					status = Integer.parseInt(reader.getElementText().trim());
+				}
+				else if (name.equals("Message")) {
+					message = reader.getElementText();
+				}
+				else if (name.equals("Detail")) {
+					detail = reader.getElementText();
+				}
+				else {
+					depth++;
+				}
+			}
+		}
+		ServiceFaultInfo info = new ServiceFaultInfo();
+		info.setFaultCode(faultCode(status));
+		info.setMessage(message);
+		info.setDetail(detail);
+		return new ServiceFault(message, info);
+	}
+
+	/**
+	 * @param status the HttpStatus of a ResourceException
+	 * @return the matching fault code, or null for a server error that isn't known to be transient
+	 */
+	static FaultCode faultCode(int status) {
+		switch (status) {
+		case 401:
+		case 403:
+			return FaultCode.FORBIDDEN;
+		case 404:
+			return FaultCode.NOT_FOUND;
+		case 501:
+			return FaultCode.NOT_IMPLEMENTED;
+		case 502:
+		case 503:
+			return FaultCode.UNAVAILABLE;
+		case 504:
+			return FaultCode.TIMEOUT;
+		default:
+			return status >= 400 && status < 500 ? FaultCode.BAD_REQUEST : null;
+		}
+	}
+
+	/**
+	 * @param code
+	 * @return the HttpStatus of a ResourceException with code
+	 */
+	static int httpStatus(FaultCode code) {
+		if (code == null) {
+			return 500;
+		}
+		switch (code) {
+		case BAD_REQUEST:
+			return 400;
+		case FORBIDDEN:
+			return 403;
+		case NOT_FOUND:
+			return 404;
+		case NOT_IMPLEMENTED:
+			return 501;
+		case UNAVAILABLE:
+			return 503;
+		case TIMEOUT:
+			return 504;
+		default:
+			return 500;
+		}
+	}
+
+	/**
+	 * @param request a SendText, SendCall, CreateContactBatch or ActionQuery
+	 * that {@link #isExpressible(Object)}
+	 * @return its form parameters, in the order of its elements
+	 */
+	static Map<String, String> params(Object request) {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		if (request instanceof ActionQuery) {
+			ActionQuery query = (ActionQuery)request;
+			put(params, "MaxResults", query.getMaxResults());
+			put(params, "FirstResult", query.getFirstResult());
+			put(params, "BroadcastId", query.getBroadcastId());
+			put(params, "BatchId", query.getBatchId());
+			if (query.getState() != null && !query.getState().isEmpty()) {
+				StringBuilder states = new StringBuilder();
+				for (ActionState state : query.getState()) {
+					states.append(states.length() == 0 ? "" : " ").append(state.value());
+				}
+				params.put("State", states.toString());
+			}
+			if (query.getResult() != null && !query.getResult().isEmpty()) {
+				StringBuilder results = new StringBuilder();
+				for (Result result : query.getResult()) {
+					results.append(results.length() == 0 ? "" : " ").append(result.value());
+				}
+				params.put("Result", results.toString());
+			}
+			put(params, "Inbound", query.isInbound());
+			if (query.getModifiedSince() != null) {
+				params.put("ModifiedSince", DatatypeConverter.printDateTime(query.getModifiedSince()));
+			}
+			put(params, "FromNumber", query.getFromNumber());
+			put(params, "ToNumber", query.getToNumber());
+		}
+		else if (request instanceof CreateContactBatch) {
+			CreateContactBatch batch = (CreateContactBatch)request;
+			put(params, "RequestId", batch.getRequestId());
+			put(params, "Name", batch.getName());
+			if (batch.getContactListId() != null) {
+				params.put("ContactListId", batch.getContactListId().toString());
+			}
+			else {
+				params.put("To", numbers(batch.getToNumber()));
+			}
+			put(params, "ScrubBroadcastDuplicates", batch.isScrubBroadcastDuplicates());
+		}
+		else {
+			SendRequest send = (SendRequest)request;
+			put(params, "RequestId", send.getRequestId());
+			put(params, "BroadcastName", send.getBroadcastName());
+			params.put("To", numbers(send.getToNumber()));
+			put(params, "ScrubBroadcastDuplicates", send.isScrubBroadcastDuplicates());
+			if (send instanceof SendText) {
+				TextBroadcastConfig config = ((SendText)send).getTextBroadcastConfig();
+				put(params, "FromNumber", config.getFromNumber());
+				put(params, "Message", config.getMessage());
+				if (config.isSetBigMessageStrategy()) {
+					params.put("BigMessageStrategy", config.getBigMessageStrategy().value());
+				}
+			}
+			else if (((SendCall)send).getVoiceBroadcastConfig() != null) {
+				VoiceBroadcastConfig config = ((SendCall)send).getVoiceBroadcastConfig();
+				params.put("Type", BroadcastType.VOICE.value());
+				put(params, "FromNumber", config.getFromNumber());
+				if (config.getAnsweringMachineConfig() != null) {
+					params.put("AnsweringMachineConfig", config.getAnsweringMachineConfig().value());
+				}
+				put(params, "LiveSoundId", config.getLiveSoundId());
+				put(params, "MachineSoundId", config.getMachineSoundId());
+				put(params, "TransferSoundId", config.getTransferSoundId());
+				put(params, "TransferDigit", config.getTransferDigit());
+				put(params, "TransferNumber", config.getTransferNumber());
+				put(params, "DncSoundId", config.getDncSoundId());
+				put(params, "DncDigit", config.getDncDigit());
+				put(params, "MaxActiveTransfers", config.getMaxActiveTransfers());
+			}
+			else {
+				IvrBroadcastConfig config = ((SendCall)send).getIvrBroadcastConfig();
+				params.put("Type", BroadcastType.IVR.value());
+				put(params, "FromNumber", config.getFromNumber());
+				put(params, "DialplanXml", config.getDialplanXml());
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * @param params
+	 * @return params URL encoded, as a query string or form body
+	 */
+	static byte[] form(Map<String, String> params) {
+		int length = 0;
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			length += param.getKey().length() + param.getValue().length() + 2;
+		}
+		// numbers only grow where a comma between them is escaped
+		ByteArrayOutputStream form = new ByteArrayOutputStream(length + length / 4);
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (form.size() > 0) {
+				form.write('&');
+			}
+			encode(param.getKey(), form);
+			form.write('=');
+			encode(param.getValue(), form);
+		}
+		return form.toByteArray();
+	}
+
+	/**
+	 * Writes value as application/x-www-form-urlencoded, like URLEncoder but
+	 * without creating a String per call.
+	 */
+	private static void encode(String value, ByteArrayOutputStream form) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+					|| c == '.' || c == '*') {
+				form.write(c);
+			}
+			else if (c == ' ') {
+				form.write('+');
+			}
+			else if (c < 0x80) {
+				escape(c, form);
+			}
+			else {
+				int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+				for (byte b : value.substring(i, end).getBytes(UTF8)) {
+					escape(b & 0xff, form);
+				}
+				i = end - 1;
+			}
+		}
+	}
+
+	private static void escape(int b, ByteArrayOutputStream form) {
+		form.write('%');
+		form.write(HEX[b >> 4]);
+		form.write(HEX[b & 0xf]);
+	}
+
+	private static void put(Map<String, String> params, String name, Object value) {
+		if (value != null) {
+			params.put(name, value.toString());
+		}
+	}
+
+	private static String numbers(List<ToNumber> toNumbers) {
+		StringBuilder numbers = new StringBuilder(toNumbers.size() * 12);
+		for (ToNumber toNumber : toNumbers) {
+			if (numbers.length() > 0) {
+				numbers.append(',');
+			}
+			numbers.append(toNumber.getValue());
+		}
+		return numbers.toString();
+	}
+
+	private static boolean arePlain(List<ToNumber> toNumbers) {
+		for (ToNumber toNumber : toNumbers) {
+			if (toNumber.getClientData() != null || !toNumber.getOtherAttributes().isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isNew(BroadcastConfig config) {
+		return config != null && config.getId() == null && config.getLocalTimeZoneRestriction() == null;
+	}
+
+	// the parameters parsed back into requests, by the transport over ports
+
+	private static SendText toSendText(Map<String, String> params) {
+		SendText sendText = new SendText();
+		toSendRequest(sendText, params);
+		TextBroadcastConfig config = new TextBroadcastConfig();
+		config.setFromNumber(params.get("FromNumber"));
+		config.setMessage(params.get("Message"));
+		if (params.containsKey("BigMessageStrategy")) {
+			config.setBigMessageStrategy(BigMessageStrategy.fromValue(params.get("BigMessageStrategy")));
+		}
+		sendText.setTextBroadcastConfig(config);
+		return sendText;
+	}
+
+	private static SendCall toSendCall(Map<String, String> params) {
+		SendCall sendCall = new SendCall();
+		toSendRequest(sendCall, params);
+		if (BroadcastType.IVR.value().equals(params.get("Type"))) {
+			IvrBroadcastConfig config = new IvrBroadcastConfig();
+			config.setFromNumber(params.get("FromNumber"));
+			config.setDialplanXml(params.get("DialplanXml"));
+			sendCall.setIvrBroadcastConfig(config);
+			return sendCall;
+		}
+		VoiceBroadcastConfig config = new VoiceBroadcastConfig();
+		config.setFromNumber(params.get("FromNumber"));
+		if (params.containsKey("AnsweringMachineConfig")) {
+			config.setAnsweringMachineConfig(AnsweringMachineConfig.fromValue(params.get("AnsweringMachineConfig")));
+		}
+		config.setLiveSoundId(toLong(params.get("LiveSoundId")));
+		config.setMachineSoundId(toLong(params.get("MachineSoundId")));
+		config.setTransferSoundId(toLong(params.get("TransferSoundId")));
+		config.setTransferDigit(params.get("TransferDigit"));
+		config.setTransferNumber(params.get("TransferNumber"));
+		config.setDncSoundId(toLong(params.get("DncSoundId")));
+		config.setDncDigit(params.get("DncDigit"));
+		config.setMaxActiveTransfers(toInteger(params.get("MaxActiveTransfers")));
+		sendCall.setVoiceBroadcastConfig(config);
+		return sendCall;
+	}
+
+	private static void toSendRequest(SendRequest send, Map<String, String> params) {
+		send.setRequestId(params.get("RequestId"));
+		send.setBroadcastName(params.get("BroadcastName"));
+		send.getToNumber().addAll(toNumbers(params.get("To")));
+		send.setScrubBroadcastDuplicates(toBoolean(params.get("ScrubBroadcastDuplicates")));
+	}
+
+	private static CreateContactBatch toCreateContactBatch(long broadcastId, Map<String, String> params) {
+		CreateContactBatch batch = new CreateContactBatch();
+		batch.setBroadcastId(broadcastId);
+		batch.setRequestId(params.get("RequestId"));
+		batch.setName(params.get("Name"));
+		batch.setContactListId(toLong(params.get("ContactListId")));
+		if (batch.getContactListId() == null) {
+			batch.getToNumber().addAll(toNumbers(params.get("To")));
+		}
+		batch.setScrubBroadcastDuplicates(toBoolean(params.get("ScrubBroadcastDuplicates")));
+		return batch;
+	}
+
+	private static ActionQuery toActionQuery(Map<String, String> params) {
+		ActionQuery query = new ActionQuery();
+		query.setMaxResults(toInteger(params.get("MaxResults")));
+		query.setFirstResult(toInteger(params.get("FirstResult")));
+		query.setBroadcastId(toLong(params.get("BroadcastId")));
+		query.setBatchId(toLong(params.get("BatchId")));
+		if (params.containsKey("State")) {
+			for (String state : params.get("State").split(" ")) {
+				query.getState().add(ActionState.fromValue(state));
+			}
+		}
+		if (params.containsKey("Result")) {
+			for (String result : params.get("Result").split(" ")) {
+				query.getResult().add(Result.fromValue(result));
+			}
+		}
+		query.setInbound(toBoolean(params.get("Inbound")));
+		if (params.containsKey("ModifiedSince")) {
+			query.setModifiedSince(DatatypeConverter.parseDateTime(params.get("ModifiedSince")));
+		}
+		query.setFromNumber(params.get("FromNumber"));
+		query.setToNumber(params.get("ToNumber"));
+		return query;
+	}
+
+	private static List<ToNumber> toNumbers(String numbers) {
+		List<ToNumber> toNumbers = new ArrayList<ToNumber>();
+		if (numbers == null || numbers.length() == 0) {
+			return toNumbers;
+		}
+		for (String number : numbers.split(",")) {
+			ToNumber toNumber = new ToNumber();
+			toNumber.setValue(number);
+			toNumbers.add(toNumber);
+		}
+		return toNumbers;
+	}
+
+	private static Long toLong(String value) {
+		return value == null ? null : Long.valueOf(value);
+	}
+
+	private static Integer toInteger(String value) {
+		return value == null ? null : Integer.valueOf(value);
+	}
+
+	private static Boolean toBoolean(String value) {
+		return value == null ? null : Boolean.valueOf(value);
+	}
+
+	private static ResourceReference resourceReference(long id) {
+		ResourceReference reference = new ResourceReference();
+		reference.setId(id);
+		return reference;
+	}
+
+	private static ResourceList resourceList(List<? extends Action> actions, int totalResults) {
+		ResourceList list = new ResourceList();
+		list.getAny().addAll(actions);
+		list.setTotalResults(totalResults);
+		return list;
+	}
+
+	private static ResourceException resourceException(ServiceFault fault) {
+		ResourceException exception = new ResourceException();
+		ServiceFaultInfo info = fault.getFaultInfo();
+		exception.setHttpStatus(httpStatus(info == null ? null : info.getFaultCode()));
+		exception.setMessage(info != null && info.getMessage() != null ? info.getMessage() : fault.getMessage());
+		exception.setDetail(info == null ? null : info.getDetail());
+		return exception;
+	}
+
+	private static synchronized JAXBContext getJaxbContext() {
+		if (jaxbContext == null) {
+			try {
+				jaxbContext = JAXBContext.newInstance(ResourceList.class, ResourceReference.class,
+						ResourceException.class, Text.class, Call.class);
+			}
+			catch (JAXBException e) {
+				throw new IllegalStateException("can't create a JAXB context for the resources", e);
+			}
+		}
+		return jaxbContext;
+	}
+}
@@ -0,0 +1,613 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.callfire.api.data.Action;
+import com.callfire.api.data.ActionRecord;
+import com.callfire.api.data.ActionState;
+import com.callfire.api.data.Call;
+import com.callfire.api.data.Result;
+import com.callfire.api.data.Text;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.xsd.ActionQuery;
+
+/**
+ * Exports the texts or calls of a finished broadcast to a local columnar
+ * file, fetching pages of results in parallel.
+ *
+ * The results are counted first, for the whole broadcast or for each of
+ * its batches, and split into FirstResult/MaxResults pages that up to
+ * maxInFlight threads fetch at once. Each page is converted to a row group
+ * of primitive columns as soon as it arrives and written by the caller's
+ * thread, in whatever order pages complete, so no more than a few pages
+ * are held at a time however many rows there are. Paging by offset assumes
+ * the results don't change while they are exported, i.e. the broadcast
+ * has finished.
+ *
+ * Each row group stores every column as one block prefixed with its
+ * length, so a {@link Scan} reads only the columns it asks for and skips
+ * the rest. Numbers are stored as normalized E.164 longs, times as epoch
+ * milliseconds, and ActionState and Result as one byte codes into
+ * dictionaries kept in the file's header.
+ */
+public abstract class ResultExporter<T extends Action> {
+	private static final Logger LOG = Logger.getLogger(ResultExporter.class.getName());
+
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	public static final String ID = "id";
+	public static final String BATCH_ID = "batchId";
+	public static final String TO_NUMBER = "toNumber";
+	public static final String STATE = "state";
+	public static final String RESULT = "result";
+	public static final String CREATED = "created";
+	public static final String MODIFIED = "modified";
+	public static final String FINISHED = "finished";
+	public static final String BILLED_AMOUNT = "billedAmount";
+
+	private static final int MAGIC = 0x43465258;
+	private static final int VERSION = 1;
+	private static final byte LONG = 1;
+	private static final byte CODE = 2;
+	private static final byte FLOAT = 3;
+	private static final String[] COLUMNS = {
+		ID, BATCH_ID, TO_NUMBER, STATE, RESULT, CREATED, MODIFIED, FINISHED, BILLED_AMOUNT
+	};
+	private static final byte[] TYPES = { LONG, LONG, LONG, CODE, CODE, LONG, LONG, LONG, FLOAT };
+	// the code of a missing state or result
+	private static final byte NONE = -1;
+
+	private final int pageSize;
+	private final int maxInFlight;
+
+	protected ResultExporter(int pageSize, int maxInFlight) {
+		if (pageSize <= 0 || maxInFlight <= 0) {
+			throw new IllegalArgumentException("pageSize and maxInFlight must be positive");
+		}
+		this.pageSize = pageSize;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @param textService a port that is safe to call from several threads
+	 * @return an exporter of texts
+	 */
+	public static ResultExporter<Text> forTexts(TextServicePortType textService) {
+		return forTexts(textService, DEFAULT_PAGE_SIZE, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param textService a port that is safe to call from several threads
+	 * @param pageSize the MaxResults of each page query
+	 * @param maxInFlight the most pages fetched at once
+	 * @return an exporter of texts
+	 */
+	public static ResultExporter<Text> forTexts(final TextServicePortType textService, int pageSize,
+			int maxInFlight) {
+		return new ResultExporter<Text>(pageSize, maxInFlight) {
+			@Override
+			protected int count(ActionQuery query) throws ServiceFault {
+				return textService.queryTexts(query).getTotalResults();
+			}
+
+			@Override
+			protected List<Text> query(ActionQuery query) throws ServiceFault {
+				return textService.queryTexts(query).getText();
+			}
+
+			@Override
+			protected List<? extends ActionRecord> records(Text text) {
+				return text.getTextRecord();
+			}
+		};
+	}
+
+	/**
+	 * @param callService a port that is safe to call from several threads
+	 * @return an exporter of calls
+	 */
+	public static ResultExporter<Call> forCalls(CallServicePortType callService) {
+		return forCalls(callService, DEFAULT_PAGE_SIZE, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param callService a port that is safe to call from several threads
+	 * @param pageSize the MaxResults of each page query
+	 * @param maxInFlight the most pages fetched at once
+	 * @return an exporter of calls
+	 */
+	public static ResultExporter<Call> forCalls(final CallServicePortType callService, int pageSize,
+			int maxInFlight) {
+		return new ResultExporter<Call>(pageSize, maxInFlight) {
+			@Override
+			protected int count(ActionQuery query) throws ServiceFault {
+				return callService.queryCalls(query).getTotalResults();
+			}
+
+			@Override
+			protected List<Call> query(ActionQuery query) throws ServiceFault {
+				return callService.queryCalls(query).getCall();
+			}
+
+			@Override
+			protected List<? extends ActionRecord> records(Call call) {
+				return call.getCallRecord();
+			}
+		};
+	}
+
+	/**
+	 * @return the total number of results the query matches
+	 */
+	protected abstract int count(ActionQuery query) throws ServiceFault;
+
+	/**
+	 * Executes a single page query against the underlying service.
+	 */
+	protected abstract List<T> query(ActionQuery query) throws ServiceFault;
+
+	protected abstract List<? extends ActionRecord> records(T action);
+
+	/**
+	 * Writes every result of the broadcast, or of the given batches, to file.
+	 * @param broadcastId
+	 * @param batchIds the batches to export, or null for the whole broadcast
+	 * @param file replaced once the export succeeds
+	 * @return what was exported
+	 * @throws ServiceFault
+	 * @throws IOException
+	 */
+	public Summary export(long broadcastId, List<Long> batchIds, File file) throws ServiceFault, IOException {
+		long start = System.currentTimeMillis();
+		List<ActionQuery> pages = new ArrayList<ActionQuery>();
+		for (Long batchId : batchIds == null ? Collections.<Long>singletonList(null) : batchIds) {
+			ActionQuery count = query(broadcastId, batchId, 0, 1);
+			int total = count(count);
+			for (int first = 0; first < total; first += pageSize) {
+				pages.add(query(broadcastId, batchId, first, pageSize));
+			}
+		}
+
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		Writer writer = new Writer(temp);
+		ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+		boolean exported = false;
+		try {
+			CompletionService<RowGroup> fetched = new ExecutorCompletionService<RowGroup>(executor);
+			// a few pages may wait to be written while the next ones are fetched
+			int maxPending = maxInFlight * 2;
+			int submitted = 0;
+			for (int written = 0; written < pages.size(); written++) {
+				while (submitted < pages.size() && submitted - written < maxPending) {
+					final ActionQuery page = pages.get(submitted++);
+					fetched.submit(new Callable<RowGroup>() {
+						@Override
+						public RowGroup call() throws ServiceFault {
+							return toRowGroup(query(page));
+						}
+					});
+				}
+				writer.write(getRowGroup(fetched));
+			}
+			writer.close();
+			exported = true;
+		}
+		finally {
+			executor.shutdownNow();
+			if (!exported) {
+				writer.close();
+				temp.delete();
+			}
+		}
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("can't replace " + file);
+		}
+		Summary summary = new Summary(file, writer.rows, pages.size(), file.length(), writer.results,
+				System.currentTimeMillis() - start);
+		LOG.info("exported broadcast " + broadcastId + ": " + summary);
+		return summary;
+	}
+
+	private static ActionQuery query(long broadcastId, Long batchId, int firstResult, int maxResults) {
+		ActionQuery query = new ActionQuery();
+		query.setBroadcastId(broadcastId);
+		query.setBatchId(batchId);
+		query.setFirstResult(firstResult);
+		query.setMaxResults(maxResults);
+		return query;
+	}
+
+	private static RowGroup getRowGroup(CompletionService<RowGroup> fetched) throws ServiceFault {
+		try {
+			return fetched.take().get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted exporting results", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ServiceFault) {
+				throw (ServiceFault)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new RuntimeException("exception exporting results", cause);
+		}
+	}
+
+	private RowGroup toRowGroup(List<T> actions) {
+		RowGroup group = new RowGroup(actions.size());
+		for (int i = 0; i < actions.size(); i++) {
+			T action = actions.get(i);
+			group.id[i] = action.getId();
+			group.batchId[i] = action.getBatchId() == null ? 0 : action.getBatchId();
+			group.toNumber[i] = action.getToNumber() == null ? PhoneNumbers.INVALID
+					: PhoneNumbers.normalize(action.getToNumber().getValue());
+			group.state[i] = action.getState() == null ? NONE : (byte)action.getState().ordinal();
+			group.result[i] = action.getFinalResult() == null ? NONE : (byte)action.getFinalResult().ordinal();
+			group.created[i] = millis(action.getCreated());
+			group.modified[i] = millis(action.getModified());
+			float billed = 0;
+			long finished = 0;
+			for (ActionRecord record : records(action)) {
+				billed += record.getBilledAmount();
+				finished = Math.max(finished, millis(record.getFinishTime()));
+			}
+			group.finished[i] = finished;
+			group.billedAmount[i] = billed;
+		}
+		return group;
+	}
+
+	private static long millis(Calendar calendar) {
+		return calendar == null ? 0 : calendar.getTimeInMillis();
+	}
+
+	/**
+	 * One page of results as columns.
+	 */
+	private static class RowGroup {
+		final int rows;
+		final long[] id;
+		final long[] batchId;
+		final long[] toNumber;
+		final byte[] state;
+		final byte[] result;
+		final long[] created;
+		final long[] modified;
+		final long[] finished;
+		final float[] billedAmount;
+
+		RowGroup(int rows) {
+			this.rows = rows;
+			id = new long[rows];
+			batchId = new long[rows];
+			toNumber = new long[rows];
+			state = new byte[rows];
+			result = new byte[rows];
+			created = new long[rows];
+			modified = new long[rows];
+			finished = new long[rows];
+			billedAmount = new float[rows];
+		}
+	}
+
+	/**
+	 * Writes the header, then one row group per page.
+	 */
+	private static class Writer {
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		private final DataOutputStream blockOut = new DataOutputStream(block);
+		private final int[] results = new int[Result.values().length];
+		private long rows;
+		private boolean closed;
+
+		Writer(File file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(COLUMNS.length);
+			for (int c = 0; c < COLUMNS.length; c++) {
+				out.writeUTF(COLUMNS[c]);
+				out.writeByte(TYPES[c]);
+				Enum<?>[] dictionary = COLUMNS[c].equals(STATE) ? ActionState.values()
+						: COLUMNS[c].equals(RESULT) ? Result.values() : new Enum<?>[0];
+				out.writeInt(dictionary.length);
+				for (Enum<?> value : dictionary) {
+					out.writeUTF(value.name());
+				}
+			}
+		}
+
+		void write(RowGroup group) throws IOException {
+			out.writeInt(group.rows);
+			writeLongs(group.id);
+			writeLongs(group.batchId);
+			writeLongs(group.toNumber);
+			writeBytes(group.state);
+			writeBytes(group.result);
+			writeLongs(group.created);
+			writeLongs(group.modified);
+			writeLongs(group.finished);
+			block.reset();
+			for (float value : group.billedAmount) {
+				blockOut.writeFloat(value);
+			}
+			writeBlock();
+			rows += group.rows;
+			for (byte code : group.result) {
+				if (code != NONE) {
+					results[code]++;
+				}
+			}
+		}
+
+		private void writeLongs(long[] values) throws IOException {
+			block.reset();
+			for (long value : values) {
+				blockOut.writeLong(value);
+			}
+			writeBlock();
+		}
+
+		private void writeBytes(byte[] values) throws IOException {
+			block.reset();
+			blockOut.write(values);
+			writeBlock();
+		}
+
+		private void writeBlock() throws IOException {
+			blockOut.flush();
+			out.writeInt(block.size());
+			block.writeTo(out);
+		}
+
+		void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * What an export wrote.
+	 */
+	public static class Summary {
+		private final File file;
+		private final long rows;
+		private final int pages;
+		private final long bytes;
+		private final Map<Result, Integer> results = new EnumMap<Result, Integer>(Result.class);
+		private final long elapsedMs;
+
+		Summary(File file, long rows, int pages, long bytes, int[] results, long elapsedMs) {
+			this.file = file;
+			this.rows = rows;
+			this.pages = pages;
+			this.bytes = bytes;
+			this.elapsedMs = elapsedMs;
+			Result[] values = Result.values();
+			for (int i = 0; i < results.length; i++) {
+				if (results[i] > 0) {
+					this.results.put(values[i], results[i]);
+				}
+			}
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the number of rows by final result
+		 */
+		public Map<Result, Integer> getResults() {
+			return Collections.unmodifiableMap(results);
+		}
+
+		public long getElapsedMs() {
+			return elapsedMs;
+		}
+
+		@Override
+		public String toString() {
+			return rows + " rows in " + pages + " pages, " + bytes + " bytes to " + file + " in " + elapsedMs
+					+ "ms, results " + results;
+		}
+	}
+
+	/**
+	 * Reads the row groups of an exported file, one at a time, decoding
+	 * only the requested columns and seeking past the others.
+	 */
+	public static class Scan implements Closeable {
+		private final FileInputStream file;
+		private final FileChannel channel;
+		private final DataInputStream in;
+		private final String[] columns;
+		private final byte[] types;
+		private final String[][] dictionaries;
+		private final boolean[] wanted;
+		private final Map<String, Object> values = new HashMap<String, Object>();
+		private int rows;
+
+		/**
+		 * @param file an exported file
+		 * @param columns the columns to read, e.g. {@link ResultExporter#RESULT}
+		 * @throws IOException
+		 */
+		public Scan(File file, String... columns) throws IOException {
+			this.file = new FileInputStream(file);
+			this.channel = this.file.getChannel();
+			// unbuffered, so that the channel's position is where the next read starts
+			this.in = new DataInputStream(Channels.newInputStream(channel));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException(file + " is not an exported result file");
+				}
+				int count = in.readInt();
+				this.columns = new String[count];
+				this.types = new byte[count];
+				this.dictionaries = new String[count][];
+				this.wanted = new boolean[count];
+				List<String> requested = Arrays.asList(columns);
+				for (int c = 0; c < count; c++) {
+					this.columns[c] = in.readUTF();
+					types[c] = in.readByte();
+					dictionaries[c] = new String[in.readInt()];
+					for (int d = 0; d < dictionaries[c].length; d++) {
+						dictionaries[c][d] = in.readUTF();
+					}
+					wanted[c] = requested.contains(this.columns[c]);
+				}
+				for (String column : columns) {
+					if (!Arrays.asList(this.columns).contains(column)) {
+						throw new IllegalArgumentException("no column " + column + " in " + file);
+					}
+				}
+			}
+			catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Reads the next row group.
+		 * @return false at the end of the file
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			try {
+				rows = in.readInt();
+			}
+			catch (EOFException e) {
+				return false;
+			}
+			values.clear();
+			for (int c = 0; c < columns.length; c++) {
+				int length = in.readInt();
+				if (!wanted[c]) {
+					channel.position(channel.position() + length);
+					continue;
+				}
+				ByteBuffer block = ByteBuffer.allocate(length);
+				while (block.hasRemaining()) {
+					if (channel.read(block) < 0) {
+						throw new EOFException("truncated column " + columns[c]);
+					}
+				}
+				block.flip();
+				if (types[c] == LONG) {
+					long[] longs = new long[rows];
+					block.asLongBuffer().get(longs);
+					values.put(columns[c], longs);
+				}
+				else if (types[c] == FLOAT) {
+					float[] floats = new float[rows];
+					block.asFloatBuffer().get(floats);
+					values.put(columns[c], floats);
+				}
+				else {
+					values.put(columns[c], block.array());
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the rows in the current row group
+		 */
+		public int getRows() {
+			return rows;
+		}
+
+		/**
+		 * @param column a column of numbers, ids or times
+		 * @return its values in the current row group
+		 */
+		public long[] getLongs(String column) {
+			return (long[])get(column);
+		}
+
+		/**
+		 * @param column {@link ResultExporter#BILLED_AMOUNT}
+		 * @return its values in the current row group
+		 */
+		public float[] getFloats(String column) {
+			return (float[])get(column);
+		}
+
+		/**
+		 * @param column {@link ResultExporter#STATE} or {@link ResultExporter#RESULT}
+		 * @return the dictionary codes in the current row group, -1 where there is no value
+		 */
+		public byte[] getCodes(String column) {
+			return (byte[])get(column);
+		}
+
+		/**
+		 * @param column
+		 * @param code
+		 * @return the name the code stands for, or null
+		 */
+		public String decode(String column, byte code) {
+			int c = Arrays.asList(columns).indexOf(column);
+			return code < 0 || c < 0 ? null : dictionaries[c][code];
+		}
+
+		private Object get(String column) {
+			Object value = values.get(column);
+			if (value == null) {
+				throw new IllegalArgumentException("column " + column + " wasn't requested");
+			}
+			return value;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+}
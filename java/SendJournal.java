@@ -0,0 +1,433 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.callfire.api.service.wsdl.ServiceFault;
+
+/**
+ * A local, append-only record of the requests that send to recipients,
+ * so that an interrupted send can be resumed without sending anything
+ * twice.
+ *
+ * Each send is identified by a key chosen by the caller, e.g. the
+ * broadcast, batch name and chunk number of a contact batch. Before the
+ * request is made the journal durably records the key with a newly
+ * generated RequestId, and once it succeeds the id CallFire returned.
+ * Running the same key again returns the recorded id without calling
+ * CallFire if the send completed, and otherwise repeats the request with
+ * the same RequestId, which CallFire recognises as a duplicate.
+ *
+ * Once the caller is done with a send, e.g. its broadcast was polled to
+ * the end, it marks the key {@link #complete(String) complete}. A complete
+ * key is forgotten, so the same request made by a later run is sent
+ * afresh; only sends that were interrupted are resumed. Forgotten records
+ * are compacted away when the journal is next opened.
+ *
+ * Records are appended as lines of text and made durable with group
+ * commit: every thread that needs its record on disk waits for a single
+ * write and force of all the records appended so far, so concurrent
+ * senders share one disk flush instead of each paying for their own.
+ */
+public class SendJournal implements Closeable {
+	private static final Logger LOG = Logger.getLogger(SendJournal.class.getName());
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String BEGIN = "B";
+	private static final String DONE = "D";
+	private static final String COMPLETE = "C";
+
+	/**
+	 * A request that is sent with a RequestId.
+	 */
+	public interface Send {
+		/**
+		 * @param requestId to be set on the request
+		 * @return the id CallFire returned for the request
+		 * @throws ServiceFault
+		 */
+		long send(String requestId) throws ServiceFault;
+	}
+
+	private final File file;
+	private final FileOutputStream out;
+	private final FileChannel channel;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	// guarded by this
+	private final StringBuilder pending = new StringBuilder();
+	private long appended;
+	private long durable;
+	private boolean flushing;
+	private IOException failure;
+	private long commits;
+
+	/**
+	 * Opens the journal, reading the records already in it.
+	 * @param file created if missing
+	 * @throws IOException
+	 */
+	public SendJournal(File file) throws IOException {
+		this.file = file;
+		File compacted = compactedFile(file);
+		if (!file.exists() && compacted.exists() && !compacted.renameTo(file)) {
+			// a compaction was interrupted after removing the old journal
+			throw new IOException("can't restore " + file + " from " + compacted);
+		}
+		if (file.exists()) {
+			truncateTornRecord(file);
+			int records = replay();
+			if (records > liveRecords()) {
+				compact();
+			}
+		}
+		this.out = new FileOutputStream(file, true);
+		this.channel = out.getChannel();
+	}
+
+	/**
+	 * Opens the journal named by the sample.properties setting send_journal_file.
+	 * @param config
+	 * @return the journal, or null if send_journal_file isn't set or the samples run offline
+	 * @throws IOException
+	 */
+	public static SendJournal fromConfiguration(Configuration config) throws IOException {
+		String file = config.getString("send_journal_file");
+		if (file == null || file.trim().length() == 0) {
+			return null;
+		}
+		if (config.getBoolean("offline", false)) {
+			// the ids it records would refer to a fake that is gone by the next run
+			LOG.info("not journaling sends offline");
+			return null;
+		}
+		return new SendJournal(new File(file.trim()));
+	}
+
+	/**
+	 * @return a new RequestId, a urn:uuid URI
+	 */
+	public static String newRequestId() {
+		return "urn:uuid:" + UUID.randomUUID();
+	}
+
+	/**
+	 * @param operation e.g. sendText
+	 * @param parts what the request is made of, e.g. its message and numbers
+	 * @return a key that is the same whenever the same request is made
+	 */
+	public static String key(String operation, Object... parts) {
+		StringBuilder content = new StringBuilder();
+		for (Object part : parts) {
+			content.append(part).append('\u0000');
+		}
+		return operation + "/" + UUID.nameUUIDFromBytes(content.toString().getBytes(UTF_8));
+	}
+
+	/**
+	 * Sends the request identified by key unless it was sent before.
+	 * Several threads may send different keys at once; a key must not
+	 * be sent by two threads at once.
+	 * @param key identifies the request across runs, without tabs or line breaks
+	 * @param send makes the request
+	 * @return the id CallFire returned, now or when key was first sent
+	 * @throws ServiceFault
+	 * @throws IOException if the journal can't be written
+	 */
+	public long send(String key, Send send) throws ServiceFault, IOException {
+		if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("bad journal key: " + key);
+		}
+		String requestId;
+		long sequence = 0;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.resultId != null) {
+				LOG.info("already sent " + key + ": " + entry.resultId);
+				return entry.resultId;
+			}
+			if (entry == null) {
+				entry = new Entry(newRequestId());
+				entries.put(key, entry);
+				sequence = append(BEGIN, key, entry.requestId);
+			}
+			requestId = entry.requestId;
+		}
+		if (sequence > 0) {
+			// the RequestId must be on disk before it can reach CallFire
+			awaitDurable(sequence);
+		}
+
+		long resultId = send.send(requestId);
+
+		synchronized (this) {
+			entries.get(key).resultId = resultId;
+			sequence = append(DONE, key, String.valueOf(resultId));
+		}
+		awaitDurable(sequence);
+		return resultId;
+	}
+
+	/**
+	 * Forgets the sends whose keys start with keyPrefix, so that making the
+	 * same requests again sends them afresh. Called once the caller is done
+	 * with them, e.g. when their broadcast has been polled to the end.
+	 * @param keyPrefix a key, or the start of several, e.g. "createContactBatch/42/"
+	 * @throws IOException if the journal can't be written
+	 */
+	public void complete(String keyPrefix) throws IOException {
+		long sequence = 0;
+		synchronized (this) {
+			for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+				Map.Entry<String, Entry> entry = i.next();
+				if (entry.getKey().startsWith(keyPrefix)) {
+					i.remove();
+					sequence = append(COMPLETE, entry.getKey(), entry.getValue().requestId);
+				}
+			}
+		}
+		if (sequence > 0) {
+			awaitDurable(sequence);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the id recorded for key, or null if it hasn't been sent
+	 */
+	public synchronized Long getResultId(String key) {
+		Entry entry = entries.get(key);
+		return entry == null ? null : entry.resultId;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of times records were written and forced to disk
+	 */
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * @return the number of records written since the journal was opened
+	 */
+	public synchronized long getRecords() {
+		return durable;
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private synchronized long append(String type, String key, String value) {
+		pending.append(type).append('\t').append(key).append('\t').append(value).append('\n');
+		return ++appended;
+	}
+
+	/**
+	 * Returns once the record with the given sequence number is on disk. The
+	 * first thread to find no write in progress writes every pending record,
+	 * the others wait for it and return if it covered theirs.
+	 */
+	private void awaitDurable(long sequence) throws IOException {
+		byte[] batch;
+		long batchEnd;
+		synchronized (this) {
+			while (true) {
+				if (failure != null) {
+					throw new IOException("journal " + file + " failed", failure);
+				}
+				if (durable >= sequence) {
+					return;
+				}
+				if (!flushing) {
+					break;
+				}
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for journal " + file);
+				}
+			}
+			flushing = true;
+			batch = pending.toString().getBytes(UTF_8);
+			pending.setLength(0);
+			batchEnd = appended;
+		}
+
+		IOException error = null;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		catch (IOException e) {
+			error = e;
+		}
+		finally {
+			synchronized (this) {
+				flushing = false;
+				if (error == null) {
+					durable = batchEnd;
+					commits++;
+				}
+				else {
+					failure = error;
+				}
+				notifyAll();
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Cuts off a last line without a newline, i.e. one torn by a crash. It
+	 * may still split into three fields, e.g. a DONE record with a truncated
+	 * id, so only records that end with a newline are trusted.
+	 * @param file
+	 * @throws IOException
+	 */
+	private static void truncateTornRecord(File file) throws IOException {
+		RandomAccessFile journal = new RandomAccessFile(file, "rw");
+		try {
+			long end = journal.length();
+			while (end > 0) {
+				journal.seek(end - 1);
+				if (journal.read() == '\n') {
+					break;
+				}
+				end--;
+			}
+			if (end < journal.length()) {
+				LOG.info("journal " + file + " ends with a torn record, discarding " + (journal.length() - end)
+						+ " bytes");
+				journal.setLength(end);
+			}
+		}
+		finally {
+			journal.close();
+		}
+	}
+
+	/**
+	 * @return the number of lines read
+	 */
+	private int replay() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		try {
+			String line;
+			int records = 0;
+			while ((line = reader.readLine()) != null) {
+				records++;
+				String[] fields = line.split("\t");
+				if (fields.length != 3) {
+					continue;
+				}
+				if (BEGIN.equals(fields[0])) {
+					entries.put(fields[1], new Entry(fields[2]));
+				}
+				else if (DONE.equals(fields[0]) && entries.containsKey(fields[1])) {
+					try {
+						entries.get(fields[1]).resultId = Long.valueOf(fields[2]);
+					}
+					catch (NumberFormatException e) {
+						continue;
+					}
+				}
+				else if (COMPLETE.equals(fields[0])) {
+					entries.remove(fields[1]);
+				}
+			}
+			int sent = 0;
+			for (Entry entry : entries.values()) {
+				if (entry.resultId != null) {
+					sent++;
+				}
+			}
+			LOG.info("journal " + file + " has " + sent + " of " + entries.size() + " unfinished requests sent");
+			return records;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return the number of records that describe the entries
+	 */
+	private int liveRecords() {
+		int records = 0;
+		for (Entry entry : entries.values()) {
+			records += entry.resultId == null ? 1 : 2;
+		}
+		return records;
+	}
+
+	/**
+	 * Rewrites the journal with only the records of its entries, dropping
+	 * completed sends. The new journal is written beside the old one and
+	 * then replaces it, so a crash leaves one or the other intact.
+	 */
+	private void compact() throws IOException {
+		StringBuilder records = new StringBuilder();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			records.append(BEGIN).append('\t').append(entry.getKey()).append('\t')
+					.append(entry.getValue().requestId).append('\n');
+			if (entry.getValue().resultId != null) {
+				records.append(DONE).append('\t').append(entry.getKey()).append('\t')
+						.append(entry.getValue().resultId).append('\n');
+			}
+		}
+		File compacted = compactedFile(file);
+		FileOutputStream compactedOut = new FileOutputStream(compacted);
+		try {
+			compactedOut.write(records.toString().getBytes(UTF_8));
+			compactedOut.getChannel().force(false);
+		}
+		finally {
+			compactedOut.close();
+		}
+		// renameTo doesn't replace an existing file everywhere
+		if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+			throw new IOException("can't replace " + file + " with " + compacted);
+		}
+		LOG.info("compacted journal " + file + " to " + entries.size() + " unfinished requests");
+	}
+
+	private static File compactedFile(File file) {
+		return new File(file.getPath() + ".compact");
+	}
+
+	private static class Entry {
+		final String requestId;
+		Long resultId;
+
+		Entry(String requestId) {
+			this.requestId = requestId;
+		}
+	}
+}
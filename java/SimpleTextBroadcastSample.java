@@ -1,4 +1,7 @@
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -10,13 +13,12 @@ import com.callfire.api.data.Result;
 import com.callfire.api.data.Text;
 import com.callfire.api.data.TextBroadcastConfig;
 import com.callfire.api.data.ToNumber;
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
 import com.callfire.api.service.wsdl.ServiceFault;
 import com.callfire.api.service.wsdl.TextServicePortType;
-import com.callfire.api.service.wsdl.http.soap12.CallFireApi;
 import com.callfire.api.service.wsdl.http.soap12.CallFireApi.ServiceState;
 import com.callfire.api.service.xsd.ActionQuery;
 import com.callfire.api.service.xsd.SendText;
-import com.callfire.api.service.xsd.TextQueryResult;
 
 /**
  * Example implementation of using CallFire's APIs to send
@@ -31,17 +33,34 @@ public class SimpleTextBroadcastSample {
 	private final String password;
 	private final int maxWaitMs;
 	
-	private final CallFireApi callFireApi;
+	private final CallFireClientPool clientPool;
+	private final NotificationReceiver notificationReceiver;
+	private final PollScheduler pollScheduler;
+	private final SendJournal sendJournal;
+	private final BroadcastServicePortType broadcastService;
 	private final TextServicePortType textService;
+	private final ActionStreamPort actionStream;
 	private final PropertiesConfiguration propertiesConfig;
 	
-	public SimpleTextBroadcastSample() throws ConfigurationException {
+	public SimpleTextBroadcastSample() throws ConfigurationException, IOException {
 		propertiesConfig = new PropertiesConfiguration("sample.properties");
 		user = propertiesConfig.getString("user");
 		password = propertiesConfig.getString("password");
 		maxWaitMs = propertiesConfig.getInt("max_wait_ms");
-		callFireApi = new CallFireApi(user, password, ServiceState.DEVELOPMENT);
-		textService = callFireApi.getTextServicePort();
+		// ports are created once and pooled so they can be shared across threads,
+		// set offline = true to run against an in-process fake of the API
+		clientPool = CallFireClientPool.fromConfiguration(propertiesConfig, ServiceState.DEVELOPMENT);
+		// set notification_url to have results pushed to us instead of polling for them
+		notificationReceiver = NotificationReceiver.fromConfiguration(propertiesConfig,
+				clientPool.getSubscriptionService());
+		// one shared scheduler runs every poll, at intervals that adapt to progress
+		pollScheduler = new PollScheduler();
+		// set send_journal_file to record sends, so an interrupted run resumes without sending twice
+		sendJournal = SendJournal.fromConfiguration(propertiesConfig);
+		broadcastService = clientPool.getBroadcastService();
+		textService = clientPool.getTextService();
+		// set stream_query_results to decode only the fields polling reads from each page of results
+		actionStream = propertiesConfig.getBoolean("stream_query_results", false) ? clientPool.getActionStream() : null;
 	}
 	
 	/**
@@ -49,14 +68,18 @@ public class SimpleTextBroadcastSample {
 	 * @param toNumbers
 	 * @param fromNumber
 	 * @throws ServiceFault 
+	 * @throws IOException if the send journal can't be written
 	 */
-	private long sendTextUsingTextService(String txtMsg, List<Object> toNumbers, String fromNumber) throws ServiceFault {
-		SendText sendText = new SendText();
-		for (Object toNumber : toNumbers) {
-			ToNumber toNumberElem = new ToNumber();
-			toNumberElem.setValue((String)toNumber);
-			sendText.getToNumber().add(toNumberElem);
+	private long sendTextUsingTextService(String txtMsg, List<Object> toNumbers, String fromNumber)
+			throws ServiceFault, IOException {
+		final SendText sendText = new SendText();
+		// numbers are normalized, and invalid and duplicate ones dropped
+		RecipientDeduplicator deduplicator = new RecipientDeduplicator(toNumbers.size());
+		Iterator<ToNumber> toNumberElems = deduplicator.filter(ContactBatchUploader.toNumbers(toNumbers, null));
+		while (toNumberElems.hasNext()) {
+			sendText.getToNumber().add(toNumberElems.next());
 		}
+		LOG.info("recipients: " + deduplicator.getReport());
 		
 		TextBroadcastConfig config = new TextBroadcastConfig();
 		config.setMessage(txtMsg);
@@ -66,7 +89,22 @@ public class SimpleTextBroadcastSample {
 		
 		sendText.setTextBroadcastConfig(config);
 
-		return textService.sendText(sendText);
+		// the RequestId lets CallFire spot a retried send as a duplicate
+		if (sendJournal == null) {
+			sendText.setRequestId(SendJournal.newRequestId());
+			return textService.sendText(sendText);
+		}
+		return sendJournal.send(journalKey(txtMsg, toNumbers, fromNumber), new SendJournal.Send() {
+			@Override
+			public long send(String requestId) throws ServiceFault {
+				sendText.setRequestId(requestId);
+				return textService.sendText(sendText);
+			}
+		});
+	}
+
+	private static String journalKey(String txtMsg, List<Object> toNumbers, String fromNumber) {
+		return SendJournal.key("sendText", txtMsg, toNumbers, fromNumber);
 	}
 
 	/**
@@ -77,47 +115,74 @@ public class SimpleTextBroadcastSample {
 	public boolean pollForResponse(long broadcastId, List<Object> toNumbers) {
 		LOG.info("polling for text status");
 		
-		final int sleepInterval = 3000;
-		int totalWait = 0;
-		
-		ActionQuery textQuery = new ActionQuery();
-		textQuery.setBroadcastId(broadcastId);
-		
-		while (totalWait < maxWaitMs) {
-			try {
-				Thread.sleep(sleepInterval);
-				totalWait += sleepInterval;
-			}
-			catch (InterruptedException e) {
-				LOG.log(Level.FINE, "interrupted", e);
+		// hashed set of outstanding numbers, completing a result is O(1)
+		final OutstandingNumbers outstanding = OutstandingNumbers.of(toNumbers);
+		ActionStatusTracker<Text> tracker = actionStream == null
+				? ActionStatusTracker.forTexts(textService, broadcastId, null)
+				: ActionStatusTracker.forTexts(actionStream, broadcastId, null);
+		ActionStatusTracker.Listener<Text> listener = new ActionStatusTracker.Listener<Text>() {
+			@Override
+			public void onAction(Text text) {
+				Result finalResult = text.getFinalResult();
+				if (finalResult != null) {
+					if (finalResult.equals(Result.SENT)) {
+						String toNumber = text.getToNumber().getValue();
+						outstanding.complete(toNumber);
+						LOG.info("found toNumber: " + toNumber);
+					}
+				}
 			}
-			
+		};
+		
+		if (notificationReceiver != null) {
+			// results are pushed as they happen, polling is only used to catch up
 			try {
-				TextQueryResult result = textService.queryTexts(textQuery);
-				List<Text> textList = result.getText();
-				if (textList.isEmpty()) {
-					throw new RuntimeException("call query did not return a text");
-				}
-				
-				for (Text text : textList) {
-					Result finalResult = text.getFinalResult();
-					if (finalResult != null) {
-						if (finalResult.equals(Result.SENT)) {
-							String toNumber = text.getToNumber().getValue();
-							toNumbers.remove(toNumber);
-							LOG.info("found toNumber: " + toNumber);
-							if (toNumbers.isEmpty()) {
-								return true;
-							}
-						}
-					} 
-				}
+				return notificationReceiver.await(Text.class, Collections.singletonList(tracker), listener,
+						outstanding, maxWaitMs);
 			}
 			catch (ServiceFault e) {
-				throw new RuntimeException("exception querying for texts", e);
+				throw new RuntimeException("exception waiting for text notifications", e);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
 		}
-		return false;
+
+		// texts are only queried when the broadcast's counters show new results
+		BroadcastStatsMonitor stats = new BroadcastStatsMonitor(broadcastService, broadcastId);
+		PollScheduler.Poll<Text> poll = pollScheduler.schedule(Collections.singletonList(tracker), listener,
+				outstanding, maxWaitMs, stats);
+		try {
+			return poll.await();
+		}
+		catch (ServiceFault e) {
+			throw new RuntimeException("exception querying for texts", e);
+		}
+		catch (InterruptedException e) {
+			poll.cancel();
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Logs the broadcast's counters, and the texts that failed if there are any.
+	 * @param broadcastId
+	 * @throws ServiceFault
+	 */
+	private void logFailures(long broadcastId) throws ServiceFault {
+		BroadcastStatsMonitor stats = new BroadcastStatsMonitor(broadcastService,
+				BroadcastStatsMonitor.textCounter(textService), broadcastId);
+		BroadcastStatsMonitor.Snapshot snapshot = stats.refresh();
+		LOG.info("broadcast stats: " + snapshot);
+		ActionQuery failureQuery = stats.newFailureQuery(snapshot);
+		if (failureQuery == null) {
+			return;
+		}
+		for (Text text : textService.queryTexts(failureQuery).getText()) {
+			LOG.info("failed toNumber: " + text.getToNumber().getValue() + " " + text.getFinalResult());
+		}
 	}
 	
 	/**
@@ -125,19 +190,39 @@ public class SimpleTextBroadcastSample {
 	 * @throws Exception
 	 */
 	public void run() throws Exception {
-		String textMessage = "this is just a test...";
+		try {
+			String textMessage = "this is just a test...";
 
-		List<Object> toNumbers1 = propertiesConfig.getList("contacts_batch_1");
-		
-		long broadcastId = sendTextUsingTextService(textMessage, toNumbers1, null);
-		
-		boolean response = pollForResponse(broadcastId, toNumbers1);
-		
-		if (!response) {
-			LOG.log(Level.WARNING, "did not receive postive reponse.");
+			List<Object> toNumbers1 = propertiesConfig.getList("contacts_batch_1");
+			
+			long broadcastId = sendTextUsingTextService(textMessage, toNumbers1, null);
+			
+			boolean response = pollForResponse(broadcastId, toNumbers1);
+			if (sendJournal != null) {
+				// the send is finished, running the sample again sends afresh
+				sendJournal.complete(journalKey(textMessage, toNumbers1, null));
+			}
+			
+			if (!response) {
+				LOG.log(Level.WARNING, "did not receive postive reponse.");
+				logFailures(broadcastId);
+			}
+			else {
+				LOG.log(Level.INFO, "received postive reponse.");
+			}
 		}
-		else {
-			LOG.log(Level.INFO, "received postive reponse.");
+		finally {
+			pollScheduler.close();
+			if (notificationReceiver != null) {
+				notificationReceiver.close();
+			}
+			if (sendJournal != null) {
+				sendJournal.close();
+			}
+			if (clientPool.getInstrumentation() != null) {
+				// logs the latency and faults of every operation that was called
+				clientPool.getInstrumentation().close();
+			}
 		}
 	}
 	
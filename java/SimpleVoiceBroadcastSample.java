@@ -1,13 +1,12 @@
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.activation.DataHandler;
-import javax.activation.DataSource;
-import javax.activation.FileDataSource;
-
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 
@@ -16,13 +15,12 @@ import com.callfire.api.data.Call;
 import com.callfire.api.data.Result;
 import com.callfire.api.data.ToNumber;
 import com.callfire.api.data.VoiceBroadcastConfig;
+import com.callfire.api.service.wsdl.BroadcastServicePortType;
 import com.callfire.api.service.wsdl.CallServicePortType;
 import com.callfire.api.service.wsdl.ServiceFault;
 import com.callfire.api.service.wsdl.TextServicePortType;
-import com.callfire.api.service.wsdl.http.soap12.CallFireApi;
 import com.callfire.api.service.wsdl.http.soap12.CallFireApi.ServiceState;
 import com.callfire.api.service.xsd.ActionQuery;
-import com.callfire.api.service.xsd.CallQueryResult;
 import com.callfire.api.service.xsd.CreateSound;
 import com.callfire.api.service.xsd.CreateSound.RecordingCall;
 import com.callfire.api.service.xsd.SendCall;
@@ -43,28 +41,47 @@ public class SimpleVoiceBroadcastSample {
 	private final String password;
 	private final int maxWaitMs;
 	
-	private final CallFireApi callFireApi;
+	private final CallFireClientPool clientPool;
+	private final NotificationReceiver notificationReceiver;
+	private final PollScheduler pollScheduler;
+	private final SendJournal sendJournal;
+	private final BroadcastServicePortType broadcastService;
 	private final CallServicePortType callService;
+	private final ActionStreamPort actionStream;
+	private final SoundCache soundCache;
 	private final PropertiesConfiguration propertiesConfig;
 	
-	private SimpleVoiceBroadcastSample() throws ConfigurationException {
+	private SimpleVoiceBroadcastSample() throws ConfigurationException, IOException {
 		propertiesConfig = new PropertiesConfiguration("sample.properties");
 		user = propertiesConfig.getString("user");
 		password = propertiesConfig.getString("password");
 		maxWaitMs = propertiesConfig.getInt("max_wait_ms");
-		callFireApi = new CallFireApi(user, password, ServiceState.DEVELOPMENT);
-		callService = callFireApi.getCallServicePort();
+		// ports are created once and pooled so they can be shared across threads,
+		// set offline = true to run against an in-process fake of the API
+		clientPool = CallFireClientPool.fromConfiguration(propertiesConfig, ServiceState.DEVELOPMENT);
+		// set notification_url to have results pushed to us instead of polling for them
+		notificationReceiver = NotificationReceiver.fromConfiguration(propertiesConfig,
+				clientPool.getSubscriptionService());
+		// one shared scheduler runs every poll, at intervals that adapt to progress
+		pollScheduler = new PollScheduler();
+		// set send_journal_file to record sends, so an interrupted run resumes without sending twice
+		sendJournal = SendJournal.fromConfiguration(propertiesConfig);
+		broadcastService = clientPool.getBroadcastService();
+		callService = clientPool.getCallService();
+		// set stream_query_results to decode only the fields polling reads from each page of results
+		actionStream = propertiesConfig.getBoolean("stream_query_results", false) ? clientPool.getActionStream() : null;
+		// sounds are uploaded once and then reused by content hash across runs
+		soundCache = SoundCache.fromConfiguration(propertiesConfig, callService);
 	}
 	/**
-	 * @param txtMsg
 	 * @param toNumbers
 	 * @param fromNumber
+	 * @param liveSoundId
+	 * @param machineSoundId
 	 * @throws ServiceFault
 	 */
-	private long sendVoiceBroadcastUsingCallService(List<Object> toNumbers, String fromNumber) throws ServiceFault {
-		long liveSoundId = createSound(TEST_LIVE_SOUND_FILE);
-		long machineSoundId = createSound(TEST_MACHINE_SOUND_FILE);
-
+	private long sendVoiceBroadcastUsingCallService(List<Object> toNumbers, String fromNumber, long liveSoundId,
+			long machineSoundId) throws ServiceFault, IOException {
 		// send a single-call voice broadcast
 		VoiceBroadcastConfig config = new VoiceBroadcastConfig();
 		config.setAnsweringMachineConfig(AnsweringMachineConfig.AM_AND_LIVE);
@@ -72,20 +89,36 @@ public class SimpleVoiceBroadcastSample {
 		config.setMachineSoundId(machineSoundId);
 		config.setFromNumber(fromNumber);
 
-		Long broadcastId = 0L;
-		SendCall sendCall = new SendCall();
+		final SendCall sendCall = new SendCall();
 		sendCall.setBroadcastName("Simple Voice Broadcast");
 		sendCall.setVoiceBroadcastConfig(config);
 		
-		for (Object toNumber : toNumbers) {
-			ToNumber toNumberElem = new ToNumber();
-			toNumberElem.setValue((String)toNumber);
-			sendCall.getToNumber().add(toNumberElem);
+		// numbers are normalized, and invalid and duplicate ones dropped
+		RecipientDeduplicator deduplicator = new RecipientDeduplicator(toNumbers.size());
+		Iterator<ToNumber> toNumberElems = deduplicator.filter(ContactBatchUploader.toNumbers(toNumbers, null));
+		while (toNumberElems.hasNext()) {
+			sendCall.getToNumber().add(toNumberElems.next());
 		}
+		LOG.info("recipients: " + deduplicator.getReport());
 
-		broadcastId = callService.sendCall(sendCall);
+		// the RequestId lets CallFire spot a retried send as a duplicate
+		if (sendJournal == null) {
+			sendCall.setRequestId(SendJournal.newRequestId());
+			return callService.sendCall(sendCall);
+		}
+		return sendJournal.send(journalKey(toNumbers, fromNumber, liveSoundId, machineSoundId),
+				new SendJournal.Send() {
+					@Override
+					public long send(String requestId) throws ServiceFault {
+						sendCall.setRequestId(requestId);
+						return callService.sendCall(sendCall);
+					}
+				});
+	}
 
-		return broadcastId;
+	private static String journalKey(List<Object> toNumbers, String fromNumber, long liveSoundId,
+			long machineSoundId) {
+		return SendJournal.key("sendCall", toNumbers, fromNumber, liveSoundId, machineSoundId);
 	}
 
 	/**
@@ -96,55 +129,74 @@ public class SimpleVoiceBroadcastSample {
 	private boolean pollForResponse(long broadcastId, List<Object> toNumbers) throws ServiceFault {
 		LOG.info("polling for call status");
 		
-		final int sleepInterval = 2000;
-		int totalWait = 0;
-
-		ActionQuery callQuery = new ActionQuery();
-		callQuery.setBroadcastId(broadcastId);
-
-		while (totalWait < maxWaitMs) {
-			try {
-				Thread.sleep(sleepInterval);
-				totalWait += sleepInterval;
-			}
-			catch (InterruptedException e) {
-				LOG.log(Level.FINE, "interrupted", e);
-			}
-			
-			CallQueryResult result = callService.queryCalls(callQuery);
-			List<Call> callList = result.getCall();
-			if (callList.isEmpty()) {
-				throw new RuntimeException("call query did not return a call");
-			}
-
-			for (Call call : callList) {
+		// hashed set of outstanding numbers, completing a result is O(1)
+		final OutstandingNumbers outstanding = OutstandingNumbers.of(toNumbers);
+		ActionStatusTracker<Call> tracker = actionStream == null
+				? ActionStatusTracker.forCalls(callService, broadcastId, null)
+				: ActionStatusTracker.forCalls(actionStream, broadcastId, null);
+		ActionStatusTracker.Listener<Call> listener = new ActionStatusTracker.Listener<Call>() {
+			@Override
+			public void onAction(Call call) {
 				Result finalResult = call.getFinalResult();
 				String toNumber = call.getToNumber().getValue();
 				if (finalResult != null) {
 					if (!finalResult.equals(Result.UNDIALED)) {
-						toNumbers.remove(toNumber);
+						outstanding.complete(toNumber);
 						LOG.info("found toNumber: " + toNumber);
-						if (toNumbers.isEmpty()) {
-							return true;
-						}
 					}
 				}
 			}
+		};
+
+		if (notificationReceiver != null) {
+			// results are pushed as they happen, polling is only used to catch up
+			try {
+				return notificationReceiver.await(Call.class, Collections.singletonList(tracker), listener,
+						outstanding, maxWaitMs);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		// calls are only queried when the broadcast's counters show new results
+		BroadcastStatsMonitor stats = new BroadcastStatsMonitor(broadcastService, broadcastId);
+		PollScheduler.Poll<Call> poll = pollScheduler.schedule(Collections.singletonList(tracker), listener,
+				outstanding, maxWaitMs, stats);
+		try {
+			return poll.await();
+		}
+		catch (InterruptedException e) {
+			poll.cancel();
+			Thread.currentThread().interrupt();
+			return false;
 		}
-		return false;
 	}
 	
-	private long createSound(File soundFile) throws ServiceFault {
-		CreateSound sound = new CreateSound();
-		sound.setName("some sound");
-		
-		DataSource source = new FileDataSource(soundFile);
-		DataHandler dataHandler = new DataHandler(source);
-		
-		sound.setData(dataHandler);
-
-		long soundId = callService.createSound(sound);
-		return soundId;
+	/**
+	 * Logs the broadcast's counters, and the calls that failed if there are any.
+	 * @param broadcastId
+	 * @throws ServiceFault
+	 */
+	private void logFailures(long broadcastId) throws ServiceFault {
+		BroadcastStatsMonitor stats = new BroadcastStatsMonitor(broadcastService,
+				BroadcastStatsMonitor.callCounter(callService), broadcastId);
+		BroadcastStatsMonitor.Snapshot snapshot = stats.refresh();
+		LOG.info("broadcast stats: " + snapshot);
+		ActionQuery failureQuery = stats.newFailureQuery(snapshot);
+		if (failureQuery == null) {
+			return;
+		}
+		for (Call call : callService.queryCalls(failureQuery).getCall()) {
+			LOG.info("failed toNumber: " + call.getToNumber().getValue() + " " + call.getFinalResult());
+		}
+	}
+	
+	private long createSound(File soundFile) throws ServiceFault, IOException {
+		// identical files, like the live and machine sounds here,
+		// share a single upload
+		return soundCache.getSoundId(soundFile);
 	}
 	
 	/**
@@ -152,18 +204,40 @@ public class SimpleVoiceBroadcastSample {
 	 * @throws Exception
 	 */
 	public void run() throws Exception {
-		
-		List<Object> toNumbers1 = propertiesConfig.getList("contacts_batch_1");
-		
-		long broadcastId = sendVoiceBroadcastUsingCallService(toNumbers1, "12132212289");
-		
-		boolean response = pollForResponse(broadcastId, toNumbers1);
+		try {
+			List<Object> toNumbers1 = propertiesConfig.getList("contacts_batch_1");
+			
+			long liveSoundId = createSound(TEST_LIVE_SOUND_FILE);
+			long machineSoundId = createSound(TEST_MACHINE_SOUND_FILE);
+			long broadcastId = sendVoiceBroadcastUsingCallService(toNumbers1, "12132212289", liveSoundId,
+					machineSoundId);
+			
+			boolean response = pollForResponse(broadcastId, toNumbers1);
+			if (sendJournal != null) {
+				// the send is finished, running the sample again sends afresh
+				sendJournal.complete(journalKey(toNumbers1, "12132212289", liveSoundId, machineSoundId));
+			}
 
-		if (!response) {
-			LOG.log(Level.WARNING, "did not receive postive reponse.");
+			if (!response) {
+				LOG.log(Level.WARNING, "did not receive postive reponse.");
+				logFailures(broadcastId);
+			}
+			else {
+				LOG.log(Level.INFO, "received postive reponse.");
+			}
 		}
-		else {
-			LOG.log(Level.INFO, "received postive reponse.");
+		finally {
+			pollScheduler.close();
+			if (notificationReceiver != null) {
+				notificationReceiver.close();
+			}
+			if (sendJournal != null) {
+				sendJournal.close();
+			}
+			if (clientPool.getInstrumentation() != null) {
+				// logs the latency and faults of every operation that was called
+				clientPool.getInstrumentation().close();
+			}
 		}
 	}
 	
@@ -0,0 +1,649 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.ws.WebServiceException;
+
+import com.callfire.api.data.Action;
+import com.callfire.api.data.ActionState;
+import com.callfire.api.data.Call;
+import com.callfire.api.data.Result;
+import com.callfire.api.data.Text;
+import com.callfire.api.data.ToNumber;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.wsdl.TextServicePortType;
+import com.callfire.api.service.xsd.ActionQuery;
+import com.callfire.api.service.xsd.CallQueryResult;
+import com.callfire.api.service.xsd.FaultCode;
+import com.callfire.api.service.xsd.ObjectFactory;
+import com.callfire.api.service.xsd.ServiceFaultInfo;
+import com.callfire.api.service.xsd.TextQueryResult;
+
+/**
+ * An {@link ActionStreamPort} that reads the SOAP response of QueryTexts
+ * and QueryCalls with StAX.
+ *
+ * The JAX-WS ports unmarshal a page of up to 1000 texts or calls into a
+ * tree of objects, records and messages included, when polling only reads
+ * a few fields of each. Here the response is read one element at a time:
+ * the requested fields are decoded straight from the parser's character
+ * buffer into a reused Text or Call, numbers, enums and times without
+ * creating a String, and everything else is skipped. Per page this
+ * allocates the reader and the flyweight, and per action only the strings
+ * of the phone numbers and the boxed ids that were asked for.
+ *
+ * {@link #overHttp(String, String, String, String)} posts the query to the
+ * CallFire API itself, with the same basic authentication as the JAX-WS
+ * ports. {@link #overPorts(TextServicePortType, CallServicePortType)}
+ * marshals the result of ordinary ports into a response and reads that, so
+ * the decoding can run offline against a {@link FakeCallFireService}; it
+ * costs more than the ports it wraps and only exists to exercise the decoder.
+ */
+public abstract class SoapActionStream implements ActionStreamPort {
+	static final String SOAP_NS = "http://www.w3.org/2003/05/soap-envelope";
+	static final String DATA_NS = "http://api.callfire.com/data";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final ObjectFactory REQUESTS = new ObjectFactory();
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+	private static final Map<String, Field> FIELDS = new HashMap<String, Field>();
+	private static final ActionState[] STATES = ActionState.values();
+	private static final Result[] RESULTS = Result.values();
+	private static final char[][] STATE_VALUES = values(STATES);
+	private static final char[][] RESULT_VALUES = values(RESULTS);
+	private static JAXBContext jaxbContext;
+
+	static {
+		// one CHARACTERS event per text, and no DTDs in a response
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		FIELDS.put("FromNumber", Field.FROM_NUMBER);
+		FIELDS.put("ToNumber", Field.TO_NUMBER);
+		FIELDS.put("State", Field.STATE);
+		FIELDS.put("BatchId", Field.BATCH_ID);
+		FIELDS.put("BroadcastId", Field.BROADCAST_ID);
+		FIELDS.put("ContactId", Field.CONTACT_ID);
+		FIELDS.put("Inbound", Field.INBOUND);
+		FIELDS.put("Created", Field.CREATED);
+		FIELDS.put("Modified", Field.MODIFIED);
+		FIELDS.put("FinalResult", Field.FINAL_RESULT);
+	}
+
+	/**
+	 * @param textEndpoint the address of the text service, e.g. https://www.callfire.com/api/1.0/soap12/text
+	 * @param callEndpoint the address of the call service
+	 * @param user
+	 * @param password
+	 * @return a thread-safe port that queries the CallFire API
+	 */
+	public static SoapActionStream overHttp(final String textEndpoint, final String callEndpoint, String user,
+			String password) {
+		final String authorization = authorization(user, password);
+		return new SoapActionStream() {
+			@Override
+			protected InputStream send(Class<? extends Action> actionType, ActionQuery query)
+					throws ServiceFault, IOException {
+				boolean texts = actionType == Text.class;
+				URL endpoint = new URL(texts ? textEndpoint : callEndpoint);
+				HttpURLConnection connection = (HttpURLConnection)endpoint.openConnection();
+				connection.setDoOutput(true);
+				connection.setRequestMethod("POST");
+				connection.setRequestProperty("Content-Type", "application/soap+xml; charset=UTF-8");
+				connection.setRequestProperty("Accept-Encoding", "gzip");
+				connection.setRequestProperty("Authorization", authorization);
+				OutputStream out = connection.getOutputStream();
+				try {
+					writeEnvelope(texts ? REQUESTS.createQueryTexts(query) : REQUESTS.createQueryCalls(query), out);
+				}
+				finally {
+					out.close();
+				}
+
+				return response(connection, endpoint);
+			}
+		};
+	}
+
+	/**
+	 * @param user
+	 * @param password
+	 * @return the value of a basic Authorization header
+	 */
+	static String authorization(String user, String password) {
+		return "Basic " + DatatypeConverter.printBase64Binary((user + ":" + password).getBytes(UTF8));
+	}
+
+	/**
+	 * Opens the body of a response, which is XML even for a fault. Closing
+	 * it once it has been read returns the connection to the JDK's
+	 * keep-alive cache.
+	 * @param connection a request that has been sent
+	 * @param endpoint where it was sent
+	 * @return the response, unzipped
+	 * @throws ServiceFault if the error isn't XML and the request was at fault
+	 * @throws IOException if the error isn't XML and the server was at fault
+	 */
+	static InputStream response(HttpURLConnection connection, URL endpoint) throws ServiceFault, IOException {
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		String contentType = connection.getContentType();
+		if (status >= 400 && (in == null || contentType == null || !contentType.contains("xml"))) {
+			// not a fault of the API, e.g. from a proxy
+			if (in != null) {
+				in.close();
+			}
+			String message = status + " " + connection.getResponseMessage() + " from " + endpoint;
+			if (status >= 500) {
+				throw new IOException(message);
+			}
+			throw fault(status == 404 ? FaultCode.NOT_FOUND : status == 401 || status == 403
+					? FaultCode.FORBIDDEN : FaultCode.BAD_REQUEST, message);
+		}
+		if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+			in = new GZIPInputStream(in, 8 * 1024);
+		}
+		return in;
+	}
+
+	/**
+	 * @param textService
+	 * @param callService
+	 * @return a port that decodes the marshalled results of textService and callService
+	 */
+	public static SoapActionStream overPorts(final TextServicePortType textService,
+			final CallServicePortType callService) {
+		return new SoapActionStream() {
+			@Override
+			protected InputStream send(Class<? extends Action> actionType, ActionQuery query)
+					throws ServiceFault, IOException {
+				Object result = actionType == Text.class ? textService.queryTexts(query) : callService.queryCalls(query);
+				return new ByteArrayInputStream(envelope(result));
+			}
+		};
+	}
+
+	/**
+	 * Sends a single page query.
+	 * @param actionType Text or Call
+	 * @param query
+	 * @return the SOAP response
+	 */
+	protected abstract InputStream send(Class<? extends Action> actionType, ActionQuery query)
+			throws ServiceFault, IOException;
+
+	@Override
+	public int queryTexts(ActionQuery query, Set<Field> fields, ActionStatusTracker.Listener<? super Text> listener)
+			throws ServiceFault {
+		return query(Text.class, query, fields, listener);
+	}
+
+	@Override
+	public int queryCalls(ActionQuery query, Set<Field> fields, ActionStatusTracker.Listener<? super Call> listener)
+			throws ServiceFault {
+		return query(Call.class, query, fields, listener);
+	}
+
+	private <T extends Action> int query(Class<T> actionType, ActionQuery query, Set<Field> fields,
+			ActionStatusTracker.Listener<? super T> listener) throws ServiceFault {
+		InputStream response;
+		try {
+			response = send(actionType, query);
+		}
+		catch (IOException e) {
+			throw new WebServiceException("can't query " + actionType.getSimpleName() + "s", e);
+		}
+		try {
+			return decode(response, actionType, fields, listener);
+		}
+		catch (XMLStreamException e) {
+			throw new WebServiceException("can't read the " + actionType.getSimpleName() + "s", e);
+		}
+		finally {
+			try {
+				response.close();
+			}
+			catch (IOException e) {
+				// the page was read, or has already failed
+			}
+		}
+	}
+
+	/**
+	 * Reads a TextQueryResult or CallQueryResult response, or a REST
+	 * ResourceList of texts or calls, handing each of its actions to listener.
+	 * @param response a SOAP 1.2 or REST response
+	 * @param actionType Text or Call
+	 * @param fields the fields to decode
+	 * @param listener gets the same action every time, refilled
+	 * @return the number of actions read
+	 * @throws ServiceFault if the response is a fault
+	 * @throws XMLStreamException
+	 */
+	public static <T extends Action> int decode(InputStream response, Class<T> actionType, Set<Field> fields,
+			ActionStatusTracker.Listener<? super T> listener) throws ServiceFault, XMLStreamException {
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(response);
+		try {
+			return new Decoder<T>(reader, actionType, fields).decode(listener);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param body a request or response, e.g. TextQueryResult
+	 * @return body in a SOAP 1.2 envelope
+	 * @throws IOException
+	 */
+	static byte[] envelope(Object body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+		writeEnvelope(body, out);
+		return out.toByteArray();
+	}
+
+	private static void writeEnvelope(Object body, OutputStream out) throws IOException {
+		try {
+			XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("soap", "Envelope", SOAP_NS);
+			writer.writeNamespace("soap", SOAP_NS);
+			writer.writeStartElement("soap", "Body", SOAP_NS);
+			Marshaller marshaller = getJaxbContext().createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+			marshaller.marshal(body, writer);
+			writer.writeEndElement();
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		}
+		catch (XMLStreamException e) {
+			throw new IOException("can't write " + body.getClass().getSimpleName(), e);
+		}
+		catch (JAXBException e) {
+			throw new IOException("can't marshal " + body.getClass().getSimpleName(), e);
+		}
+	}
+
+	private static synchronized JAXBContext getJaxbContext() {
+		if (jaxbContext == null) {
+			try {
+				jaxbContext = JAXBContext.newInstance(ActionQuery.class, TextQueryResult.class, CallQueryResult.class);
+			}
+			catch (JAXBException e) {
+				throw new IllegalStateException("can't create a JAXB context for the queries", e);
+			}
+		}
+		return jaxbContext;
+	}
+
+	static ServiceFault fault(FaultCode code, String message) {
+		ServiceFaultInfo info = new ServiceFaultInfo();
+		info.setFaultCode(code);
+		info.setMessage(message);
+		return new ServiceFault(message, info);
+	}
+
+	private static char[][] values(Enum<?>[] constants) {
+		char[][] values = new char[constants.length][];
+		for (int i = 0; i < constants.length; i++) {
+			values[i] = (constants[i] instanceof Result ? ((Result)constants[i]).value()
+					: ((ActionState)constants[i]).value()).toCharArray();
+		}
+		return values;
+	}
+
+	/**
+	 * Reads the actions of one response into a single flyweight action.
+	 */
+	private static final class Decoder<T extends Action> {
+		private final XMLStreamReader reader;
+		private final String elementName;
+		private final T action;
+		private final boolean[] wanted = new boolean[Field.values().length];
+		private final ToNumber toNumber = new ToNumber();
+		private final Calendar created = new GregorianCalendar();
+		private final Calendar modified = new GregorianCalendar();
+		private final Calendar utc = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		// the text of the current element, trimmed to [start, end)
+		private char[] text = new char[64];
+		private int start;
+		private int end;
+
+		Decoder(XMLStreamReader reader, Class<T> actionType, Set<Field> fields) {
+			this.reader = reader;
+			this.elementName = actionType.getSimpleName();
+			this.action = actionType.cast(actionType == Text.class ? new Text() : new Call());
+			for (Field field : fields) {
+				wanted[field.ordinal()] = true;
+			}
+		}
+
+		int decode(ActionStatusTracker.Listener<? super T> listener) throws ServiceFault, XMLStreamException {
+			int count = 0;
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String name = reader.getLocalName();
+				if (name.equals(elementName) && DATA_NS.equals(reader.getNamespaceURI())) {
+					readAction();
+					listener.onAction(action);
+					count++;
+				}
+				else if (name.equals("Fault") && SOAP_NS.equals(reader.getNamespaceURI())) {
+					throw readFault();
+				}
+				else if (name.equals("ResourceException") && RestTransport.RESOURCE_NS.equals(reader.getNamespaceURI())) {
+					throw RestTransport.readException(reader);
+				}
+			}
+			return count;
+		}
+
+		private void readAction() throws XMLStreamException {
+			clear();
+			if (wanted[Field.ID.ordinal()]) {
+				String id = reader.getAttributeValue(null, "id");
+				action.setId(id == null ? 0 : Long.parseLong(id.trim()));
+			}
+			while (true) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					// every child is read to its end, so this ends the action
+					return;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				Field field = FIELDS.get(reader.getLocalName());
+				if (field == null || !wanted[field.ordinal()]) {
+					skip();
+					continue;
+				}
+				readText();
+				switch (field) {
+				case FROM_NUMBER:
+					action.setFromNumber(string());
+					break;
+				case TO_NUMBER:
+					toNumber.setValue(string());
+					action.setToNumber(toNumber);
+					break;
+				case STATE:
+					action.setState(STATES[match(STATE_VALUES)]);
+					break;
+				case BATCH_ID:
+					action.setBatchId(parseLong());
+					break;
+				case BROADCAST_ID:
+					action.setBroadcastId(parseLong());
+					break;
+				case CONTACT_ID:
+					action.setContactId(parseLong());
+					break;
+				case INBOUND:
+					action.setInbound(parseBoolean());
+					break;
+				case CREATED:
+					created.setTimeInMillis(parseDateTime());
+					action.setCreated(created);
+					break;
+				case MODIFIED:
+					modified.setTimeInMillis(parseDateTime());
+					action.setModified(modified);
+					break;
+				case FINAL_RESULT:
+					action.setFinalResult(RESULTS[match(RESULT_VALUES)]);
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		private void clear() {
+			action.setId(0);
+			action.setFromNumber(null);
+			action.setToNumber(null);
+			action.setState(null);
+			action.setBatchId(null);
+			action.setBroadcastId(null);
+			action.setContactId(0);
+			action.setInbound(false);
+			action.setCreated(null);
+			action.setModified(null);
+			action.setFinalResult(null);
+		}
+
+		private ServiceFault readFault() throws XMLStreamException {
+			String reason = null;
+			ServiceFaultInfo info = null;
+			int depth = 1;
+			while (depth > 0) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+				else if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if (name.equals("Text") && SOAP_NS.equals(reader.getNamespaceURI())) {
+						readText();
+						reason = string();
+					}
+					else if (name.equals("ServiceFaultInfo")) {
+						info = readFaultInfo();
+					}
+					else {
+						depth++;
+					}
+				}
+			}
+			String message = info != null && info.getMessage() != null ? info.getMessage() : reason;
+			return new ServiceFault(message, info);
+		}
+
+		private ServiceFaultInfo readFaultInfo() throws XMLStreamException {
+			ServiceFaultInfo info = new ServiceFaultInfo();
+			while (true) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					return info;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String name = reader.getLocalName();
+				if (name.equals("FaultCode")) {
+					readText();
+					try {
+						info.setFaultCode(FaultCode.fromValue(string()));
+					}
+					catch (IllegalArgumentException e) {
+						// a code this version of the API doesn't know
+					}
+				}
+				else if (name.equals("Message")) {
+					readText();
+					info.setMessage(string());
+				}
+				else if (name.equals("Detail")) {
+					readText();
+					info.setDetail(string());
+				}
+				else {
+					skip();
+				}
+			}
+		}
+
+		/**
+		 * Skips the current element and everything in it.
+		 */
+		private void skip() throws XMLStreamException {
+			int depth = 1;
+			while (depth > 0) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		}
+
+		/**
+		 * Copies the text of the current element into the reused buffer, up to its end.
+		 */
+		private void readText() throws XMLStreamException {
+			int length = 0;
+			while (true) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+						|| event == XMLStreamConstants.SPACE) {
+					int count = reader.getTextLength();
+					if (length + count > text.length) {
+						char[] larger = new char[Math.max(text.length * 2, length + count)];
+						System.arraycopy(text, 0, larger, 0, length);
+						text = larger;
+					}
+					System.arraycopy(reader.getTextCharacters(), reader.getTextStart(), text, length, count);
+					length += count;
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					break;
+				}
+				else if (event == XMLStreamConstants.START_ELEMENT) {
+					throw new XMLStreamException("unexpected element " + reader.getLocalName(),
+							reader.getLocation());
+				}
+			}
+			start = 0;
+			end = length;
+			while (start < end && text[start] <= ' ') {
+				start++;
+			}
+			while (end > start && text[end - 1] <= ' ') {
+				end--;
+			}
+		}
+
+		private String string() {
+			return new String(text, start, end - start);
+		}
+
+		private long parseLong() throws XMLStreamException {
+			boolean negative = start < end && text[start] == '-';
+			long value = number(negative ? start + 1 : start, end);
+			return negative ? -value : value;
+		}
+
+		private boolean parseBoolean() {
+			return end - start == 1 ? text[start] == '1'
+					: end - start == 4 && text[start] == 't' && text[start + 1] == 'r' && text[start + 2] == 'u'
+							&& text[start + 3] == 'e';
+		}
+
+		/**
+		 * @return the index of the text in values
+		 */
+		private int match(char[][] values) throws XMLStreamException {
+			int length = end - start;
+			for (int i = 0; i < values.length; i++) {
+				char[] value = values[i];
+				if (value.length != length) {
+					continue;
+				}
+				int c = 0;
+				while (c < length && value[c] == text[start + c]) {
+					c++;
+				}
+				if (c == length) {
+					return i;
+				}
+			}
+			throw new XMLStreamException("unknown value " + string(), reader.getLocation());
+		}
+
+		/**
+		 * Parses an xs:dateTime such as 2012-08-15T10:22:33.123-07:00, in
+		 * the default time zone if it has none.
+		 * @return the time in epoch milliseconds
+		 */
+		private long parseDateTime() throws XMLStreamException {
+			int i = start;
+			if (end - i < 19 || text[i + 4] != '-' || text[i + 7] != '-' || text[i + 10] != 'T'
+					|| text[i + 13] != ':' || text[i + 16] != ':') {
+				throw new XMLStreamException("not a dateTime: " + string(), reader.getLocation());
+			}
+			utc.clear();
+			utc.set((int)number(i, i + 4), (int)number(i + 5, i + 7) - 1, (int)number(i + 8, i + 10),
+					(int)number(i + 11, i + 13), (int)number(i + 14, i + 16), (int)number(i + 17, i + 19));
+			long millis = utc.getTimeInMillis();
+			i += 19;
+			if (i < end && text[i] == '.') {
+				int digits = ++i;
+				while (i < end && text[i] >= '0' && text[i] <= '9') {
+					i++;
+				}
+				// milliseconds are the first three digits of the fraction
+				long fraction = number(digits, Math.min(i, digits + 3));
+				for (int d = i - digits; d < 3; d++) {
+					fraction *= 10;
+				}
+				millis += fraction;
+			}
+			if (i == end) {
+				return millis - TimeZone.getDefault().getOffset(millis);
+			}
+			if (text[i] == 'Z' && i + 1 == end) {
+				return millis;
+			}
+			if ((text[i] == '+' || text[i] == '-') && end - i == 6 && text[i + 3] == ':') {
+				long offset = (number(i + 1, i + 3) * 60 + number(i + 4, i + 6)) * 60 * 1000;
+				return text[i] == '+' ? millis - offset : millis + offset;
+			}
+			throw new XMLStreamException("not a dateTime: " + string(), reader.getLocation());
+		}
+
+		private long number(int from, int to) throws XMLStreamException {
+			if (from >= to) {
+				throw new XMLStreamException("not a number: " + string(), reader.getLocation());
+			}
+			long value = 0;
+			for (int i = from; i < to; i++) {
+				char c = text[i];
+				if (c < '0' || c > '9') {
+					throw new XMLStreamException("not a number: " + string(), reader.getLocation());
+				}
+				value = value * 10 + (c - '0');
+			}
+			return value;
+		}
+	}
+}
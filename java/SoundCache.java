@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+import com.callfire.api.data.SoundMeta;
+import com.callfire.api.data.SoundStatus;
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.xsd.FaultCode;
+import com.callfire.api.service.xsd.IdRequest;
+
+/**
+ * Uploads each distinct sound only once.
+ *
+ * Sound files are identified by the SHA-256 hash of their content, and the
+ * sound id CallFire returned for each hash is kept in a properties file so
+ * it survives across runs, or only in memory for one run without a file.
+ * Before a cached id is reused it is checked with getSoundMeta; sounds that
+ * are gone, FAILED or ARCHIVED are uploaded again.
+ * Within one run, files with the same content share one upload and one check,
+ * while files with different content can be uploaded concurrently.
+ */
+public class SoundCache {
+	private static final Logger LOG = Logger.getLogger(SoundCache.class.getName());
+
+	private final CallServicePortType callService;
+	private final PropertiesConfiguration index;
+	private final ConcurrentMap<String, Long> verified = new ConcurrentHashMap<String, Long>();
+	// one lock per hash, so only uploads of the same content wait for each other
+	private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * @param callService
+	 * @param indexFile where hashes and sound ids are stored, created if missing,
+	 *        or null to keep them in memory
+	 * @throws ConfigurationException if the index exists but can't be read
+	 */
+	public SoundCache(CallServicePortType callService, File indexFile) throws ConfigurationException {
+		this.callService = callService;
+		this.index = new PropertiesConfiguration();
+		index.setDelimiterParsingDisabled(true);
+		if (indexFile != null) {
+			index.setFile(indexFile);
+			if (indexFile.exists()) {
+				index.load();
+			}
+		}
+	}
+
+	/**
+	 * Creates a cache from the sample.properties setting sound_cache_file.
+	 * @param config
+	 * @param callService
+	 * @return a new cache, in memory if sound_cache_file isn't set or the samples run offline
+	 * @throws ConfigurationException
+	 */
+	public static SoundCache fromConfiguration(Configuration config, CallServicePortType callService)
+			throws ConfigurationException {
+		String file = config.getString("sound_cache_file");
+		if (file == null || file.trim().length() == 0) {
+			return new SoundCache(callService, null);
+		}
+		if (config.getBoolean("offline", false)) {
+			// the ids it stores would refer to a fake that is gone by the next run
+			LOG.info("not persisting the sound cache offline");
+			return new SoundCache(callService, null);
+		}
+		return new SoundCache(callService, new File(file.trim()));
+	}
+
+	/**
+	 * Returns the id of a usable sound with the content of soundFile,
+	 * uploading it only if no such sound is known.
+	 * @param soundFile
+	 * @return the sound id
+	 * @throws ServiceFault
+	 * @throws IOException if the file can't be read or the index can't be saved
+	 */
+	public long getSoundId(File soundFile) throws ServiceFault, IOException {
+		String hash = hash(soundFile);
+		Long soundId = verified.get(hash);
+		if (soundId != null) {
+			return soundId;
+		}
+
+		Object lock = new Object();
+		Object existing = locks.putIfAbsent(hash, lock);
+		synchronized (existing != null ? existing : lock) {
+			soundId = verified.get(hash);
+			if (soundId != null) {
+				return soundId;
+			}
+
+			Long cachedId = null;
+			synchronized (index) {
+				if (index.containsKey(hash)) {
+					cachedId = index.getLong(hash);
+				}
+			}
+			if (cachedId != null) {
+				if (isUsable(cachedId)) {
+					LOG.info("reusing sound: " + cachedId + " for " + soundFile);
+					verified.put(hash, cachedId);
+					return cachedId;
+				}
+				synchronized (index) {
+					index.clearProperty(hash);
+				}
+			}
+
+			soundId = SoundStreams.createSound(callService, soundFile.getName(), soundFile);
+			LOG.info("uploaded sound: " + soundId + " for " + soundFile);
+			verified.put(hash, soundId);
+			synchronized (index) {
+				index.setProperty(hash, soundId);
+				if (index.getFile() != null) {
+					try {
+						index.save();
+					}
+					catch (ConfigurationException e) {
+						throw new IOException("exception saving " + index.getFile(), e);
+					}
+				}
+			}
+			return soundId;
+		}
+	}
+
+	private boolean isUsable(long soundId) throws ServiceFault {
+		IdRequest request = new IdRequest();
+		request.setId(soundId);
+		SoundMeta meta;
+		try {
+			meta = callService.getSoundMeta(request);
+		}
+		catch (ServiceFault e) {
+			if (e.getFaultInfo() != null && e.getFaultInfo().getFaultCode() == FaultCode.NOT_FOUND) {
+				return false;
+			}
+			throw e;
+		}
+		// a PENDING sound is still being processed and becomes ACTIVE on its own
+		return meta.getStatus() == SoundStatus.ACTIVE || meta.getStatus() == SoundStatus.PENDING;
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		StringBuilder hex = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,115 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
+import com.callfire.api.service.wsdl.CallServicePortType;
+import com.callfire.api.service.wsdl.ServiceFault;
+import com.callfire.api.service.xsd.CreateSound;
+import com.callfire.api.service.xsd.GetRecordingData;
+import com.callfire.api.service.xsd.GetSoundData;
+import com.callfire.api.service.xsd.SoundFormat;
+
+/**
+ * Moves sound and recording data between files and the call service
+ * without holding it in memory.
+ *
+ * Uploads read straight from the file through a FileDataSource and
+ * downloads are copied to the file in fixed-size chunks. With the MTOM
+ * enabled ports of {@link CallFireClientPool} the audio travels as a
+ * binary attachment instead of base64 text inside the SOAP body.
+ */
+public final class SoundStreams {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private SoundStreams() {
+	}
+
+	/**
+	 * @param callService
+	 * @param name
+	 * @param soundFile
+	 * @return the id of the new sound
+	 * @throws ServiceFault
+	 */
+	public static long createSound(CallServicePortType callService, String name, File soundFile) throws ServiceFault {
+		CreateSound sound = new CreateSound();
+		sound.setName(name);
+		sound.setData(new DataHandler(new FileDataSource(soundFile)));
+		return callService.createSound(sound);
+	}
+
+	/**
+	 * @param callService
+	 * @param soundId
+	 * @param format the format to download in, or null for the original
+	 * @param target the file to write, replaced only once the download is complete
+	 * @return the number of bytes written
+	 * @throws ServiceFault
+	 * @throws IOException
+	 */
+	public static long downloadSound(CallServicePortType callService, long soundId, SoundFormat format, File target)
+			throws ServiceFault, IOException {
+		GetSoundData request = new GetSoundData();
+		request.setId(soundId);
+		request.setFormat(format);
+		return copy(callService.getSoundData(request), target);
+	}
+
+	/**
+	 * @param callService
+	 * @param request identifies the recording by callId and name, or by recordingId
+	 * @param target the file to write, replaced only once the download is complete
+	 * @return the number of bytes written
+	 * @throws ServiceFault
+	 * @throws IOException
+	 */
+	public static long downloadRecording(CallServicePortType callService, GetRecordingData request, File target)
+			throws ServiceFault, IOException {
+		return copy(callService.getRecordingData(request), target);
+	}
+
+	private static long copy(DataHandler data, File target) throws IOException {
+		File parent = target.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(target.getName(), ".part", parent);
+		long written = 0;
+		boolean complete = false;
+		try {
+			InputStream in = data.getInputStream();
+			try {
+				OutputStream out = new FileOutputStream(temp);
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						out.write(buffer, 0, n);
+						written += n;
+					}
+				}
+				finally {
+					out.close();
+				}
+			}
+			finally {
+				in.close();
+			}
+			if (target.exists() && !target.delete()) {
+				throw new IOException("can't replace " + target);
+			}
+			if (!temp.renameTo(target)) {
+				throw new IOException("can't rename " + temp + " to " + target);
+			}
+			complete = true;
+		}
+		finally {
+			if (!complete) {
+				temp.delete();
+			}
+		}
+		return written;
+	}
+}
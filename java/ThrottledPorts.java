@@ -0,0 +1,345 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * Keeps the calls made to each API operation under a rate and a
+ * concurrency limit, so that senders wait on the client instead of being
+ * turned away by the API.
+ *
+ * Every operation, e.g. sendText or queryTexts, gets a token bucket that
+ * refills at its configured rate and holds up to burst tokens. A call
+ * reserves a token and, if the bucket is empty, sleeps until its token is
+ * due; reservations are handed out in order, so waiting callers are
+ * served fairly and the rate is never exceeded.
+ *
+ * Every operation also gets a concurrency limit that adapts to how the
+ * API responds (additive increase, multiplicative decrease). Each call
+ * that returns promptly raises the limit by 1/limit, about one more call
+ * in flight per round trip. A call that takes longer than latencyTolerance
+ * times the fastest recent latency lowers the limit by a tenth, and an
+ * UNAVAILABLE or TIMEOUT fault or a transport error halves it, at most
+ * once per round trip. Between them the two settle on the highest rate
+ * the API sustains without queueing or rejecting requests.
+ */
+public class ThrottledPorts implements PortWrapper {
+	public static final double DEFAULT_BURST = 10;
+	public static final int DEFAULT_INITIAL_CONCURRENCY = 4;
+	public static final int DEFAULT_MAX_CONCURRENCY = 64;
+	public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+	private static final double SLOW_DECREASE = 0.9;
+	private static final double FAULT_DECREASE = 0.5;
+	// how quickly the latency baseline follows latencies above it
+	private static final double BASELINE_DRIFT = 0.01;
+
+	private final Configuration rates;
+	private final double defaultRate;
+	private final double burst;
+	private final int initialConcurrency;
+	private final int maxConcurrency;
+	private final double latencyTolerance;
+	private final ConcurrentMap<Method, Operation> operations = new ConcurrentHashMap<Method, Operation>();
+
+	/**
+	 * Creates a limiter that only adapts concurrency and doesn't limit the rate.
+	 */
+	public ThrottledPorts() {
+		this(null, 0, DEFAULT_BURST, DEFAULT_INITIAL_CONCURRENCY, DEFAULT_MAX_CONCURRENCY, DEFAULT_LATENCY_TOLERANCE);
+	}
+
+	/**
+	 * @param rates rates per second by operation name, e.g. sendText, or null
+	 * @param defaultRate calls per second for operations without a rate of their own, 0 for no limit
+	 * @param burst the calls an operation may make at once after being idle
+	 * @param initialConcurrency
+	 * @param maxConcurrency
+	 * @param latencyTolerance how much slower than the fastest recent call a call may be before the limit drops
+	 */
+	public ThrottledPorts(Configuration rates, double defaultRate, double burst, int initialConcurrency,
+			int maxConcurrency, double latencyTolerance) {
+		if (initialConcurrency <= 0 || initialConcurrency > maxConcurrency) {
+			throw new IllegalArgumentException("bad concurrency limits: " + initialConcurrency + " to "
+					+ maxConcurrency);
+		}
+		if (burst < 1 || latencyTolerance <= 1) {
+			throw new IllegalArgumentException("burst and latencyTolerance must be above 1");
+		}
+		this.rates = rates;
+		this.defaultRate = defaultRate;
+		this.burst = burst;
+		this.initialConcurrency = initialConcurrency;
+		this.maxConcurrency = maxConcurrency;
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	/**
+	 * Creates a limiter from the sample.properties settings rate_limit_per_second,
+	 * rate_limit_burst, concurrency_initial, concurrency_max and
+	 * concurrency_latency_tolerance. The rate of a single operation is set
+	 * with rate_limit.&lt;operation&gt;, e.g. rate_limit.sendText = 5.
+	 * @param config
+	 * @return a new limiter
+	 */
+	public static ThrottledPorts fromConfiguration(Configuration config) {
+		return new ThrottledPorts(config.subset("rate_limit"),
+				config.getDouble("rate_limit_per_second", 0),
+				config.getDouble("rate_limit_burst", DEFAULT_BURST),
+				config.getInt("concurrency_initial", DEFAULT_INITIAL_CONCURRENCY),
+				config.getInt("concurrency_max", DEFAULT_MAX_CONCURRENCY),
+				config.getDouble("concurrency_latency_tolerance", DEFAULT_LATENCY_TOLERANCE));
+	}
+
+	/**
+	 * Limits the calls made through a port. Every port of the same type
+	 * wrapped by this instance shares the limits of each operation.
+	 * @param portType
+	 * @param port a thread-safe port, e.g. from CallFireClientPool
+	 * @return a port that waits for its turn around every call
+	 */
+	@Override
+	public <T> T wrap(Class<T> portType, final T port) {
+		return portType.cast(Proxy.newProxyInstance(portType.getClassLoader(), new Class<?>[] { portType },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(this, args);
+						}
+						return getOperation(method).call(port, method, args);
+					}
+				}));
+	}
+
+	/**
+	 * @return the limits of every operation called so far
+	 */
+	public List<Operation> getOperations() {
+		return new ArrayList<Operation>(operations.values());
+	}
+
+	private Operation getOperation(Method method) {
+		Operation operation = operations.get(method);
+		if (operation == null) {
+			double rate = rates == null ? defaultRate : rates.getDouble(method.getName(), defaultRate);
+			operations.putIfAbsent(method, new Operation(
+					method.getDeclaringClass().getSimpleName() + "." + method.getName(), rate));
+			operation = operations.get(method);
+		}
+		return operation;
+	}
+
+	/**
+	 * The rate and concurrency limits of one operation.
+	 */
+	public class Operation {
+		private final String name;
+		private final double ratePerSecond;
+		// a lock rather than a monitor, so a virtual thread waiting for a
+		// free slot doesn't pin its carrier
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition released = lock.newCondition();
+
+		// guarded by lock
+		// token bucket, tokens below zero are reservations waiting to be refilled
+		private double tokens;
+		private long refilledNanos = System.nanoTime();
+
+		// adaptive concurrency limit
+		private double limit = initialConcurrency;
+		private int inFlight;
+		private long baselineNanos = Long.MAX_VALUE;
+		private long lastLatencyNanos;
+		private long lastDecreaseNanos;
+		private long calls;
+		private long throttledNanos;
+
+		Operation(String name, double ratePerSecond) {
+			this.name = name;
+			this.ratePerSecond = ratePerSecond;
+			this.tokens = burst;
+		}
+
+		Object call(Object port, Method method, Object[] args) throws Throwable {
+			long waitStart = System.nanoTime();
+			try {
+				TimeUnit.NANOSECONDS.sleep(reserveToken());
+				acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted waiting to call " + name, e);
+			}
+			long start = System.nanoTime();
+			Throwable failure = null;
+			try {
+				return method.invoke(port, args);
+			}
+			catch (InvocationTargetException e) {
+				failure = e.getCause();
+				throw failure;
+			}
+			finally {
+				release(start - waitStart, System.nanoTime() - start, failure);
+			}
+		}
+
+		/**
+		 * @return how long the caller must wait for its token
+		 */
+		private long reserveToken() {
+			if (ratePerSecond <= 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				long now = System.nanoTime();
+				tokens = Math.min(burst, tokens + (now - refilledNanos) * ratePerSecond / 1e9);
+				refilledNanos = now;
+				tokens--;
+				return tokens >= 0 ? 0 : (long)(-tokens * 1e9 / ratePerSecond);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private void acquire() throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				while (inFlight >= (int)limit) {
+					released.await();
+				}
+				inFlight++;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private void release(long waitedNanos, long latencyNanos, Throwable failure) {
+			lock.lock();
+			try {
+				update(waitedNanos, latencyNanos, failure);
+				released.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private void update(long waitedNanos, long latencyNanos, Throwable failure) {
+			inFlight--;
+			calls++;
+			throttledNanos += waitedNanos;
+			lastLatencyNanos = latencyNanos;
+			if (failure != null && ResilientPorts.isRetryable(failure)) {
+				decrease(FAULT_DECREASE);
+			}
+			else if (failure == null) {
+				if (latencyNanos < baselineNanos) {
+					baselineNanos = latencyNanos;
+				}
+				else {
+					baselineNanos += (long)((latencyNanos - baselineNanos) * BASELINE_DRIFT);
+				}
+				if (latencyNanos > baselineNanos * latencyTolerance) {
+					decrease(SLOW_DECREASE);
+				}
+				else if (inFlight + 1 >= (int)limit) {
+					// only grow a limit that is being used
+					limit = Math.min(maxConcurrency, limit + 1 / limit);
+				}
+			}
+		}
+
+		private void decrease(double factor) {
+			long now = System.nanoTime();
+			// calls that were already in flight shouldn't cut the limit again
+			if (now - lastDecreaseNanos < lastLatencyNanos) {
+				return;
+			}
+			lastDecreaseNanos = now;
+			limit = Math.max(1, limit * factor);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the configured calls per second, 0 if unlimited
+		 */
+		public double getRatePerSecond() {
+			return ratePerSecond;
+		}
+
+		/**
+		 * @return the number of calls that may currently be in flight
+		 */
+		public int getLimit() {
+			lock.lock();
+			try {
+				return (int)limit;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public int getInFlight() {
+			lock.lock();
+			try {
+				return inFlight;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public long getCalls() {
+			lock.lock();
+			try {
+				return calls;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return the total time callers waited for a token or a free slot
+		 */
+		public long getThrottledMs() {
+			lock.lock();
+			try {
+				return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public String toString() {
+			lock.lock();
+			try {
+				return name + ": " + calls + " calls, limit " + (int)limit + ", throttled "
+						+ TimeUnit.NANOSECONDS.toMillis(throttledNanos) + "ms";
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -1,16 +1,16 @@
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.activation.DataHandler;
-import javax.activation.DataSource;
-import javax.activation.FileDataSource;
-
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 
@@ -26,16 +26,11 @@ import com.callfire.api.data.VoiceBroadcastConfig;
 import com.callfire.api.service.wsdl.BroadcastServicePortType;
 import com.callfire.api.service.wsdl.CallServicePortType;
 import com.callfire.api.service.wsdl.ServiceFault;
-import com.callfire.api.service.wsdl.http.soap12.CallFireApi;
 import com.callfire.api.service.wsdl.http.soap12.CallFireApi.ServiceState;
-import com.callfire.api.service.xsd.ActionQuery;
 import com.callfire.api.service.xsd.BroadcastCommand;
 import com.callfire.api.service.xsd.BroadcastRequest;
-import com.callfire.api.service.xsd.CallQueryResult;
 import com.callfire.api.service.xsd.ControlBroadcast;
 import com.callfire.api.service.xsd.CreateBroadcastSchedule;
-import com.callfire.api.service.xsd.CreateContactBatch;
-import com.callfire.api.service.xsd.CreateSound;
 import com.callfire.api.service.xsd.FaultCode;
 import com.callfire.api.service.xsd.IdRequest;
 
@@ -58,33 +53,58 @@ public class WeeklyPtaVoiceBroadcastSample {
 	private final String password;
 	private final int maxWaitMs;
 	
-	private final CallFireApi callFireApi;
+	private final CallFireClientPool clientPool;
+	private final NotificationReceiver notificationReceiver;
+	private final PollScheduler pollScheduler;
 	private final BroadcastServicePortType broadcastService;
 	private final CallServicePortType callService;
+	private final ActionStreamPort actionStream;
+	private final SoundCache soundCache;
+	private final SendJournal sendJournal;
+	private final ContactBatchUploader batchUploader;
+	private final ContactListManager contactLists;
 	private final PropertiesConfiguration propertiesConfig;
+	private final AsyncPorts async;
 	private Long scheduleId;
+	private Pending<Long> pendingSchedule;
 	
-	public WeeklyPtaVoiceBroadcastSample() throws ConfigurationException {
+	public WeeklyPtaVoiceBroadcastSample() throws ConfigurationException, IOException {
 		propertiesConfig = new PropertiesConfiguration("sample.properties");
 		user = propertiesConfig.getString("user");
 		password = propertiesConfig.getString("password");
 		maxWaitMs = propertiesConfig.getInt("max_wait_ms");
-		callFireApi = new CallFireApi(user, password, ServiceState.DEVELOPMENT);
-		broadcastService = callFireApi.getBroadcastServicePort();
-		callService = callFireApi.getCallServicePort();
+		// ports are created once and pooled so they can be shared across threads,
+		// set offline = true to run against an in-process fake of the API
+		clientPool = CallFireClientPool.fromConfiguration(propertiesConfig, ServiceState.DEVELOPMENT);
+		// set notification_url to have results pushed to us instead of polling for them
+		notificationReceiver = NotificationReceiver.fromConfiguration(propertiesConfig,
+				clientPool.getSubscriptionService());
+		// one shared scheduler runs every poll, at intervals that adapt to progress
+		pollScheduler = new PollScheduler();
+		broadcastService = clientPool.getBroadcastService();
+		callService = clientPool.getCallService();
+		// set stream_query_results to decode only the fields polling reads from each page of results
+		actionStream = propertiesConfig.getBoolean("stream_query_results", false) ? clientPool.getActionStream() : null;
+		// sounds are uploaded once and then reused by content hash across runs
+		soundCache = SoundCache.fromConfiguration(propertiesConfig, callService);
+		// set send_journal_file to record sends, so an interrupted run resumes without sending twice
+		sendJournal = SendJournal.fromConfiguration(propertiesConfig);
+		batchUploader = new ContactBatchUploader(broadcastService, sendJournal);
+		// set contact_list_dir to keep the parents in a contact list, so only changes are uploaded
+		contactLists = ContactListManager.fromConfiguration(propertiesConfig, clientPool.getContactService());
+		// independent calls, like uploading the two sounds, run at the same time
+		async = AsyncPorts.fromConfiguration(propertiesConfig, clientPool);
 	}
 
-	private long createSound(File soundFile) throws ServiceFault {
-		CreateSound sound = new CreateSound();
-		sound.setName("some sound");
-		
-		DataSource source = new FileDataSource(soundFile);
-		DataHandler dataHandler = new DataHandler(source);
-		
-		sound.setData(dataHandler);
-
-		long soundId = callService.createSound(sound);
-		return soundId;
+	private Pending<Long> createSound(final File soundFile) {
+		// identical files, like the live and machine sounds here,
+		// share a single upload
+		return async.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws ServiceFault, IOException {
+				return soundCache.getSoundId(soundFile);
+			}
+		});
 	}
 	
 	private long createWeeklyBroadcast(long liveSoundId, long machineSoundId, String fromNumber) throws ServiceFault {
@@ -107,11 +127,14 @@ public class WeeklyPtaVoiceBroadcastSample {
 		broadcast.setVoiceBroadcastConfig(config);
 		
 		broadcast.setName("monthly PTA meeting voice broadcast reminder");
+		// the RequestIds let CallFire spot a retried create as a duplicate
 		BroadcastRequest createRequest = new BroadcastRequest();
+		createRequest.setRequestId(SendJournal.newRequestId());
 		createRequest.setBroadcast(broadcast);
 		Long broadcastId = broadcastService.createBroadcast(createRequest);
 
 		CreateBroadcastSchedule create = new CreateBroadcastSchedule();
+		create.setRequestId(SendJournal.newRequestId());
 		BroadcastSchedule schedule = new BroadcastSchedule();
 
 		// weekly PTA meetings are on Mondays
@@ -126,82 +149,110 @@ public class WeeklyPtaVoiceBroadcastSample {
 		
 		create.setBroadcastId(broadcastId);
 		create.setBroadcastSchedule(schedule);
-		scheduleId = broadcastService.createBroadcastSchedule(create);
+		// the schedule is created while the batch uploads,
+		// and only awaited before the broadcast starts
+		pendingSchedule = async.getBroadcastService().createBroadcastSchedule(create);
 
 		return broadcastId;
 	}
 	
-	private long sendBatch(String name, Collection<Object> toNumbers, long broadcastId)
-			throws ServiceFault {
-		Long batchId = broadcastService.createContactBatch(createBatch(name, toNumbers, broadcastId));
+	private List<Long> sendBatch(String name, Collection<Object> toNumbers, long broadcastId)
+			throws ServiceFault, IOException {
+		// numbers are normalized, and invalid and duplicate ones dropped
+		RecipientDeduplicator deduplicator = new RecipientDeduplicator(toNumbers.size());
+		Iterator<ToNumber> recipients = deduplicator.filter(ContactBatchUploader.toNumbers(toNumbers, null));
+
+		List<Long> batchIds;
+		if (contactLists != null) {
+			// the same parents are reminded every week, so only the changes
+			// to the list are uploaded and the batch is created from it
+			long contactListId = contactLists.sync(name, recipients);
+			batchIds = Collections.singletonList(batchUploader.upload(name, broadcastId, contactListId));
+		}
+		else {
+			// large lists are split into several batches
+			// which are uploaded concurrently
+			batchIds = batchUploader.upload(name, broadcastId, recipients);
+		}
+		LOG.info("recipients of broadcast " + broadcastId + ": " + deduplicator.getReport());
+		awaitSchedule();
 		
 		// start the broadcast
 		ControlBroadcast control = new ControlBroadcast();
 		control.setId(broadcastId);
 		control.setCommand(BroadcastCommand.START);
 		broadcastService.controlBroadcast(control);
-		return batchId;
+		return batchIds;
 	}
-
-	private CreateContactBatch createBatch(String name, Collection<Object> toNumbers, Long broadcastId) {
-		CreateContactBatch createBatch = new CreateContactBatch();
-		createBatch.setName(name);
-		createBatch.setBroadcastId(broadcastId);
-		for (Object toNumber : toNumbers) {
-			ToNumber toNumberElem = new ToNumber();
-			toNumberElem.setValue((String)toNumber);
-			createBatch.getToNumber().add(toNumberElem);
+	
+	private void awaitSchedule() throws ServiceFault {
+		if (pendingSchedule == null) {
+			return;
+		}
+		try {
+			scheduleId = pendingSchedule.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted creating schedule", e);
+		}
+		finally {
+			pendingSchedule = null;
 		}
-		createBatch.setScrubBroadcastDuplicates(false);
-		return createBatch;
 	}
 	
-	private boolean pollForResponse(long broadcastId, List<Object> toNumbers, Long batchId) {
-		LOG.info("polling for responses for batch: " + batchId);
+	private boolean pollForResponse(long broadcastId, List<Object> toNumbers, List<Long> batchIds) {
+		LOG.info("polling for responses for batches: " + batchIds);
 		
-		final int sleepInterval = 2000;
-		int totalWait = 0;
-
-		ActionQuery callQuery = new ActionQuery();
-		callQuery.setBroadcastId(broadcastId);
-
-		while (totalWait < maxWaitMs) {
-			try {
-				Thread.sleep(sleepInterval);
-				totalWait += sleepInterval;
-			}
-			catch (InterruptedException e) {
-				LOG.log(Level.FINE, "interrupted", e);
+		// hashed set of outstanding numbers, completing a result is O(1)
+		final OutstandingNumbers outstanding = OutstandingNumbers.of(toNumbers);
+		List<ActionStatusTracker<Call>> trackers = new ArrayList<ActionStatusTracker<Call>>(batchIds.size());
+		for (Long batchId : batchIds) {
+			trackers.add(actionStream == null ? ActionStatusTracker.forCalls(callService, broadcastId, batchId)
+					: ActionStatusTracker.forCalls(actionStream, broadcastId, batchId));
+		}
+		ActionStatusTracker.Listener<Call> listener = new ActionStatusTracker.Listener<Call>() {
+			@Override
+			public void onAction(Call call) {
+				Result finalResult = call.getFinalResult();
+				String toNumber = call.getToNumber().getValue();
+				if (finalResult != null) {
+					if (!finalResult.equals(Result.UNDIALED)) {
+						outstanding.complete(toNumber);
+						LOG.info("batchId: " + call.getBatchId() + " with toNumber: " + toNumber);
+					}
+				}
 			}
+		};
 
+		if (notificationReceiver != null) {
+			// results are pushed as they happen, polling is only used to catch up
 			try {
-				CallQueryResult result = callService.queryCalls(callQuery);
-				List<Call> callList = result.getCall();
-				if (callList.isEmpty()) {
-					throw new RuntimeException("call query did not return a text");
-				}
-
-				for (Call call : callList) {
-					Result finalResult = call.getFinalResult();
-					String toNumber = call.getToNumber().getValue();
-					if (finalResult != null) {
-						if (!finalResult.equals(Result.UNDIALED)) {
-							if (call.getBatchId().equals(batchId)) {
-								toNumbers.remove(toNumber);
-							}
-							LOG.info("batchId: " + call.getBatchId() + " with toNumber: " + toNumber);
-							if (toNumbers.isEmpty()) {
-								return true;
-							}
-						}
-					}
-				}
+				return notificationReceiver.await(Call.class, trackers, listener, outstanding, maxWaitMs);
 			}
 			catch (ServiceFault e) {
-				throw new RuntimeException("exception querying for texts", e);
+				throw new RuntimeException("exception waiting for call notifications", e);
 			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		// the batches are only queried when the broadcast's counters show new results
+		PollScheduler.Poll<Call> poll = pollScheduler.schedule(trackers, listener, outstanding, maxWaitMs,
+				new BroadcastStatsMonitor(broadcastService, broadcastId));
+		try {
+			return poll.await();
+		}
+		catch (ServiceFault e) {
+			throw new RuntimeException("exception querying for calls", e);
+		}
+		catch (InterruptedException e) {
+			poll.cancel();
+			Thread.currentThread().interrupt();
+			return false;
 		}
-		return false;
 	}
 	
 	private Calendar getCalendarFromHour(int hour) {
@@ -216,25 +267,27 @@ public class WeeklyPtaVoiceBroadcastSample {
 		return calendar;
 	}
 	
-	private void sendReminders(long broadcastId) throws ServiceFault {
+	private void sendReminders(long broadcastId) throws ServiceFault, IOException {
 		List<Object> toNumbers1 = propertiesConfig.getList("contacts_batch_1");
 		
-		long septBatchId = sendBatch("Weekly PTA Reminders", toNumbers1, broadcastId);
+		List<Long> septBatchIds = sendBatch("Weekly PTA Reminders", toNumbers1, broadcastId);
 		
 		// note, this only checks that one set of reminders went out.
 		// presumably, the application code could check every week.
 		// or sign up for post-back notifications.
-		boolean response = pollForResponse(broadcastId, toNumbers1, septBatchId);
+		boolean response = pollForResponse(broadcastId, toNumbers1, septBatchIds);
+		batchUploader.complete(broadcastId);
 		
 		if (!response) {
-			LOG.log(Level.WARNING, "did not receive postive reponse from batch: " + septBatchId);
+			LOG.log(Level.WARNING, "did not receive postive reponse from batches: " + septBatchIds);
 		}
 		else {
-			LOG.log(Level.INFO, "received postive reponse from batch: " + septBatchId);
+			LOG.log(Level.INFO, "received postive reponse from batches: " + septBatchIds);
 		}
 	}
 	
-	private void cleanup() {
+	private void cleanup() throws ServiceFault {
+		awaitSchedule();
 		if (scheduleId != null) {
 			IdRequest request = new IdRequest();
 			request.setId(scheduleId);
@@ -265,19 +318,36 @@ public class WeeklyPtaVoiceBroadcastSample {
 	 * @throws Exception
 	 */
 	public void run() throws Exception {
-		
-		// create sound
-		long liveSoundId = createSound(PTA_REMINDER_LIVE_SOUND);
-		long machineSoundId = createSound(PTA_REMINDER_MACHINE_SOUND);
-		
-		// schedule weekly batch
-		String fromNumber = "12132212289";
-		long broadcastId = createWeeklyBroadcast(liveSoundId, machineSoundId, fromNumber);
-		
-		// kick off the broadcasts
-		sendReminders(broadcastId);
-		
-		cleanup();
+		try {
+			// create sounds, both at once
+			Pending<Long> liveSound = createSound(PTA_REMINDER_LIVE_SOUND);
+			Pending<Long> machineSound = createSound(PTA_REMINDER_MACHINE_SOUND);
+			long liveSoundId = liveSound.await();
+			long machineSoundId = machineSound.await();
+			
+			// schedule weekly batch
+			String fromNumber = "12132212289";
+			long broadcastId = createWeeklyBroadcast(liveSoundId, machineSoundId, fromNumber);
+			
+			// kick off the broadcasts
+			sendReminders(broadcastId);
+			
+			cleanup();
+		}
+		finally {
+			async.close();
+			pollScheduler.close();
+			if (notificationReceiver != null) {
+				notificationReceiver.close();
+			}
+			if (sendJournal != null) {
+				sendJournal.close();
+			}
+			if (clientPool.getInstrumentation() != null) {
+				// logs the latency and faults of every operation that was called
+				clientPool.getInstrumentation().close();
+			}
+		}
 	}
 	
 	public static void main(String[] args) {